@@ -40,22 +40,65 @@ public class ActivityColour
     /**
      * Colours for activity boxes in normal state
      */
-    public static ActivityColour normal = new ActivityColour(Settings.getInt("ui.activity.hue.normal.idle"));
+    public static volatile ActivityColour normal = new ActivityColour(Settings.getInt("ui.activity.hue.normal.idle"));
     
     /**
      * Colours for activity boxes in normal state but hovered
      */
-    public static ActivityColour normal_hover = new ActivityColour(Settings.getInt("ui.activity.hue.normal.hover"));
+    public static volatile ActivityColour normal_hover = new ActivityColour(Settings.getInt("ui.activity.hue.normal.hover"));
     
     /**
      * Colours for activity boxes in selected state
      */
-    public static ActivityColour selected = new ActivityColour(Settings.getInt("ui.activity.hue.selected.idle"));
+    public static volatile ActivityColour selected = new ActivityColour(Settings.getInt("ui.activity.hue.selected.idle"));
     
     /**
      * Colours for activity boxes in selected state and hovered
      */
-    public static ActivityColour selected_hover = new ActivityColour(Settings.getInt("ui.activity.hue.selected.hover"));
+    public static volatile ActivityColour selected_hover = new ActivityColour(Settings.getInt("ui.activity.hue.selected.hover"));
+    
+    
+    
+    /**
+     * Luminosity at zero activity
+     */
+    private static final Settings.DoubleSetting LUM_M = Settings.doubleSetting("ui.activity.lum.m");
+    
+    /**
+     * Luminosity increase per activity
+     */
+    private static final Settings.DoubleSetting LUM_K = Settings.doubleSetting("ui.activity.lum.k");
+    
+    /**
+     * Saturation at zero activity
+     */
+    private static final Settings.DoubleSetting SAT_M = Settings.doubleSetting("ui.activity.sat.m");
+    
+    /**
+     * Saturation increase per activity
+     */
+    private static final Settings.DoubleSetting SAT_K = Settings.doubleSetting("ui.activity.sat.k");
+    
+    
+    
+    /**
+     * Rebuild affected palettes when the settings are reloaded
+     */
+    static
+    {
+	Blackboard.getInstance(null).registerObserver(new Blackboard.BlackboardObserver()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public void messageBroadcasted(final Blackboard.BlackboardMessage message)
+		    {
+			if (message instanceof Settings.SettingsChangedMessage)
+			    ActivityColour.settingsChanged((Settings.SettingsChangedMessage)message);
+		    }
+		});
+    }
     
     
     
@@ -89,12 +132,34 @@ public class ActivityColour
 	    return this.cache[descrete];
 	
 	double x = descrete / (double)(cache.length);
-	double lum = Settings.getDouble("ui.activity.lum.m") + Settings.getDouble("ui.activity.lum.k") * x;
-	double sat = Settings.getDouble("ui.activity.sat.m") + Settings.getDouble("ui.activity.sat.k") * x;
+	double lum = LUM_M.get() + LUM_K.get() * x;
+	double sat = SAT_M.get() + SAT_K.get() * x;
 	return this.cache[descrete] = (new Colour(lum, sat, this.hue)).srgb;
     }
     
     
+    /**
+     * Rebuilds the palettes whose configurations have changed
+     * 
+     * @param  message  The message announcing the changed configurations
+     */
+    private static void settingsChanged(final Settings.SettingsChangedMessage message)
+    {
+	final boolean all = message.affects("ui.activity.cache.levels")
+			 || message.affects("ui.activity.lum.")
+			 || message.affects("ui.activity.sat.");
+	
+	if (all || message.affects("ui.activity.hue.normal.idle"))
+	    normal = new ActivityColour(Settings.getInt("ui.activity.hue.normal.idle"));
+	if (all || message.affects("ui.activity.hue.normal.hover"))
+	    normal_hover = new ActivityColour(Settings.getInt("ui.activity.hue.normal.hover"));
+	if (all || message.affects("ui.activity.hue.selected.idle"))
+	    selected = new ActivityColour(Settings.getInt("ui.activity.hue.selected.idle"));
+	if (all || message.affects("ui.activity.hue.selected.hover"))
+	    selected_hover = new ActivityColour(Settings.getInt("ui.activity.hue.selected.hover"));
+    }
+    
+    
     /**
      * Get the colour representing an activity intensity
      * 
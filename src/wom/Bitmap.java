@@ -0,0 +1,571 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.util.*;
+
+
+/**
+ * Compressed bitmap of picture indices, in the style of roaring bitmaps.<br/>
+ * The indices are partitioned by their upper 16 bits, and each partition is
+ * stored in a container of its own: a sorted array of the lower 16 bits if the
+ * partition has at most 4096 members, otherwise an array of 1024 words with one
+ * bit per possible member. Sparse partitions thus take two bytes per member,
+ * dense partitions at most 8 KiB, and intersections and unions are computed
+ * word by word, or by merging, one partition at a time.<br/>
+ * Bitmaps are built by adding indices in ascending order, which is fast, but
+ * not required. The results of {@link #and(Bitmap)}, {@link #or(Bitmap)} and
+ * {@link #andNot(Bitmap)} are new bitmaps.
+ */
+public class Bitmap
+{
+    /**
+     * The largest number of members of a container stored as an array
+     */
+    private static final int ARRAY_LIMIT = 4096;
+    
+    /**
+     * The number of words of a container stored as bits
+     */
+    private static final int WORDS = 1024;
+    
+    
+    
+    /**
+     * The members of a bitmap with the same upper 16 bits
+     */
+    private static final class Container
+    {
+	/**
+	 * Constructor, for an empty container
+	 */
+	Container()
+	{
+	    this.values = new char[4];
+	    this.words = null;
+	    this.cardinality = 0;
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param  values       The lower 16 bits of the members, sorted, {@code null} if stored as bits
+	 * @param  words        The members as bits, {@code null} if stored as an array
+	 * @param  cardinality  The number of members
+	 */
+	Container(final char[] values, final long[] words, final int cardinality)
+	{
+	    this.values = values;
+	    this.words = words;
+	    this.cardinality = cardinality;
+	}
+	
+	
+	
+	/**
+	 * The lower 16 bits of the members, sorted, {@code null} if stored as bits
+	 */
+	char[] values;
+	
+	/**
+	 * The members as bits, {@code null} if stored as an array
+	 */
+	long[] words;
+	
+	/**
+	 * The number of members
+	 */
+	int cardinality;
+	
+	
+	
+	/**
+	 * Adds a member
+	 * 
+	 * @param  value  The lower 16 bits of the member
+	 */
+	void add(final char value)
+	{
+	    if (this.words != null)
+	    {   final long bit = 1L << value;
+		if ((this.words[value >>> 6] & bit) == 0)
+		{   this.words[value >>> 6] |= bit;
+		    this.cardinality++;
+		}
+		return;
+	    }
+	    
+	    int index;
+	    if ((this.cardinality == 0) || (this.values[this.cardinality - 1] < value))
+		index = this.cardinality;
+	    else if ((index = Arrays.binarySearch(this.values, 0, this.cardinality, value)) >= 0)
+		return;
+	    else
+		index = ~index;
+	    
+	    if (this.cardinality == ARRAY_LIMIT)
+	    {   this.words = toWords(this.values, this.cardinality);
+		this.values = null;
+		this.words[value >>> 6] |= 1L << value;
+		this.cardinality++;
+		return;
+	    }
+	    if (this.cardinality == this.values.length)
+		this.values = Arrays.copyOf(this.values, Math.min(this.cardinality * 2, ARRAY_LIMIT));
+	    System.arraycopy(this.values, index, this.values, index + 1, this.cardinality - index);
+	    this.values[index] = value;
+	    this.cardinality++;
+	}
+	
+	/**
+	 * Checks whether a value is a member
+	 * 
+	 * @param   value  The lower 16 bits of the value
+	 * @return         Whether the value is a member
+	 */
+	boolean contains(final char value)
+	{
+	    if (this.words != null)
+		return (this.words[value >>> 6] & (1L << value)) != 0;
+	    return Arrays.binarySearch(this.values, 0, this.cardinality, value) >= 0;
+	}
+	
+	/**
+	 * Intersects with another container
+	 * 
+	 * @param   other  The other container
+	 * @return         The intersection, {@code null} if empty
+	 */
+	Container and(final Container other)
+	{
+	    if ((this.words != null) && (other.words != null))
+	    {   final long[] words = new long[WORDS];
+		int cardinality = 0;
+		for (int i = 0; i < WORDS; i++)
+		    cardinality += Long.bitCount(words[i] = this.words[i] & other.words[i]);
+		return fromWords(words, cardinality);
+	    }
+	    if (this.words != null)
+		return other.and(this);
+	    
+	    final char[] values = new char[Math.min(this.cardinality, other.cardinality)];
+	    int n = 0;
+	    if (other.words != null)
+	    {   for (int i = 0; i < this.cardinality; i++)
+		    if (other.contains(this.values[i]))
+			values[n++] = this.values[i];
+	    }
+	    else
+		for (int i = 0, j = 0; (i < this.cardinality) && (j < other.cardinality);)
+		    if (this.values[i] < other.values[j])
+			i++;
+		    else if (this.values[i] > other.values[j])
+			j++;
+		    else
+		    {   values[n++] = this.values[i++];
+			j++;
+		    }
+	    return n == 0 ? null : new Container(values, null, n);
+	}
+	
+	/**
+	 * Removes the members of another container
+	 * 
+	 * @param   other  The other container
+	 * @return         The difference, {@code null} if empty
+	 */
+	Container andNot(final Container other)
+	{
+	    if (this.words != null)
+	    {   final long[] words = this.words.clone();
+		if (other.words != null)
+		    for (int i = 0; i < WORDS; i++)
+			words[i] &= ~(other.words[i]);
+		else
+		    for (int i = 0; i < other.cardinality; i++)
+			words[other.values[i] >>> 6] &= ~(1L << other.values[i]);
+		int cardinality = 0;
+		for (int i = 0; i < WORDS; i++)
+		    cardinality += Long.bitCount(words[i]);
+		return fromWords(words, cardinality);
+	    }
+	    
+	    final char[] values = new char[this.cardinality];
+	    int n = 0;
+	    for (int i = 0; i < this.cardinality; i++)
+		if (other.contains(this.values[i]) == false)
+		    values[n++] = this.values[i];
+	    return n == 0 ? null : new Container(values, null, n);
+	}
+	
+	/**
+	 * Unites with another container
+	 * 
+	 * @param   other  The other container
+	 * @return         The union
+	 */
+	Container or(final Container other)
+	{
+	    if ((this.words == null) && (other.words == null) && (this.cardinality + other.cardinality <= ARRAY_LIMIT))
+	    {   final char[] values = new char[this.cardinality + other.cardinality];
+		int n = 0, i = 0, j = 0;
+		while ((i < this.cardinality) && (j < other.cardinality))
+		    if (this.values[i] < other.values[j])
+			values[n++] = this.values[i++];
+		    else if (this.values[i] > other.values[j])
+			values[n++] = other.values[j++];
+		    else
+		    {   values[n++] = this.values[i++];
+			j++;
+		    }
+		while (i < this.cardinality)
+		    values[n++] = this.values[i++];
+		while (j < other.cardinality)
+		    values[n++] = other.values[j++];
+		return new Container(values, null, n);
+	    }
+	    
+	    final long[] words = this.words != null ? this.words.clone() : toWords(this.values, this.cardinality);
+	    if (other.words != null)
+		for (int i = 0; i < WORDS; i++)
+		    words[i] |= other.words[i];
+	    else
+		for (int i = 0; i < other.cardinality; i++)
+		    words[other.values[i] >>> 6] |= 1L << other.values[i];
+	    int cardinality = 0;
+	    for (int i = 0; i < WORDS; i++)
+		cardinality += Long.bitCount(words[i]);
+	    return fromWords(words, cardinality);
+	}
+	
+	/**
+	 * Copies the container
+	 * 
+	 * @return  A copy of the container
+	 */
+	Container copy()
+	{
+	    return new Container(this.values == null ? null : Arrays.copyOf(this.values, this.cardinality),
+				 this.words == null ? null : this.words.clone(), this.cardinality);
+	}
+	
+	/**
+	 * Copies the members into an array
+	 * 
+	 * @param  high    The upper 16 bits of the members
+	 * @param  array   The array
+	 * @param  offset  The index in the array of the first member
+	 */
+	void copyTo(final int high, final int[] array, final int offset)
+	{
+	    int n = offset;
+	    if (this.words == null)
+		for (int i = 0; i < this.cardinality; i++)
+		    array[n++] = high | this.values[i];
+	    else
+		for (int i = 0; i < WORDS; i++)
+		    for (long word = this.words[i]; word != 0; word &= word - 1)
+			array[n++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+	}
+	
+	/**
+	 * Creates the bit representation of an array container
+	 * 
+	 * @param   values       The lower 16 bits of the members
+	 * @param   cardinality  The number of members
+	 * @return               The members as bits
+	 */
+	private static long[] toWords(final char[] values, final int cardinality)
+	{
+	    final long[] words = new long[WORDS];
+	    for (int i = 0; i < cardinality; i++)
+		words[values[i] >>> 6] |= 1L << values[i];
+	    return words;
+	}
+	
+	/**
+	 * Creates a container from bits, as an array if it is sparse
+	 * 
+	 * @param   words        The members as bits
+	 * @param   cardinality  The number of members
+	 * @return               The container, {@code null} if empty
+	 */
+	private static Container fromWords(final long[] words, final int cardinality)
+	{
+	    if (cardinality == 0)
+		return null;
+	    if (cardinality > ARRAY_LIMIT)
+		return new Container(null, words, cardinality);
+	    final char[] values = new char[cardinality];
+	    int n = 0;
+	    for (int i = 0; i < WORDS; i++)
+		for (long word = words[i]; word != 0; word &= word - 1)
+		    values[n++] = (char)((i << 6) | Long.numberOfTrailingZeros(word));
+	    return new Container(values, null, cardinality);
+	}
+	
+    }
+    
+    
+    
+    /**
+     * Constructor, for an empty bitmap
+     */
+    public Bitmap()
+    {
+	this(new char[4], new Container[4], 0);
+    }
+    
+    /**
+     * Copy constructor
+     * 
+     * @param  other  The bitmap to copy
+     */
+    public Bitmap(final Bitmap other)
+    {
+	this(new char[Math.max(other.size, 1)], new Container[Math.max(other.size, 1)], 0);
+	this.unite(other);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  keys        The upper 16 bits of the members of the containers, sorted
+     * @param  containers  The containers
+     * @param  size        The number of containers
+     */
+    private Bitmap(final char[] keys, final Container[] containers, final int size)
+    {
+	this.keys = keys;
+	this.containers = containers;
+	this.size = size;
+    }
+    
+    
+    
+    /**
+     * The upper 16 bits of the members of the containers, sorted
+     */
+    private char[] keys;
+    
+    /**
+     * The containers, no container is empty
+     */
+    private Container[] containers;
+    
+    /**
+     * The number of containers
+     */
+    private int size;
+    
+    
+    
+    /**
+     * Adds a picture index to the bitmap
+     * 
+     * @param  index  The picture index, non-negative
+     */
+    public void add(final int index)
+    {
+	final char high = (char)(index >>> 16);
+	int i;
+	if ((this.size > 0) && (this.keys[this.size - 1] == high))
+	    i = this.size - 1;
+	else if ((i = Arrays.binarySearch(this.keys, 0, this.size, high)) < 0)
+	{   i = ~i;
+	    if (this.size == this.keys.length)
+	    {   this.keys = Arrays.copyOf(this.keys, this.size * 2);
+		this.containers = Arrays.copyOf(this.containers, this.size * 2);
+	    }
+	    System.arraycopy(this.keys, i, this.keys, i + 1, this.size - i);
+	    System.arraycopy(this.containers, i, this.containers, i + 1, this.size - i);
+	    this.keys[i] = high;
+	    this.containers[i] = new Container();
+	    this.size++;
+	}
+	this.containers[i].add((char)index);
+    }
+    
+    
+    /**
+     * Checks whether a picture index is in the bitmap
+     * 
+     * @param   index  The picture index
+     * @return         Whether the picture index is in the bitmap
+     */
+    public boolean contains(final int index)
+    {
+	final int i = Arrays.binarySearch(this.keys, 0, this.size, (char)(index >>> 16));
+	return (i >= 0) && this.containers[i].contains((char)index);
+    }
+    
+    
+    /**
+     * Gets the number of picture indices in the bitmap
+     * 
+     * @return  The number of picture indices in the bitmap
+     */
+    public int getCardinality()
+    {
+	int cardinality = 0;
+	for (int i = 0; i < this.size; i++)
+	    cardinality += this.containers[i].cardinality;
+	return cardinality;
+    }
+    
+    
+    /**
+     * Checks whether the bitmap is empty
+     * 
+     * @return  Whether the bitmap is empty
+     */
+    public boolean isEmpty()
+    {
+	return this.size == 0;
+    }
+    
+    
+    /**
+     * Intersects the bitmap with another bitmap
+     * 
+     * @param   other  The other bitmap
+     * @return         The picture indices that are in both bitmaps
+     */
+    public Bitmap and(final Bitmap other)
+    {
+	final int capacity = Math.max(Math.min(this.size, other.size), 1);
+	final Bitmap result = new Bitmap(new char[capacity], new Container[capacity], 0);
+	for (int i = 0, j = 0; (i < this.size) && (j < other.size);)
+	    if (this.keys[i] < other.keys[j])
+		i++;
+	    else if (this.keys[i] > other.keys[j])
+		j++;
+	    else
+	    {   final Container container = this.containers[i].and(other.containers[j]);
+		if (container != null)
+		{   result.keys[result.size] = this.keys[i];
+		    result.containers[result.size++] = container;
+		}
+		i++;
+		j++;
+	    }
+	return result;
+    }
+    
+    
+    /**
+     * Subtracts another bitmap from the bitmap
+     * 
+     * @param   other  The other bitmap
+     * @return         The picture indices that are in the bitmap but not in the other bitmap
+     */
+    public Bitmap andNot(final Bitmap other)
+    {
+	final int capacity = Math.max(this.size, 1);
+	final Bitmap result = new Bitmap(new char[capacity], new Container[capacity], 0);
+	for (int i = 0, j = 0; i < this.size; i++)
+	{
+	    while ((j < other.size) && (other.keys[j] < this.keys[i]))
+		j++;
+	    final Container container = (j < other.size) && (other.keys[j] == this.keys[i])
+					? this.containers[i].andNot(other.containers[j])
+					: this.containers[i].copy();
+	    if (container != null)
+	    {   result.keys[result.size] = this.keys[i];
+		result.containers[result.size++] = container;
+	    }
+	}
+	return result;
+    }
+    
+    
+    /**
+     * Unites the bitmap with another bitmap
+     * 
+     * @param   other  The other bitmap
+     * @return         The picture indices that are in either bitmap
+     */
+    public Bitmap or(final Bitmap other)
+    {
+	final Bitmap result = new Bitmap();
+	result.unite(this);
+	result.unite(other);
+	return result;
+    }
+    
+    
+    /**
+     * Unites a number of bitmaps
+     * 
+     * @param   bitmaps  The bitmaps
+     * @return           The picture indices that are in any of the bitmaps
+     */
+    public static Bitmap or(final Collection<Bitmap> bitmaps)
+    {
+	final Bitmap result = new Bitmap();
+	for (final Bitmap bitmap : bitmaps)
+	    result.unite(bitmap);
+	return result;
+    }
+    
+    
+    /**
+     * Adds the picture indices of another bitmap to the bitmap, without sharing containers
+     * 
+     * @param  other  The other bitmap
+     */
+    private void unite(final Bitmap other)
+    {
+	if (this.keys.length < this.size + other.size)
+	{   this.keys = Arrays.copyOf(this.keys, this.size + other.size);
+	    this.containers = Arrays.copyOf(this.containers, this.size + other.size);
+	}
+	int i = 0;
+	for (int j = 0; j < other.size; j++)
+	{
+	    while ((i < this.size) && (this.keys[i] < other.keys[j]))
+		i++;
+	    if ((i < this.size) && (this.keys[i] == other.keys[j]))
+		this.containers[i] = this.containers[i].or(other.containers[j]);
+	    else
+	    {   System.arraycopy(this.keys, i, this.keys, i + 1, this.size - i);
+		System.arraycopy(this.containers, i, this.containers, i + 1, this.size - i);
+		this.keys[i] = other.keys[j];
+		this.containers[i] = other.containers[j].copy();
+		this.size++;
+	    }
+	    i++;
+	}
+    }
+    
+    
+    /**
+     * Gets the picture indices in the bitmap
+     * 
+     * @return  The picture indices, in ascending order
+     */
+    public int[] toArray()
+    {
+	final int[] array = new int[this.getCardinality()];
+	for (int i = 0, n = 0; i < this.size; n += this.containers[i++].cardinality)
+	    this.containers[i].copyTo(this.keys[i] << 16, array, n);
+	return array;
+    }
+    
+}
@@ -18,7 +18,9 @@
  */
 package wom;
 
+import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -82,12 +84,14 @@ public class Blackboard
      */
     public static Blackboard getInstance(final Object name)
     {
+        final Object key = name == null ? DEFAULT_NAME : name;
         Blackboard instance;
-        if ((instance = instances.get(name)) == null)
-            synchronized (instances)
-            {   if ((instance = instances.get(name)) == null)
-                    instances.put(name, instance = new Blackboard(name));
-            }
+        if ((instance = instances.get(key)) == null)
+        {
+            final Blackboard existing = instances.putIfAbsent(key, instance = new Blackboard(name));
+            if (existing != null)
+                instance = existing;
+        }
         return instance;
     }
     
@@ -95,13 +99,23 @@ public class Blackboard
     /**
      * The instance of this class
      */
-    private static final HashMap<Object, Blackboard> instances = new HashMap<>();
+    private static final ConcurrentHashMap<Object, Blackboard> instances = new ConcurrentHashMap<>();
+    
+    /**
+     * Key in {@link #instances} for the default instance, whose name is {@code null}
+     */
+    private static final Object DEFAULT_NAME = new Object();
     
     /**
      * The name (unique identifier) of the instance, {@code null} is default
      */
     private final Object name;
     
+    /**
+     * Timer that closes coalescing windows, created when first used
+     */
+    private static ScheduledExecutorService coalescingTimer = null;
+    
     
     
     /**
@@ -185,25 +199,76 @@ public class Blackboard
     
     
     /**
-     * Registrered observers
+     * Registrered observers, in registration order<br/>
+     * This, {@link #weakObservers}, {@link #observationThreading}, {@link #observationPriorities},
+     * {@link #coalescers} and {@link #mailboxes} are only accessed with {@link #monitor} held,
+     * broadcasting uses {@link #snapshot}. Weakly registered observers are held through their
+     * {@link WeakObserver}, and the maps keyed by observers have weak keys.
      */
-    private HashSet<BlackboardObserver> observers = new HashSet<>();
+    private LinkedHashSet<BlackboardObserver> observers = new LinkedHashSet<>();
     
     /**
      * How to thread message observations
      */
-    private HashMap<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy>> observationThreading = new HashMap<>();
+    private WeakHashMap<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy>> observationThreading = new WeakHashMap<>();
     
     /**
      * In which order should observers be notified
      */
-    private HashMap<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, Integer>> observationPriorities = new HashMap<>();
+    private WeakHashMap<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, Integer>> observationPriorities = new WeakHashMap<>();
+    
+    /**
+     * Weakly registered observers, and the references through which they are held
+     */
+    private WeakHashMap<BlackboardObserver, WeakObserver> weakObservers = new WeakHashMap<>();
+    
+    /**
+     * Queue of weakly registered observers that have been garbage collected
+     */
+    private final ReferenceQueue<BlackboardObserver> deadObservers = new ReferenceQueue<>();
+    
+    /**
+     * Message types that are coalesced, and their pending messages
+     */
+    private HashMap<Class<? extends BlackboardMessage>, Coalescer> coalescers = new HashMap<>();
+    
+    /**
+     * Serial mailboxes of observers that have one
+     */
+    private WeakHashMap<BlackboardObserver, Mailbox> mailboxes = new WeakHashMap<>();
+    
+    /**
+     * Instrumentation of the blackboard, {@code null} if disabled
+     */
+    private volatile BlackboardMetrics metrics = null;
     
     /**
-     * Concurrency monitor
+     * Ring-buffer channels, by message type
+     */
+    private final ConcurrentHashMap<Class<? extends BlackboardMessage>, RingChannel<?>> ringChannels = new ConcurrentHashMap<>();
+    
+    /**
+     * Immutable copy of the registrations, replaced on each registration change
+     */
+    private volatile Snapshot snapshot = new Snapshot(this);
+    
+    /**
+     * Concurrency monitor, serialises registration changes
      */
     private Object monitor = new Object();
     
+    /**
+     * The broadcasting state of each thread
+     */
+    private final ThreadLocal<Broadcasting> broadcasting = new ThreadLocal<Broadcasting>()
+            {   /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                protected Broadcasting initialValue()
+                {   return new Broadcasting();
+            }   };
+    
     
     
     /**
@@ -215,6 +280,21 @@ public class Blackboard
     }
     
     
+    /**
+     * Message that can be coalesced by a key of its own rather than by its class
+     */
+    public static interface CoalescableMessage extends BlackboardMessage
+    {
+        /**
+         * Gets the coalescing key of the message, messages of the same class
+         * and with equal keys supersede each other when coalesced
+         * 
+         * @return  The coalescing key, {@code null} to coalesce by class only
+         */
+        public Object getCoalescingKey();
+    }
+    
+    
     /**
      * Message broadcasted when a new observer is registrered or when a observer is unregistrered
      */
@@ -291,6 +371,22 @@ public class Blackboard
     }
     
     
+    /**
+     * Observers implementing this interface receive all messages that were
+     * collapsed into one by coalescing, rather than only the latest message
+     */
+    public static interface BatchObserver extends BlackboardObserver
+    {
+        /**
+         * This method is invoked instead of {@link #messageBroadcasted(BlackboardMessage)}
+         * when coalesced messages are pinned on the blackboard
+         * 
+         * @param  messages  The broadcasted messages, in broadcast order, the latest message last
+         */
+        public void messagesBroadcasted(final List<Blackboard.BlackboardMessage> messages);
+    }
+    
+    
     /**
      * Message observation threading policy
      */
@@ -306,152 +402,1294 @@ public class Blackboard
     }
     
     
-    
     /**
-     * Registers a message type-wide observer
-     *
-     * @param  observer  The observer to register
+     * Message observation threading policy that runs deliveries on
+     * shared worker threads instead of creating a thread per delivery
+     * 
+     * @see  ExecutorThreading
      */
-    public void registerObserver(final BlackboardObserver observer)
+    public static interface ExecutorThreadingPolicy extends ThreadingPolicy
     {
-        synchronized (this.monitor)
-        {
-            this.observers.add(observer);
-            this.broadcastMessage(new ObserverRegisterMessage(observer, true));
-        }
+        /**
+         * Runs a delivery according to the policy
+         * 
+         * @param   runnable  The delivery
+         * 
+         * @throws  java.util.concurrent.RejectedExecutionException  If the delivery is rejected by the policy
+         */
+        public void execute(final Runnable runnable);
     }
     
     
     /**
-     * Unregisters a message type-wide observer
-     *
-     * @param  observer  The observer to unregister
+     * What to do when a message is delivered to a full mailbox
      */
-    public void unregisterObserver(final BlackboardObserver observer)
+    public static enum MailboxOverflow
     {
-        synchronized (this.monitor)
-        {
-            this.observers.remove(observer);
-            this.observationThreading.remove(observer);
-            this.observationPriorities.remove(observer);
-            this.broadcastMessage(new ObserverRegisterMessage(observer, false));
-        }
+        /**
+         * Drop the oldest message in the mailbox
+         */
+        DROP_OLDEST,
+        
+        /**
+         * Block the broadcaster until there is room in the mailbox
+         */
+        BLOCK,
     }
     
     
+    
     /**
-     * Registers a threading policy for an observer and some message types.<br/>
-     * If a threading policy is registrered for an observer it will only receive message with a registrered threading policy.
-     * 
-     * @param  observer      The observer
-     * @param  policy        The threading policy
-     * @param  messageTypes  The message types, must be {@link Class}<code>&lt;? extends </code>{@link BlackboardMessage}<code>&gt;</code>
+     * A resolved delivery of a message type to an observer
      */
-    @SuppressWarnings("unchecked")
-    public void registerThreadingPolicy(final BlackboardObserver observer, final ThreadingPolicy policy, final Class<? extends BlackboardMessage>... messageTypes)
+    private static final class Dispatch
     {
-        synchronized (this.monitor)
+        /**
+         * Constructor
+         * 
+         * @param  observer  The observer
+         * @param  policy    The threading policy, {@code null} for no threading
+         * @param  mailbox   The observer's mailbox, {@code null} if none
+         * @param  priority  The priority of the observer for the message type
+         * @param  metrics   The blackboard's instrumentation, {@code null} if disabled
+         * @param  message   The statistics of the message type, {@code null} if metrics are disabled
+         */
+        Dispatch(final BlackboardObserver observer, final ThreadingPolicy policy, final Mailbox mailbox, final int priority,
+                 final BlackboardMetrics metrics, final BlackboardMetrics.MessageStatistics message)
         {
-            HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy> map = this.observationThreading.get(observer);
-            if (map == null)
+            if (metrics == null)
             {
-                map = new HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy>();
-                this.observationThreading.put(observer, map);
+                this.messageStatistics = null;
+                this.observerStatistics = null;
+                this.threadingStatistics = null;
             }
-            for (final Class<? extends BlackboardMessage> messageType : messageTypes)
-                map.put(messageType, policy);
+            else
+            {
+                final Object target = observer instanceof WeakObserver ? ((WeakObserver)observer).get() : observer;
+                this.messageStatistics = message;
+                this.observerStatistics = metrics.getStatistics(observer, String.valueOf(target));
+                this.threadingStatistics = metrics.getStatistics(policy);
+            }
+            this.observer = observer;
+            this.policy = policy;
+            this.mailbox = policy == null ? null : mailbox;
+            this.executor = policy instanceof ExecutorThreadingPolicy ? (ExecutorThreadingPolicy)policy : null;
+            if (observer instanceof WeakObserver)
+                this.batch = ((WeakObserver)observer).batch ? (BatchObserver)observer : null;
+            else
+                this.batch = observer instanceof BatchObserver ? (BatchObserver)observer : null;
+            this.priority = priority;
+        }
+        
+        
+        
+        /**
+         * The observer
+         */
+        final BlackboardObserver observer;
+        
+        /**
+         * The threading policy, {@code null} for no threading
+         */
+        final ThreadingPolicy policy;
+        
+        /**
+         * The threading policy if it is executor-backed, otherwise {@code null}
+         */
+        final ExecutorThreadingPolicy executor;
+        
+        /**
+         * The observer's mailbox, {@code null} if none or if the delivery is not threaded
+         */
+        final Mailbox mailbox;
+        
+        /**
+         * The observer if it receives coalesced messages in batches, otherwise {@code null}
+         */
+        final BatchObserver batch;
+        
+        /**
+         * The priority of the observer for the message type
+         */
+        final int priority;
+        
+        /**
+         * The statistics of the message type, {@code null} if metrics are disabled
+         */
+        final BlackboardMetrics.MessageStatistics messageStatistics;
+        
+        /**
+         * The statistics of the observer, {@code null} if metrics are disabled
+         */
+        final BlackboardMetrics.ObserverStatistics observerStatistics;
+        
+        /**
+         * The statistics of the threading policy, {@code null} if metrics are disabled or the delivery is not threaded
+         */
+        final BlackboardMetrics.ThreadingStatistics threadingStatistics;
+        
+        
+        
+        /**
+         * Counts a thread spawned, or a task executed, by the threading policy
+         */
+        void countThreading()
+        {
+            if (this.threadingStatistics != null)
+                if (this.executor == null)
+                    this.threadingStatistics.threads.increment();
+                else
+                    this.threadingStatistics.tasks.increment();
         }
     }
     
     
     /**
-     * Registers a priority for an observer and some message types
-     * 
-     * @param  observer      The observer
-     * @param  nice          The priority, zero is default, and positive is low priority (that is, executed later that negative)
-     * @param  messageTypes  The message types, must be {@link Class}<code>&lt;? extends </code>{@link BlackboardMessage}<code>&gt;</code>,
-     *                       you can used {@code null} to set a default for the observer
+     * The types, that are message types, a message type is an instance of, the most specific
+     * first: the type itself, then its superclass and interfaces, then theirs, and so on
      */
-    @SuppressWarnings("unchecked")
-    public void registerPriority(final BlackboardObserver observer, final int nice, final Class<? extends BlackboardMessage>... messageTypes)
+    private static final ClassValue<Class<?>[]> HIERARCHY = new ClassValue<Class<?>[]>()
+            {   /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                protected Class<?>[] computeValue(final Class<?> type)
+                {   final LinkedHashSet<Class<?>> hierarchy = new LinkedHashSet<>();
+                    final ArrayDeque<Class<?>> queue = new ArrayDeque<>();
+                    queue.offer(type);
+                    for (Class<?> next; (next = queue.poll()) != null;)
+                        if (BlackboardMessage.class.isAssignableFrom(next) && hierarchy.add(next))
+                        {   if (next.getSuperclass() != null)
+                                queue.offer(next.getSuperclass());
+                            for (final Class<?> interfaceType : next.getInterfaces())
+                                queue.offer(interfaceType);
+                        }
+                    return hierarchy.toArray(new Class<?>[hierarchy.size()]);
+            }   };
+    
+    
+    /**
+     * Orders dispatches by priority
+     */
+    private static final Comparator<Dispatch> PRIORITY_ORDER = new Comparator<Dispatch>()
+            {   /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public int compare(final Dispatch a, final Dispatch b)
+                {   return Integer.compare(a.priority, b.priority);
+            }   };
+    
+    
+    /**
+     * Threaded delivery of a message to an observer
+     */
+    private static final class Delivery implements Runnable
     {
-        synchronized (this.monitor)
+        /**
+         * Constructor
+         * 
+         * @param  dispatch     The dispatch of the message
+         * @param  item         The message, or the list of coalesced messages for a {@link BatchObserver}
+         * @param  broadcasted  When the message was broadcasted, by {@link System#nanoTime()}, if metrics are enabled
+         */
+        Delivery(final Dispatch dispatch, final Object item, final long broadcasted)
         {
-            HashMap<Class<? extends BlackboardMessage>, Integer> map = this.observationPriorities.get(observer);
-            if (map == null)
-            {
-                map = new HashMap<Class<? extends BlackboardMessage>, Integer>();
-                this.observationPriorities.put(observer, map);
-            }
-            for (final Class<? extends BlackboardMessage> messageType : messageTypes)
-                map.put(messageType, Integer.valueOf(nice));
+            this.dispatch = dispatch;
+            this.item = item;
+            this.broadcasted = broadcasted;
+        }
+        
+        
+        
+        /**
+         * The dispatch of the message
+         */
+        private final Dispatch dispatch;
+        
+        /**
+         * The message, or the list of coalesced messages for a {@link BatchObserver}
+         */
+        private final Object item;
+        
+        /**
+         * When the message was broadcasted, by {@link System#nanoTime()}, if metrics are enabled
+         */
+        private final long broadcasted;
+        
+        
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {   deliverItem(this.dispatch, this.item, this.broadcasted);
         }
     }
     
     
     /**
-     * Broadcasts a message to all observers
-     * 
-     * @param  message  The message to broadcast
+     * Reference through which a weakly registered observer is held
      */
-    public void broadcastMessage(final BlackboardMessage message)
+    private static final class WeakObserver extends WeakReference<BlackboardObserver> implements BatchObserver
     {
-        synchronized (this.monitor)
+        /**
+         * Constructor
+         * 
+         * @param  observer  The observer
+         * @param  queue     The queue to put the reference in when the observer has been garbage collected
+         */
+        WeakObserver(final BlackboardObserver observer, final ReferenceQueue<BlackboardObserver> queue)
         {
-            final PriorityQueue<Integer> priorities = new PriorityQueue<Integer>();
-            final HashMap<Integer, Vector<BlackboardObserver>> prioObservers = new HashMap<>();
-            final HashSet<Integer> regdPrioes = new HashSet<Integer>();
-            
-            for (final BlackboardObserver observer : this.observers)
-            {
-                final HashMap<Class<? extends BlackboardMessage>, Integer> map = this.observationPriorities.get(observer);
-                Integer priority = Integer.valueOf(0);
-                if (map != null)
-                {
-                    Integer tmp;
-                    if      ((tmp = map.get(message.getClass())) != null)  priority = tmp;
-                    else if ((tmp = map.get(null)) != null)                priority = tmp;
-                }
-                if (regdPrioes.contains(priority) == false)
-                {
-                    priorities.add(priority);
-                    regdPrioes.add(priority);
-                }
-                Vector<BlackboardObserver> vector = prioObservers.get(priority);
-                if (vector == null)
-                    prioObservers.put(priority, vector = new Vector<BlackboardObserver>());
-                vector.add(observer);
-            }
-            
-            for (Integer priority; (priority = priorities.poll()) != null;) // iterator messes up order
-                for (final BlackboardObserver observer : prioObservers.get(priority))
-                {
-                    final ThreadingPolicy policy;
-                    final Runnable runnable = new Runnable()
-                            {
-                                /**
-                                 * {@inheritDoc}
-                                 */
-                                @Override
-                                public void run()
-                                {   observer.messageBroadcasted(message);
-                                }
-                            };
-		    
-                    final HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy> map = this.observationThreading.get(observer);
-		    
-                    if (map == null)
-                        policy = null;
-                    else if (map.containsKey(message.getClass()))
-                        policy = map.get(message.getClass());
-                    else
-			continue;
-		    
-                    if (policy == null)  runnable.run();
-                    else                 policy.createThread(runnable).start();
-                }
+            super(observer, queue);
+            this.batch = observer instanceof BatchObserver;
+        }
+        
+        
+        
+        /**
+         * Whether the observer is a {@link BatchObserver}
+         */
+        final boolean batch;
+        
+        
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void messageBroadcasted(final BlackboardMessage message)
+        {
+            final BlackboardObserver observer = this.get();
+            if (observer != null)
+                observer.messageBroadcasted(message);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void messagesBroadcasted(final List<BlackboardMessage> messages)
+        {
+            final BlackboardObserver observer = this.get();
+            if (observer != null)
+                ((BatchObserver)observer).messagesBroadcasted(messages);
         }
     }
     
-}
-
+    
+    /**
+     * Serial mailbox of an observer, messages are delivered one at a time, in the
+     * order they were posted, by a thread started by the threading policy of the
+     * message that was posted when the mailbox was idle
+     */
+    private static final class Mailbox implements Runnable
+    {
+        /**
+         * Constructor
+         * 
+         * @param  capacity  The maximum number of messages in the mailbox
+         * @param  overflow  What to do when a message is posted to a full mailbox
+         */
+        Mailbox(final int capacity, final MailboxOverflow overflow)
+        {
+            this.capacity = capacity;
+            this.overflow = overflow;
+        }
+        
+        
+        
+        /**
+         * The maximum number of messages in the mailbox
+         */
+        private final int capacity;
+        
+        /**
+         * What to do when a message is posted to a full mailbox
+         */
+        private final MailboxOverflow overflow;
+        
+        /**
+         * Deliveries waiting to be made, the mailbox does not reference
+         * the observer itself so that it can be weakly registered
+         */
+        private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+        
+        /**
+         * The thread delivering messages, {@code null} if the mailbox is idle
+         */
+        private Thread drainer = null;
+        
+        /**
+         * Whether a thread has been requested for delivering messages
+         */
+        private boolean draining = false;
+        
+        /**
+         * The largest number of messages the mailbox has held
+         */
+        int peakDepth = 0;
+        
+        /**
+         * The number of messages dropped because the mailbox was full
+         */
+        long dropped = 0;
+        
+        
+        
+        /**
+         * Gets the number of messages waiting for delivery
+         * 
+         * @return  The number of messages waiting for delivery
+         */
+        synchronized int getDepth()
+        {
+            return this.queue.size();
+        }
+        
+        
+        /**
+         * Posts a message to the mailbox
+         * 
+         * @param  item         The message, or the list of coalesced messages for a {@link BatchObserver}
+         * @param  dispatch     The dispatch of the message, its threading policy is used if the mailbox is idle
+         * @param  broadcasted  When the message was broadcasted, by {@link System#nanoTime()}, if metrics are enabled
+         */
+        void post(final Object item, final Dispatch dispatch, final long broadcasted)
+        {
+            synchronized (this)
+            {
+                while (this.queue.size() >= this.capacity)
+                    if ((this.overflow == MailboxOverflow.DROP_OLDEST) || (this.drainer == Thread.currentThread()))
+                    {
+                        this.queue.poll();
+                        this.dropped++;
+                    }
+                    else
+                        try
+                        {   this.wait();
+                        }
+                        catch (final InterruptedException err)
+                        {   Thread.currentThread().interrupt();
+                            this.dropped++;
+                            return;
+                        }
+                
+                this.queue.offer(new Delivery(dispatch, item, broadcasted));
+                if (this.peakDepth < this.queue.size())
+                    this.peakDepth = this.queue.size();
+                if (this.draining)
+                    return;
+                this.draining = true;
+            }
+            
+            try
+            {   dispatch.countThreading();
+                if (dispatch.executor != null)
+                    dispatch.executor.execute(this);
+                else
+                    dispatch.policy.createThread(this).start();
+            }
+            catch (final RuntimeException err)
+            {   synchronized (this)
+                {   this.draining = false;
+                }
+                throw err;
+            }
+        }
+        
+        
+        /**
+         * Delivers messages until the mailbox is empty
+         */
+        @Override
+        public void run()
+        {
+            synchronized (this)
+            {   this.drainer = Thread.currentThread();
+            }
+            for (;;)
+            {
+                final Delivery delivery;
+                synchronized (this)
+                {
+                    if ((delivery = this.queue.poll()) == null)
+                    {
+                        this.drainer = null;
+                        this.draining = false;
+                        return;
+                    }
+                    this.notifyAll();
+                }
+                try
+                {   delivery.run();
+                }
+                catch (final Throwable err)
+                {   err.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+    
+    
+    
+    /**
+     * Immutable registration state, and the dispatch plans derived from it
+     */
+    private static final class Snapshot
+    {
+        /**
+         * Constructor, must be called with the blackboard's monitor held
+         * 
+         * @param  blackboard  The blackboard whose registrations should be copied
+         */
+        Snapshot(final Blackboard blackboard)
+        {
+            this.observers = blackboard.observers.toArray(new BlackboardObserver[blackboard.observers.size()]);
+            
+            for (final Map.Entry<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy>> entry
+                     : blackboard.observationThreading.entrySet())
+                this.threading.put(blackboard.registered(entry.getKey()), new HashMap<>(entry.getValue()));
+            
+            for (final Map.Entry<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, Integer>> entry
+                     : blackboard.observationPriorities.entrySet())
+                this.priorities.put(blackboard.registered(entry.getKey()), new HashMap<>(entry.getValue()));
+            
+            for (final Map.Entry<BlackboardObserver, Mailbox> entry : blackboard.mailboxes.entrySet())
+                this.mailboxes.put(blackboard.registered(entry.getKey()), entry.getValue());
+            
+            this.coalescers.putAll(blackboard.coalescers);
+            this.metrics = blackboard.metrics;
+        }
+        
+        
+        
+        /**
+         * Registrered observers, in registration order, weakly registered observers are
+         * represented by their {@link WeakObserver}, and so are they in the maps
+         */
+        final BlackboardObserver[] observers;
+        
+        /**
+         * How to thread message observations
+         */
+        final HashMap<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy>> threading = new HashMap<>();
+        
+        /**
+         * In which order should observers be notified
+         */
+        final HashMap<BlackboardObserver, HashMap<Class<? extends BlackboardMessage>, Integer>> priorities = new HashMap<>();
+        
+        /**
+         * Message types that are coalesced, and their pending messages
+         */
+        final HashMap<Class<? extends BlackboardMessage>, Coalescer> coalescers = new HashMap<>();
+        
+        /**
+         * Serial mailboxes of observers that have one
+         */
+        final HashMap<BlackboardObserver, Mailbox> mailboxes = new HashMap<>();
+        
+        /**
+         * Instrumentation of the blackboard, {@code null} if disabled
+         */
+        final BlackboardMetrics metrics;
+        
+        /**
+         * Dispatch plans for the message types that have been broadcasted since the snapshot
+         * was published, they are not carried over to the next snapshot so that message
+         * types that are no longer broadcasted, and their class loaders, can be unloaded
+         */
+        final ConcurrentHashMap<Class<? extends BlackboardMessage>, Plan> plans = new ConcurrentHashMap<>();
+        
+        
+        
+        /**
+         * Gets, and if missing, creates, the dispatch plan for a message type
+         * 
+         * @param   messageType  The message type
+         * @return               The dispatch plan
+         */
+        Plan getPlan(final Class<? extends BlackboardMessage> messageType)
+        {
+            Plan plan = this.plans.get(messageType);
+            if (plan == null)
+            {
+                final Plan existing = this.plans.putIfAbsent(messageType, plan = this.createPlan(messageType));
+                if (existing != null)
+                    plan = existing;
+            }
+            return plan;
+        }
+        
+        
+        /**
+         * Creates the dispatch plan for a message type, that is, the observers that
+         * should receive the message type, in order, and how to thread the delivery
+         * 
+         * @param   messageType  The message type
+         * @return               The dispatch plan
+         */
+        private Plan createPlan(final Class<? extends BlackboardMessage> messageType)
+        {
+            final ArrayList<Dispatch> plan = new ArrayList<>();
+            final BlackboardMetrics.MessageStatistics statistics = this.metrics == null ? null : this.metrics.getStatistics(messageType);
+            
+            final Class<?>[] hierarchy = HIERARCHY.get(messageType);
+            
+            for (final BlackboardObserver observer : this.observers)
+            {
+                final HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy> threading = this.threading.get(observer);
+                final ThreadingPolicy policy;
+                if (threading == null)
+                    policy = null;
+                else
+                {
+                    final Class<?> match = findMostSpecific(threading, hierarchy);
+                    if (match == null)
+                        continue;
+                    policy = threading.get(match);
+                }
+                
+                final HashMap<Class<? extends BlackboardMessage>, Integer> priorities = this.priorities.get(observer);
+                int priority = 0;
+                if (priorities != null)
+                {
+                    final Class<?> match = findMostSpecific(priorities, hierarchy);
+                    final Integer tmp = priorities.get(match); /* the observer's default if no match */
+                    if (tmp != null)
+                        priority = tmp.intValue();
+                }
+                
+                plan.add(new Dispatch(observer, policy, this.mailboxes.get(observer), priority, this.metrics, statistics));
+            }
+            
+            final Class<?> coalesced = findMostSpecific(this.coalescers, hierarchy);
+            final Dispatch[] rc = plan.toArray(new Dispatch[plan.size()]);
+            Arrays.sort(rc, PRIORITY_ORDER); /* stable, so registration order is kept within a priority */
+            return new Plan(rc, coalesced == null ? null : this.coalescers.get(coalesced), statistics);
+        }
+        
+        
+        /**
+         * Finds the most specific type in a message type's hierarchy that is a key in a map
+         * 
+         * @param   map        The map
+         * @param   hierarchy  The message type's hierarchy, as returned by {@link #HIERARCHY}
+         * @return             The most specific type in the map, {@code null} if none is
+         */
+        private static Class<?> findMostSpecific(final Map<?, ?> map, final Class<?>[] hierarchy)
+        {
+            for (final Class<?> type : hierarchy)
+                if (map.containsKey(type))
+                    return type;
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Dispatch plan for a message type
+     */
+    private static final class Plan
+    {
+        /**
+         * Constructor
+         * 
+         * @param  dispatches  The observers that should receive the message type, in order
+         * @param  coalescer   The coalescer for the message type, {@code null} if not coalesced
+         * @param  statistics  The statistics of the message type, {@code null} if metrics are disabled
+         */
+        Plan(final Dispatch[] dispatches, final Coalescer coalescer, final BlackboardMetrics.MessageStatistics statistics)
+        {
+            this.dispatches = dispatches;
+            this.coalescer = coalescer;
+            this.statistics = statistics;
+        }
+        
+        
+        
+        /**
+         * The observers that should receive the message type, in order
+         */
+        final Dispatch[] dispatches;
+        
+        /**
+         * The coalescer for the message type, {@code null} if not coalesced
+         */
+        final Coalescer coalescer;
+        
+        /**
+         * The statistics of the message type, {@code null} if metrics are disabled
+         */
+        final BlackboardMetrics.MessageStatistics statistics;
+    }
+    
+    
+    /**
+     * Collects coalesced messages of a message type during a window and delivers them when it closes
+     */
+    private final class Coalescer implements Runnable
+    {
+        /**
+         * Constructor
+         * 
+         * @param  window  The length of the window, in nanoseconds
+         */
+        Coalescer(final long window)
+        {
+            this.window = window;
+        }
+        
+        
+        
+        /**
+         * The length of the window, in nanoseconds
+         */
+        final long window;
+        
+        /**
+         * Messages received during the current window, by coalescing key, in order of first broadcast
+         */
+        private LinkedHashMap<Object, ArrayList<BlackboardMessage>> pending = new LinkedHashMap<>();
+        
+        
+        
+        /**
+         * Adds a message to the current window, and opens a window if none is open
+         * 
+         * @param  message  The message
+         */
+        void add(final BlackboardMessage message)
+        {
+            final Object messageKey = message instanceof CoalescableMessage ? ((CoalescableMessage)message).getCoalescingKey() : null;
+            final Object key = messageKey == null ? message.getClass()
+                             : new AbstractMap.SimpleImmutableEntry<Object, Object>(message.getClass(), messageKey);
+            
+            synchronized (this)
+            {
+                final boolean open = this.pending.isEmpty() == false;
+                ArrayList<BlackboardMessage> messages = this.pending.get(key);
+                if (messages == null)
+                    this.pending.put(key, messages = new ArrayList<>());
+                messages.add(message);
+                if (open == false)
+                    getCoalescingTimer().schedule(this, this.window, TimeUnit.NANOSECONDS);
+            }
+        }
+        
+        
+        /**
+         * Closes the window, and delivers its messages
+         */
+        @Override
+        public void run()
+        {
+            final LinkedHashMap<Object, ArrayList<BlackboardMessage>> pending;
+            synchronized (this)
+            {
+                pending = this.pending;
+                this.pending = new LinkedHashMap<>();
+            }
+            
+            for (final ArrayList<BlackboardMessage> messages : pending.values())
+                try
+                {   Blackboard.this.broadcastBatch(Collections.unmodifiableList(messages));
+                }
+                catch (final Throwable err)
+                {   err.printStackTrace(System.err);
+                }
+        }
+    }
+    
+    
+    /**
+     * The broadcasting state of a thread
+     */
+    private static final class Broadcasting
+    {
+        /**
+         * Whether the thread is delivering a message
+         */
+        boolean active = false;
+        
+        /**
+         * Messages broadcasted by observers, in the thread, during delivery
+         */
+        final ArrayDeque<BlackboardMessage> pending = new ArrayDeque<>();
+    }
+    
+    
+    
+    /**
+     * Registers a message type-wide observer
+     *
+     * @param  observer  The observer to register
+     */
+    public void registerObserver(final BlackboardObserver observer)
+    {
+        synchronized (this.monitor)
+        {
+            final WeakObserver weak = this.weakObservers.remove(observer);
+            if (weak != null)
+                this.observers.remove(weak);
+            this.observers.add(observer);
+            this.publish();
+        }
+        this.broadcastMessage(new ObserverRegisterMessage(observer, true));
+    }
+    
+    
+    /**
+     * Registers a message type-wide observer without keeping a strong reference to
+     * it; when the observer is garbage collected it is unregistered automatically
+     *
+     * @param  observer  The observer to register
+     */
+    public void registerWeakObserver(final BlackboardObserver observer)
+    {
+        synchronized (this.monitor)
+        {
+            if (this.weakObservers.containsKey(observer))
+                return;
+            this.observers.remove(observer);
+            final WeakObserver weak = new WeakObserver(observer, this.deadObservers);
+            this.weakObservers.put(observer, weak);
+            this.observers.add(weak);
+            this.publish();
+        }
+        this.broadcastMessage(new ObserverRegisterMessage(observer, true));
+    }
+    
+    
+    /**
+     * Unregisters a message type-wide observer
+     *
+     * @param  observer  The observer to unregister
+     */
+    public void unregisterObserver(final BlackboardObserver observer)
+    {
+        synchronized (this.monitor)
+        {
+            final WeakObserver weak = this.weakObservers.remove(observer);
+            this.observers.remove(weak == null ? observer : weak);
+            this.observationThreading.remove(observer);
+            this.observationPriorities.remove(observer);
+            this.mailboxes.remove(observer);
+            this.publish();
+        }
+        this.broadcastMessage(new ObserverRegisterMessage(observer, false));
+    }
+    
+    
+    /**
+     * Registers a threading policy for an observer and some message types.<br/>
+     * If a threading policy is registrered for an observer it will only receive message with a registrered threading policy.<br/>
+     * A registration for a class or interface applies to all message types that extend or implement it,
+     * unless a more specific type is registered.
+     * 
+     * @param  observer      The observer
+     * @param  policy        The threading policy
+     * @param  messageTypes  The message types, must be {@link Class}<code>&lt;? extends </code>{@link BlackboardMessage}<code>&gt;</code>
+     */
+    @SuppressWarnings("unchecked")
+    public void registerThreadingPolicy(final BlackboardObserver observer, final ThreadingPolicy policy, final Class<? extends BlackboardMessage>... messageTypes)
+    {
+        synchronized (this.monitor)
+        {
+            HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy> map = this.observationThreading.get(observer);
+            if (map == null)
+            {
+                map = new HashMap<Class<? extends BlackboardMessage>, ThreadingPolicy>();
+                this.observationThreading.put(observer, map);
+            }
+            for (final Class<? extends BlackboardMessage> messageType : messageTypes)
+                map.put(messageType, policy);
+            this.publish();
+        }
+    }
+    
+    
+    /**
+     * Registers a priority for an observer and some message types<br/>
+     * A registration for a class or interface applies to all message types that extend or implement it,
+     * unless a more specific type is registered.
+     * 
+     * @param  observer      The observer
+     * @param  nice          The priority, zero is default, and positive is low priority (that is, executed later that negative)
+     * @param  messageTypes  The message types, must be {@link Class}<code>&lt;? extends </code>{@link BlackboardMessage}<code>&gt;</code>,
+     *                       you can used {@code null} to set a default for the observer
+     */
+    @SuppressWarnings("unchecked")
+    public void registerPriority(final BlackboardObserver observer, final int nice, final Class<? extends BlackboardMessage>... messageTypes)
+    {
+        synchronized (this.monitor)
+        {
+            HashMap<Class<? extends BlackboardMessage>, Integer> map = this.observationPriorities.get(observer);
+            if (map == null)
+            {
+                map = new HashMap<Class<? extends BlackboardMessage>, Integer>();
+                this.observationPriorities.put(observer, map);
+            }
+            for (final Class<? extends BlackboardMessage> messageType : messageTypes)
+                map.put(messageType, Integer.valueOf(nice));
+            this.publish();
+        }
+    }
+    
+    
+    /**
+     * Gives an observer a serial mailbox. Messages delivered to the observer with a threading
+     * policy are then delivered one at a time, in the order they were broadcasted, by a single
+     * thread at a time; the observer does not need any locking of its own. Messages without
+     * a threading policy are still delivered directly by the broadcaster.
+     * 
+     * @param  observer  The observer
+     * @param  capacity  The maximum number of messages waiting in the mailbox
+     * @param  overflow  What to do when a message is delivered to a full mailbox; if the observer
+     *                   itself broadcasts a message to its full mailbox the oldest message is dropped
+     */
+    public void registerMailbox(final BlackboardObserver observer, final int capacity, final MailboxOverflow overflow)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Mailbox capacity must be positive");
+        synchronized (this.monitor)
+        {
+            this.mailboxes.put(observer, new Mailbox(capacity, overflow));
+            this.publish();
+        }
+    }
+    
+    
+    /**
+     * Removes an observer's serial mailbox, messages in it are still delivered
+     * 
+     * @param  observer  The observer
+     */
+    public void unregisterMailbox(final BlackboardObserver observer)
+    {
+        synchronized (this.monitor)
+        {
+            this.mailboxes.remove(observer);
+            this.publish();
+        }
+    }
+    
+    
+    /**
+     * Gets an observer's mailbox
+     * 
+     * @param   observer  The observer
+     * @return            The observer's mailbox, {@code null} if it has none
+     */
+    private Mailbox getMailbox(final BlackboardObserver observer)
+    {
+        synchronized (this.monitor)
+        {   return this.mailboxes.get(observer);
+        }
+    }
+    
+    
+    /**
+     * Gets the number of messages waiting in an observer's mailbox
+     * 
+     * @param   observer  The observer
+     * @return            The number of messages waiting in the mailbox, -1 if the observer has no mailbox
+     */
+    public int getMailboxDepth(final BlackboardObserver observer)
+    {
+        final Mailbox mailbox = this.getMailbox(observer);
+        return mailbox == null ? -1 : mailbox.getDepth();
+    }
+    
+    
+    /**
+     * Gets the largest number of messages that have been waiting in an observer's mailbox
+     * 
+     * @param   observer  The observer
+     * @return            The largest depth of the mailbox, -1 if the observer has no mailbox
+     */
+    public int getMailboxPeakDepth(final BlackboardObserver observer)
+    {
+        final Mailbox mailbox = this.getMailbox(observer);
+        if (mailbox == null)
+            return -1;
+        synchronized (mailbox)
+        {   return mailbox.peakDepth;
+        }
+    }
+    
+    
+    /**
+     * Gets the number of messages dropped because an observer's mailbox was full
+     * 
+     * @param   observer  The observer
+     * @return            The number of dropped messages, -1 if the observer has no mailbox
+     */
+    public long getMailboxDropCount(final BlackboardObserver observer)
+    {
+        final Mailbox mailbox = this.getMailbox(observer);
+        if (mailbox == null)
+            return -1;
+        synchronized (mailbox)
+        {   return mailbox.dropped;
+        }
+    }
+    
+    
+    /**
+     * Makes messages of some types coalesced. When a coalesced message is broadcasted
+     * a window is opened, if none is open, and when it closes, all messages received
+     * during the window are delivered, by the coalescing timer's thread. A registration
+     * for a class or interface applies to all message types that extend or implement it,
+     * but each concrete message type is coalesced separately. Messages of the same type
+     * supersede each other, unless they are {@link CoalescableMessage}s
+     * with different keys. Observers receive the latest message of each key, or, if
+     * they are {@link BatchObserver}s, all the messages.
+     * 
+     * @param  window        The length of the window, e.g. the length of a frame
+     * @param  unit          The unit of {@code window}
+     * @param  messageTypes  The message types, must be {@link Class}<code>&lt;? extends </code>{@link BlackboardMessage}<code>&gt;</code>
+     */
+    @SuppressWarnings("unchecked")
+    public void registerCoalescing(final long window, final TimeUnit unit, final Class<? extends BlackboardMessage>... messageTypes)
+    {
+        synchronized (this.monitor)
+        {
+            for (final Class<? extends BlackboardMessage> messageType : messageTypes)
+                this.coalescers.put(messageType, new Coalescer(unit.toNanos(window)));
+            this.publish();
+        }
+    }
+    
+    
+    /**
+     * Makes messages of some types no longer coalesced, messages in open windows are still delivered
+     * 
+     * @param  messageTypes  The message types, must be {@link Class}<code>&lt;? extends </code>{@link BlackboardMessage}<code>&gt;</code>
+     */
+    @SuppressWarnings("unchecked")
+    public void unregisterCoalescing(final Class<? extends BlackboardMessage>... messageTypes)
+    {
+        synchronized (this.monitor)
+        {
+            for (final Class<? extends BlackboardMessage> messageType : messageTypes)
+                this.coalescers.remove(messageType);
+            this.publish();
+        }
+    }
+    
+    
+    /**
+     * Gets, and if missing, creates, the timer that closes coalescing windows
+     * 
+     * @return  The timer that closes coalescing windows
+     */
+    private static synchronized ScheduledExecutorService getCoalescingTimer()
+    {
+        if (coalescingTimer == null)
+            coalescingTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                    {   /**
+                         * {@inheritDoc}
+                         */
+                        @Override
+                        public Thread newThread(final Runnable runnable)
+                        {   final Thread thread = new Thread(runnable, "blackboard-coalescing");
+                            thread.setDaemon(true);
+                            return thread;
+                    }   });
+        return coalescingTimer;
+    }
+    
+    
+    /**
+     * Enables instrumentation of the blackboard and registers it as an MBean,
+     * if it is not already enabled. Instrumentation adds two clock reads per
+     * delivery and one per broadcast, and nothing when it is disabled.
+     * 
+     * @return  The instrumentation of the blackboard
+     */
+    public BlackboardMetrics enableMetrics()
+    {
+        synchronized (this.monitor)
+        {
+            if (this.metrics == null)
+            {
+                this.metrics = new BlackboardMetrics(this.name);
+                this.metrics.registerMBean();
+                this.publish();
+            }
+            return this.metrics;
+        }
+    }
+    
+    
+    /**
+     * Disables instrumentation of the blackboard and unregisters its MBean
+     */
+    public void disableMetrics()
+    {
+        synchronized (this.monitor)
+        {
+            if (this.metrics != null)
+            {
+                this.metrics.unregisterMBean();
+                this.metrics = null;
+                this.publish();
+            }
+        }
+    }
+    
+    
+    /**
+     * Gets the instrumentation of the blackboard
+     * 
+     * @return  The instrumentation of the blackboard, {@code null} if disabled
+     */
+    public BlackboardMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+    
+    
+    /**
+     * Gets, and if missing, creates, the ring-buffer channel for a message type.
+     * Messages published on the channel are only delivered to its subscribers,
+     * not to the observers registered on the blackboard itself.
+     * 
+     * @param   <T>          The message type
+     * @param   messageType  The message type
+     * @param   size         The number of slots in the ring, if it is created, must be a power of two
+     * @param   factory      Creates the reusable messages, if the ring is created
+     * @return               The, possibily, new channel
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends BlackboardMessage> RingChannel<T> getRingChannel(final Class<T> messageType, final int size,
+                                                                        final RingChannel.SlotFactory<T> factory)
+    {
+        RingChannel<?> channel;
+        if ((channel = this.ringChannels.get(messageType)) == null)
+            synchronized (this.ringChannels)
+            {   if ((channel = this.ringChannels.get(messageType)) == null)
+                    this.ringChannels.put(messageType, channel = new RingChannel<T>(size, factory));
+            }
+        return (RingChannel<T>)channel;
+    }
+    
+    
+    /**
+     * Gets the object an observer is registered as, must be called with {@link #monitor} held
+     * 
+     * @param   observer  The observer
+     * @return            The observer's {@link WeakObserver} if it is weakly registered, otherwise the observer
+     */
+    private BlackboardObserver registered(final BlackboardObserver observer)
+    {
+        final WeakObserver weak = this.weakObservers.get(observer);
+        return weak == null ? observer : weak;
+    }
+    
+    
+    /**
+     * Unregisters weakly registered observers that have been garbage collected
+     */
+    private void expungeObservers()
+    {
+        Reference<? extends BlackboardObserver> dead = this.deadObservers.poll();
+        if (dead == null)
+            return;
+        synchronized (this.monitor)
+        {
+            for (; dead != null; dead = this.deadObservers.poll())
+                this.observers.remove(dead);
+            this.publish();
+        }
+    }
+    
+    
+    /**
+     * Publishes a new snapshot of the registrations, must be called with {@link #monitor} held
+     */
+    private void publish()
+    {
+        this.snapshot = new Snapshot(this);
+    }
+    
+    
+    /**
+     * Broadcasts a message to all observers<br/>
+     * Broadcasting does not lock the blackboard, and registration changes do not wait
+     * for ongoing broadcasts. Each message is delivered according to the registrations
+     * at the time its delivery starts. If an observer broadcasts a message, the message
+     * is delivered, by the same thread, when the current message has been delivered to
+     * all observers, and before this method returns; so observers always receive
+     * messages broadcasted in a thread in the order they were broadcasted.
+     * If an observer throws, the messages broadcasted during the delivery are still
+     * delivered before the exception is rethrown, with any later failures suppressed.
+     * 
+     * @param  message  The message to broadcast
+     */
+    public void broadcastMessage(final BlackboardMessage message)
+    {
+        final Broadcasting broadcasting = this.broadcasting.get();
+        if (broadcasting.active)
+        {
+            broadcasting.pending.offer(message);
+            return;
+        }
+        
+        this.expungeObservers();
+        
+        broadcasting.active = true;
+        try
+        {
+            for (BlackboardMessage next = message; next != null; next = broadcasting.pending.poll())
+                this.deliver(next);
+        }
+        catch (final RuntimeException | Error err)
+        {
+            /* Messages broadcasted by observers during the delivery are still delivered,
+             * as they would have been before the failing observer was notified */
+            for (BlackboardMessage next; (next = broadcasting.pending.poll()) != null;)
+                try
+                {   this.deliver(next);
+                }
+                catch (final RuntimeException | Error suppressed)
+                {   err.addSuppressed(suppressed);
+                }
+            throw err;
+        }
+        finally
+        {
+            broadcasting.active = false;
+            broadcasting.pending.clear();
+        }
+    }
+    
+    
+    /**
+     * Delivers a message to all observers, or adds it to its coalescing window
+     * 
+     * @param  message  The message to deliver
+     */
+    private void deliver(final BlackboardMessage message)
+    {
+        final Plan plan = this.snapshot.getPlan(message.getClass());
+        
+        if (plan.coalescer != null)
+            plan.coalescer.add(message);
+        else if (plan.statistics != null)
+        {
+            final long broadcasted = System.nanoTime();
+            plan.statistics.recordBroadcast(plan.dispatches.length);
+            for (final Dispatch dispatch : plan.dispatches)
+                dispatch(dispatch, message, broadcasted);
+        }
+        else
+            for (final Dispatch dispatch : plan.dispatches)
+                if (dispatch.policy == null)
+                    dispatch.observer.messageBroadcasted(message);
+                else
+                    dispatch(dispatch, message, 0);
+    }
+    
+    
+    /**
+     * Delivers a message, or a batch, to an observer using its threading policy
+     * 
+     * @param  dispatch     The dispatch of the message
+     * @param  item         The message, or the list of coalesced messages for a {@link BatchObserver}
+     * @param  broadcasted  When the message was broadcasted, by {@link System#nanoTime()}, if metrics are enabled
+     */
+    private static void dispatch(final Dispatch dispatch, final Object item, final long broadcasted)
+    {
+        if (dispatch.policy == null)
+            deliverItem(dispatch, item, broadcasted);
+        else if (dispatch.mailbox != null)
+            dispatch.mailbox.post(item, dispatch, broadcasted);
+        else
+        {
+            dispatch.countThreading();
+            if (dispatch.executor != null)
+                dispatch.executor.execute(new Delivery(dispatch, item, broadcasted));
+            else
+                dispatch.policy.createThread(new Delivery(dispatch, item, broadcasted)).start();
+        }
+    }
+    
+    
+    /**
+     * Delivers a message, or a batch, to an observer in the current thread, and records its statistics
+     * 
+     * @param  dispatch     The dispatch of the message
+     * @param  item         The message, or the list of coalesced messages for a {@link BatchObserver}
+     * @param  broadcasted  When the message was broadcasted, by {@link System#nanoTime()}, if metrics are enabled
+     */
+    private static void deliverItem(final Dispatch dispatch, final Object item, final long broadcasted)
+    {
+        if (dispatch.observerStatistics == null)
+        {
+            deliverItem(dispatch.observer, item);
+            return;
+        }
+        
+        final long start = System.nanoTime();
+        try
+        {   deliverItem(dispatch.observer, item);
+        }
+        finally
+        {   final long end = System.nanoTime();
+            dispatch.observerStatistics.callbacks.record(end - start);
+            dispatch.messageStatistics.latency.record(end - broadcasted);
+        }
+    }
+    
+    
+    /**
+     * Delivers a message, or a batch, to an observer in the current thread
+     * 
+     * @param  observer  The observer
+     * @param  item      The message, or the list of coalesced messages for a {@link BatchObserver}
+     */
+    @SuppressWarnings("unchecked")
+    private static void deliverItem(final BlackboardObserver observer, final Object item)
+    {
+        if (item instanceof BlackboardMessage)
+            observer.messageBroadcasted((BlackboardMessage)item);
+        else
+            ((BatchObserver)observer).messagesBroadcasted((List<BlackboardMessage>)item);
+    }
+    
+    
+    /**
+     * Delivers coalesced messages to all observers
+     * 
+     * @param  messages  The messages, all of the same type and with the same coalescing key
+     */
+    private void broadcastBatch(final List<BlackboardMessage> messages)
+    {
+        final Broadcasting broadcasting = this.broadcasting.get();
+        final BlackboardMessage latest = messages.get(messages.size() - 1);
+        
+        broadcasting.active = true;
+        try
+        {
+            final Plan plan = this.snapshot.getPlan(latest.getClass());
+            final long broadcasted = plan.statistics == null ? 0 : System.nanoTime();
+            if (plan.statistics != null)
+                plan.statistics.recordBroadcast(plan.dispatches.length);
+            for (final Dispatch dispatch : plan.dispatches)
+                dispatch(dispatch, dispatch.batch == null ? latest : messages, broadcasted);
+            
+            for (BlackboardMessage next; (next = broadcasting.pending.poll()) != null;)
+                this.deliver(next);
+        }
+        finally
+        {
+            broadcasting.active = false;
+            broadcasting.pending.clear();
+        }
+    }
+    
+}
@@ -0,0 +1,685 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+
+/**
+ * Instrumentation of a {@link Blackboard}: broadcast rate, fan-out and delivery latency
+ * per message type, callback time per observer and the number of threads spawned per
+ * {@link Blackboard.ThreadingPolicy}. The statistics are available through this class
+ * and through the platform MBean server as {@code wom:type=Blackboard,name=<name>}.
+ * 
+ * @see  Blackboard#enableMetrics()
+ */
+public class BlackboardMetrics implements BlackboardMetricsMBean
+{
+    /**
+     * Constructor
+     * 
+     * @param  name  The name of the blackboard
+     */
+    BlackboardMetrics(final Object name)
+    {
+	this.name = name;
+    }
+    
+    
+    
+    /**
+     * The name of the blackboard
+     */
+    private final Object name;
+    
+    /**
+     * The name of the MBean, {@code null} if not registered
+     */
+    private ObjectName objectName = null;
+    
+    /**
+     * When the metrics were enabled or reset, in nanoseconds
+     */
+    private volatile long since = System.nanoTime();
+    
+    /**
+     * Statistics of each message type
+     */
+    private final ConcurrentHashMap<Class<?>, MessageStatistics> messages = new ConcurrentHashMap<>();
+    
+    /**
+     * Statistics of each observer, by the object the observer is registered as
+     */
+    private final WeakHashMap<Blackboard.BlackboardObserver, ObserverStatistics> observers = new WeakHashMap<>();
+    
+    /**
+     * Statistics of each threading policy
+     */
+    private final WeakHashMap<Blackboard.ThreadingPolicy, ThreadingStatistics> policies = new WeakHashMap<>();
+    
+    
+    
+    /**
+     * Histogram of durations, with one bucket per power of two nanoseconds
+     */
+    public static class Histogram
+    {
+	/**
+	 * The number of samples in each bucket, bucket <i>i</i> holds durations
+	 * of at least 2<sup><i>i</i> − 1</sup> and less than 2<sup><i>i</i></sup> nanoseconds
+	 */
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	
+	/**
+	 * The sum of all samples, in nanoseconds
+	 */
+	private final LongAdder total = new LongAdder();
+	
+	/**
+	 * The largest sample, in nanoseconds
+	 */
+	private final AtomicLong max = new AtomicLong();
+	
+	
+	
+	/**
+	 * Adds a sample
+	 * 
+	 * @param  nanos  The duration, in nanoseconds
+	 */
+	public void record(final long nanos)
+	{
+	    final long value = Math.max(nanos, 0);
+	    this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+	    this.total.add(value);
+	    for (long max; (max = this.max.get()) < value;)
+		if (this.max.compareAndSet(max, value))
+		    break;
+	}
+	
+	/**
+	 * Removes all samples, samples recorded meanwhile may be partially kept
+	 */
+	void reset()
+	{
+	    for (int i = 0; i < 64; i++)
+		this.buckets.set(i, 0);
+	    this.total.reset();
+	    this.max.set(0);
+	}
+	
+	/**
+	 * Gets the number of samples
+	 * 
+	 * @return  The number of samples
+	 */
+	public long getCount()
+	{
+	    long count = 0;
+	    for (int i = 0; i < 64; i++)
+		count += this.buckets.get(i);
+	    return count;
+	}
+	
+	/**
+	 * Gets the sum of all samples
+	 * 
+	 * @return  The sum of all samples, in nanoseconds
+	 */
+	public long getTotal()
+	{
+	    return this.total.sum();
+	}
+	
+	/**
+	 * Gets the mean sample
+	 * 
+	 * @return  The mean sample, in nanoseconds, zero if there are no samples
+	 */
+	public long getMean()
+	{
+	    final long count = this.getCount();
+	    return count == 0 ? 0 : this.total.sum() / count;
+	}
+	
+	/**
+	 * Gets the largest sample
+	 * 
+	 * @return  The largest sample, in nanoseconds
+	 */
+	public long getMax()
+	{
+	    return this.max.get();
+	}
+	
+	/**
+	 * Gets an upper bound of a percentile
+	 * 
+	 * @param   percentile  The percentile, [0, 100]
+	 * @return              The upper bound of the bucket of the percentile, in nanoseconds
+	 */
+	public long getPercentile(final double percentile)
+	{
+	    final long[] counts = new long[64];
+	    long count = 0;
+	    for (int i = 0; i < 64; i++)
+		count += counts[i] = this.buckets.get(i);
+	    final long rank = (long)Math.ceil(count * percentile / 100);
+	    long seen = 0;
+	    for (int i = 0; i < 64; i++)
+		if ((seen += counts[i]) >= rank && (seen > 0))
+		    return Math.min(i == 63 ? Long.MAX_VALUE : (1L << i), this.max.get());
+	    return 0;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+	    return "mean " + formatNanos(this.getMean()) +
+		   ", p50 " + formatNanos(this.getPercentile(50)) +
+		   ", p99 " + formatNanos(this.getPercentile(99)) +
+		   ", max " + formatNanos(this.getMax());
+	}
+    }
+    
+    
+    /**
+     * Statistics of a message type
+     */
+    public static class MessageStatistics
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  messageType  The message type
+	 */
+	MessageStatistics(final Class<?> messageType)
+	{
+	    this.messageType = messageType;
+	}
+	
+	
+	
+	/**
+	 * The message type
+	 */
+	final Class<?> messageType;
+	
+	/**
+	 * The number of broadcasts
+	 */
+	private final LongAdder broadcasts = new LongAdder();
+	
+	/**
+	 * The sum of the number of observers of each broadcast
+	 */
+	private final LongAdder fanOut = new LongAdder();
+	
+	/**
+	 * Time from broadcast until an observer's callback returned
+	 */
+	final Histogram latency = new Histogram();
+	
+	
+	
+	/**
+	 * Records a broadcast
+	 * 
+	 * @param  observers  The number of observers the message is delivered to
+	 */
+	void recordBroadcast(final int observers)
+	{
+	    this.broadcasts.increment();
+	    this.fanOut.add(observers);
+	}
+	
+	/**
+	 * Resets the statistics
+	 */
+	void reset()
+	{
+	    this.broadcasts.reset();
+	    this.fanOut.reset();
+	    this.latency.reset();
+	}
+	
+	/**
+	 * Gets the number of broadcasts
+	 * 
+	 * @return  The number of broadcasts
+	 */
+	public long getBroadcastCount()
+	{
+	    return this.broadcasts.sum();
+	}
+	
+	/**
+	 * Gets the mean number of observers messages are delivered to
+	 * 
+	 * @return  The mean fan-out
+	 */
+	public double getMeanFanOut()
+	{
+	    final long broadcasts = this.broadcasts.sum();
+	    return broadcasts == 0 ? 0 : this.fanOut.sum() / (double)broadcasts;
+	}
+	
+	/**
+	 * Gets the histogram of the time from broadcast until an observer's callback returned
+	 * 
+	 * @return  The end-to-end delivery latency
+	 */
+	public Histogram getLatency()
+	{
+	    return this.latency;
+	}
+    }
+    
+    
+    /**
+     * Statistics of an observer
+     */
+    public static class ObserverStatistics
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  name  The description of the observer
+	 */
+	ObserverStatistics(final String name)
+	{
+	    this.name = name;
+	}
+	
+	
+	
+	/**
+	 * The description of the observer, the observer itself is not referenced
+	 */
+	final String name;
+	
+	/**
+	 * Time spent in the observer's callbacks
+	 */
+	final Histogram callbacks = new Histogram();
+	
+	
+	
+	/**
+	 * Gets the description of the observer
+	 * 
+	 * @return  The description of the observer
+	 */
+	public String getName()
+	{
+	    return this.name;
+	}
+	
+	/**
+	 * Resets the statistics
+	 */
+	void reset()
+	{
+	    this.callbacks.reset();
+	}
+	
+	/**
+	 * Gets the histogram of the time spent in the observer's callbacks
+	 * 
+	 * @return  The callback time
+	 */
+	public Histogram getCallbacks()
+	{
+	    return this.callbacks;
+	}
+    }
+    
+    
+    /**
+     * Statistics of a threading policy
+     */
+    public static class ThreadingStatistics
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  name  The description of the policy
+	 */
+	ThreadingStatistics(final String name)
+	{
+	    this.name = name;
+	}
+	
+	
+	
+	/**
+	 * The description of the policy
+	 */
+	final String name;
+	
+	/**
+	 * The number of threads spawned by the policy for the blackboard
+	 */
+	final LongAdder threads = new LongAdder();
+	
+	/**
+	 * The number of deliveries handed to the policy's executor
+	 */
+	final LongAdder tasks = new LongAdder();
+	
+	
+	
+	/**
+	 * Gets the description of the policy
+	 * 
+	 * @return  The description of the policy
+	 */
+	public String getName()
+	{
+	    return this.name;
+	}
+	
+	/**
+	 * Resets the statistics
+	 */
+	void reset()
+	{
+	    this.threads.reset();
+	    this.tasks.reset();
+	}
+	
+	/**
+	 * Gets the number of threads spawned by the policy for the blackboard
+	 * 
+	 * @return  The number of spawned threads
+	 */
+	public long getThreadCount()
+	{
+	    return this.threads.sum();
+	}
+	
+	/**
+	 * Gets the number of deliveries handed to the policy's executor
+	 * 
+	 * @return  The number of executed deliveries
+	 */
+	public long getTaskCount()
+	{
+	    return this.tasks.sum();
+	}
+    }
+    
+    
+    
+    /**
+     * Gets, and if missing, creates, the statistics of a message type
+     * 
+     * @param   messageType  The message type
+     * @return               The statistics of the message type
+     */
+    MessageStatistics getStatistics(final Class<?> messageType)
+    {
+	MessageStatistics statistics = this.messages.get(messageType);
+	if (statistics == null)
+	{
+	    final MessageStatistics existing = this.messages.putIfAbsent(messageType, statistics = new MessageStatistics(messageType));
+	    if (existing != null)
+		statistics = existing;
+	}
+	return statistics;
+    }
+    
+    
+    /**
+     * Gets, and if missing, creates, the statistics of an observer
+     * 
+     * @param   observer  The object the observer is registered as
+     * @param   name      The description of the observer
+     * @return            The statistics of the observer
+     */
+    synchronized ObserverStatistics getStatistics(final Blackboard.BlackboardObserver observer, final String name)
+    {
+	ObserverStatistics statistics = this.observers.get(observer);
+	if (statistics == null)
+	    this.observers.put(observer, statistics = new ObserverStatistics(name));
+	return statistics;
+    }
+    
+    
+    /**
+     * Gets, and if missing, creates, the statistics of a threading policy
+     * 
+     * @param   policy  The threading policy, {@code null} for no threading
+     * @return          The statistics of the policy, {@code null} if {@code policy} is {@code null}
+     */
+    synchronized ThreadingStatistics getStatistics(final Blackboard.ThreadingPolicy policy)
+    {
+	if (policy == null)
+	    return null;
+	ThreadingStatistics statistics = this.policies.get(policy);
+	if (statistics == null)
+	    this.policies.put(policy, statistics = new ThreadingStatistics(describePolicy(policy)));
+	return statistics;
+    }
+    
+    
+    /**
+     * Gets the statistics of all message types that have been broadcasted
+     * 
+     * @return  The statistics of each message type
+     */
+    public Map<Class<?>, MessageStatistics> getMessageTypes()
+    {
+	return new HashMap<Class<?>, MessageStatistics>(this.messages);
+    }
+    
+    
+    /**
+     * Gets the statistics of all observers that have received messages
+     * 
+     * @return  The statistics of each observer, the slowest, in total, observer first
+     */
+    public synchronized List<ObserverStatistics> getObservers()
+    {
+	final ArrayList<ObserverStatistics> rc = new ArrayList<>(this.observers.values());
+	Collections.sort(rc, new Comparator<ObserverStatistics>()
+		{   /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public int compare(final ObserverStatistics a, final ObserverStatistics b)
+		    {   return Long.compare(b.callbacks.getTotal(), a.callbacks.getTotal());
+		}   });
+	return rc;
+    }
+    
+    
+    /**
+     * Gets the statistics of all threading policies that have been used
+     * 
+     * @return  The statistics of each threading policy
+     */
+    public synchronized List<ThreadingStatistics> getPolicies()
+    {
+	return new ArrayList<>(this.policies.values());
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBroadcastCount()
+    {
+	long count = 0;
+	for (final MessageStatistics statistics : this.messages.values())
+	    count += statistics.getBroadcastCount();
+	return count;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getMessageStatistics()
+    {
+	final ArrayList<MessageStatistics> list = new ArrayList<>(this.messages.values());
+	Collections.sort(list, new Comparator<MessageStatistics>()
+		{   /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public int compare(final MessageStatistics a, final MessageStatistics b)
+		    {   return Long.compare(b.getBroadcastCount(), a.getBroadcastCount());
+		}   });
+	
+	final double seconds = Math.max(System.nanoTime() - this.since, 1) / 1_000_000_000.;
+	final String[] rc = new String[list.size()];
+	int i = 0;
+	for (final MessageStatistics statistics : list)
+	    rc[i++] = String.format("%s: %d broadcasts (%.1f/s), fan-out %.1f, latency %s",
+				    statistics.messageType.getName(), statistics.getBroadcastCount(),
+				    statistics.getBroadcastCount() / seconds, statistics.getMeanFanOut(),
+				    statistics.latency);
+	return rc;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getObserverStatistics()
+    {
+	final List<ObserverStatistics> list = this.getObservers();
+	final String[] rc = new String[list.size()];
+	int i = 0;
+	for (final ObserverStatistics statistics : list)
+	    rc[i++] = statistics.name + ": " + statistics.callbacks.getCount() + " callbacks, " +
+		      formatNanos(statistics.callbacks.getTotal()) + " in total, " + statistics.callbacks;
+	return rc;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getThreadingStatistics()
+    {
+	final List<ThreadingStatistics> list = this.getPolicies();
+	final String[] rc = new String[list.size()];
+	int i = 0;
+	for (final ThreadingStatistics statistics : list)
+	    rc[i++] = statistics.name + ": " + statistics.getThreadCount() + " threads spawned, " +
+		      statistics.getTaskCount() + " executor tasks";
+	return rc;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void reset()
+    {
+	/* Reset in place, the blackboard's dispatch plans refer to the statistics */
+	this.since = System.nanoTime();
+	for (final MessageStatistics statistics : this.messages.values())
+	    statistics.reset();
+	for (final ObserverStatistics statistics : this.observers.values())
+	    statistics.reset();
+	for (final ThreadingStatistics statistics : this.policies.values())
+	    statistics.reset();
+    }
+    
+    
+    /**
+     * Registers the metrics in the platform MBean server
+     */
+    synchronized void registerMBean()
+    {
+	try
+	{   this.objectName = new ObjectName("wom:type=Blackboard,name=" + ObjectName.quote(String.valueOf(this.name)));
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.objectName);
+	}
+	catch (final Exception err)
+	{   this.objectName = null;
+	    err.printStackTrace(System.err);
+	}
+    }
+    
+    
+    /**
+     * Unregisters the metrics from the platform MBean server
+     */
+    synchronized void unregisterMBean()
+    {
+	if (this.objectName != null)
+	    try
+	    {   ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+	    }
+	    catch (final Exception err)
+	    {   err.printStackTrace(System.err);
+	    }
+	this.objectName = null;
+    }
+    
+    
+    /**
+     * Gets a description of a threading policy
+     * 
+     * @param   policy  The threading policy
+     * @return          The description of the policy
+     */
+    private static String describePolicy(final Blackboard.ThreadingPolicy policy)
+    {
+	if (policy == Blackboard.THREADED)                return "THREADED";
+	if (policy == Blackboard.DAEMON_THREADING)        return "DAEMON_THREADING";
+	if (policy == Blackboard.NICE_THREADING)          return "NICE_THREADING";
+	if (policy == Blackboard.NICE_DAEMON_THREADING)   return "NICE_DAEMON_THREADING";
+	if (policy == Blackboard.NASTY_THREADING)         return "NASTY_THREADING";
+	if (policy == Blackboard.NASTY_DAEMON_THREADING)  return "NASTY_DAEMON_THREADING";
+	return policy.toString();
+    }
+    
+    
+    /**
+     * Formats a duration for humans
+     * 
+     * @param   nanos  The duration, in nanoseconds
+     * @return         The duration, with unit
+     */
+    static String formatNanos(final long nanos)
+    {
+	if (nanos < 10_000L)          return nanos + " ns";
+	if (nanos < 10_000_000L)      return (nanos / 1_000L) + " µs";
+	if (nanos < 10_000_000_000L)  return (nanos / 1_000_000L) + " ms";
+	return (nanos / 1_000_000_000L) + " s";
+    }
+    
+}
@@ -0,0 +1,60 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+
+/**
+ * Management interface of {@link BlackboardMetrics}
+ */
+public interface BlackboardMetricsMBean
+{
+    /**
+     * Gets the number of messages broadcasted since the metrics were enabled or reset
+     * 
+     * @return  The number of broadcasted messages
+     */
+    public long getBroadcastCount();
+    
+    /**
+     * Gets the statistics of each message type, one line per type, the busiest type first
+     * 
+     * @return  Broadcast rate, fan-out and delivery latency of each message type
+     */
+    public String[] getMessageStatistics();
+    
+    /**
+     * Gets the statistics of each observer, one line per observer, the slowest observer first
+     * 
+     * @return  Callback time of each observer
+     */
+    public String[] getObserverStatistics();
+    
+    /**
+     * Gets the statistics of each threading policy, one line per policy
+     * 
+     * @return  The number of threads spawned and tasks executed by each policy
+     */
+    public String[] getThreadingStatistics();
+    
+    /**
+     * Resets all statistics
+     */
+    public void reset();
+    
+}
@@ -0,0 +1,388 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Records all messages broadcasted on a {@link Blackboard} to a compact binary log,
+ * which can be replayed with {@link BlackboardReplayer}.<br/>
+ * The log starts with the magic {@code WOMR} and a version byte, followed by one
+ * record per message: the time since the previous record in nanoseconds, the index
+ * of the message class in the log's class table (a new class is added by using the
+ * next index and writing the class name), and the length of the payload followed by
+ * the payload. The numbers are unsigned LEB128. The payload is the message encoded
+ * with the {@link Codec} registered for its class, or, if none is registered, the
+ * message serialised with Java serialisation. Messages that can be encoded neither
+ * way are reported on standard error and left out of the log.
+ */
+public class BlackboardRecorder implements Blackboard.BatchObserver, Closeable
+{
+    /**
+     * The magic number at the start of a log
+     */
+    static final byte[] MAGIC = { 'W', 'O', 'M', 'R' };
+    
+    /**
+     * The version of the log format
+     */
+    static final int VERSION = 2;
+    
+    /**
+     * The largest payload of a record, larger payloads are refused when recorded
+     * and treated as corruption when replayed
+     */
+    static final int MAX_PAYLOAD = 64 << 20;
+    
+    /**
+     * The codec for each message class
+     */
+    private static final HashMap<Class<?>, Codec<?>> codecs = new HashMap<>();
+    
+    
+    
+    /**
+     * Encodes and decodes messages of a class for the log, this lets messages
+     * that are not {@link Serializable} be recorded, and decouples the log
+     * from the messages' fields
+     * 
+     * @param  <T>  The message class
+     */
+    public static interface Codec<T extends Blackboard.BlackboardMessage>
+    {
+	/**
+	 * Encodes a message
+	 * 
+	 * @param   message  The message
+	 * @param   output   The payload to write to
+	 * 
+	 * @throws  IOException  If the message cannot be encoded
+	 */
+	public void encode(final T message, final DataOutput output) throws IOException;
+	
+	/**
+	 * Decodes a message
+	 * 
+	 * @param   input  The payload to read, the whole payload must be read
+	 * @return         The message
+	 * 
+	 * @throws  IOException  If the payload is corrupt
+	 */
+	public T decode(final DataInput input) throws IOException;
+    }
+    
+    
+    
+    /**
+     * Registers the codec for a message class, message classes should do this in
+     * their static initialiser as replaying a log initialises each class in it
+     * 
+     * @param  <T>          The message class
+     * @param  messageType  The message class, subclasses are not included
+     * @param  codec        The codec for the class
+     */
+    public static <T extends Blackboard.BlackboardMessage> void registerCodec(final Class<T> messageType, final Codec<T> codec)
+    {
+	synchronized (codecs)
+	{   codecs.put(messageType, codec);
+	}
+    }
+    
+    
+    /**
+     * Gets the codec for a message class
+     * 
+     * @param   messageType  The message class
+     * @return               The codec, {@code null} if none is registered
+     */
+    @SuppressWarnings("unchecked")
+    static Codec<Blackboard.BlackboardMessage> getCodec(final Class<?> messageType)
+    {
+	synchronized (codecs)
+	{   return (Codec<Blackboard.BlackboardMessage>)(codecs.get(messageType));
+	}
+    }
+    
+    
+    
+    /**
+     * Constructor, starts recording
+     * 
+     * @param  blackboard  The blackboard to record
+     * @param  output      The stream to write the log to, will be closed by {@link #close()}
+     * 
+     * @throws  IOException  On I/O error
+     */
+    @SuppressWarnings("unchecked")
+    public BlackboardRecorder(final Blackboard blackboard, final OutputStream output) throws IOException
+    {
+	this.blackboard = blackboard;
+	this.output = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+	this.output.write(MAGIC);
+	this.output.write(VERSION);
+	this.last = System.nanoTime();
+	
+	blackboard.registerPriority(this, Integer.MIN_VALUE, (Class<? extends Blackboard.BlackboardMessage>)null);
+	blackboard.registerObserver(this);
+    }
+    
+    
+    /**
+     * Constructor, starts recording
+     * 
+     * @param  blackboard  The blackboard to record
+     * @param  file        The file to write the log to
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public BlackboardRecorder(final Blackboard blackboard, final String file) throws IOException
+    {
+	this(blackboard, new FileOutputStream(file));
+    }
+    
+    
+    
+    /**
+     * The recorded blackboard
+     */
+    private final Blackboard blackboard;
+    
+    /**
+     * The log
+     */
+    private final DataOutputStream output;
+    
+    /**
+     * The index of each class in the log's class table
+     */
+    private final HashMap<Class<?>, Integer> classes = new HashMap<>();
+    
+    /**
+     * Buffer for serialising payloads
+     */
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    
+    /**
+     * Message classes that could not be encoded, so that each is reported once
+     */
+    private final HashSet<Class<?>> unencodable = new HashSet<>();
+    
+    /**
+     * When the previous message was recorded, by {@link System#nanoTime()}
+     */
+    private long last;
+    
+    /**
+     * The number of recorded messages
+     */
+    private long count = 0;
+    
+    /**
+     * Whether the recorder has been closed
+     */
+    private boolean closed = false;
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageBroadcasted(final Blackboard.BlackboardMessage message)
+    {
+	synchronized (this)
+	{   this.record(message);
+	}
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messagesBroadcasted(final List<Blackboard.BlackboardMessage> messages)
+    {
+	synchronized (this)
+	{   for (final Blackboard.BlackboardMessage message : messages)
+		this.record(message);
+	}
+    }
+    
+    
+    /**
+     * Writes a message to the log, must be called while synchronised on the recorder
+     * 
+     * @param  message  The message
+     */
+    private void record(final Blackboard.BlackboardMessage message)
+    {
+	if (this.closed || (message instanceof Blackboard.ObserverRegisterMessage))
+	    return;
+	if (this.encode(message) == false)
+	    return;
+	try
+	{
+	    final long now = System.nanoTime();
+	    writeNumber(this.output, now - this.last);
+	    this.last = now;
+	    
+	    final Integer index = this.classes.get(message.getClass());
+	    if (index == null)
+	    {
+		writeNumber(this.output, this.classes.size());
+		this.output.writeUTF(message.getClass().getName());
+		this.classes.put(message.getClass(), Integer.valueOf(this.classes.size()));
+	    }
+	    else
+		writeNumber(this.output, index.intValue());
+	    
+	    writeNumber(this.output, this.payload.size());
+	    this.payload.writeTo(this.output);
+	    this.count++;
+	}
+	catch (final IOException err)
+	{
+	    err.printStackTrace(System.err);
+	    this.closed = true;
+	}
+    }
+    
+    
+    /**
+     * Encodes a message into {@link #payload}, must be called while synchronised on the recorder
+     * 
+     * @param   message  The message
+     * @return           Whether the message could be encoded
+     */
+    private boolean encode(final Blackboard.BlackboardMessage message)
+    {
+	final Class<?> messageType = message.getClass();
+	this.payload.reset();
+	try
+	{
+	    final Codec<Blackboard.BlackboardMessage> codec = getCodec(messageType);
+	    if (codec != null)
+	    {
+		final DataOutputStream dos = new DataOutputStream(this.payload);
+		codec.encode(message, dos);
+		dos.flush();
+	    }
+	    else if (message instanceof Serializable)
+		try (ObjectOutputStream oos = new ObjectOutputStream(this.payload))
+		{   oos.writeObject(message);
+		}
+	    else
+		throw new NotSerializableException("no codec is registered and it is not serialisable");
+	    
+	    if (this.payload.size() > MAX_PAYLOAD)
+		throw new IOException("payload is " + this.payload.size() + " bytes");
+	    return true;
+	}
+	catch (final IOException | RuntimeException err)
+	{
+	    if (this.unencodable.add(messageType))
+		System.err.println("Cannot record " + messageType.getName() + ": " + err.toString());
+	    return false;
+	}
+    }
+    
+    
+    /**
+     * Gets the number of recorded messages
+     * 
+     * @return  The number of recorded messages
+     */
+    public synchronized long getCount()
+    {
+	return this.count;
+    }
+    
+    
+    /**
+     * Writes buffered records to the log
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public synchronized void flush() throws IOException
+    {
+	this.output.flush();
+    }
+    
+    
+    /**
+     * Stops recording and closes the log
+     * 
+     * @throws  IOException  On I/O error
+     */
+    @Override
+    public void close() throws IOException
+    {
+	this.blackboard.unregisterObserver(this);
+	synchronized (this)
+	{
+	    this.closed = true;
+	    this.output.close();
+	}
+    }
+    
+    
+    /**
+     * Writes an unsigned LEB128 number
+     * 
+     * @param   output  The stream to write to
+     * @param   value   The number, must not be negative
+     * 
+     * @throws  IOException  On I/O error
+     */
+    static void writeNumber(final DataOutput output, long value) throws IOException
+    {
+	while ((value & ~0x7FL) != 0)
+	{
+	    output.writeByte((int)(value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	output.writeByte((int)value);
+    }
+    
+    
+    /**
+     * Reads an unsigned LEB128 number
+     * 
+     * @param   input  The stream to read from
+     * @return         The number
+     * 
+     * @throws  IOException  On I/O error
+     */
+    static long readNumber(final DataInput input) throws IOException
+    {
+	long value = 0;
+	for (int shift = 0;; shift += 7)
+	{
+	    final int b = input.readUnsignedByte();
+	    value |= (long)(b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	    if (shift > 63)
+		throw new StreamCorruptedException("Number too long");
+	}
+    }
+    
+}
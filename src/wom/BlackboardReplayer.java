@@ -0,0 +1,239 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Replays a log written by {@link BlackboardRecorder} onto a {@link Blackboard}.<br/>
+ * Payloads of message classes with a {@link BlackboardRecorder.Codec} are decoded with
+ * the codec, other payloads are deserialised with Java serialisation, so only replay
+ * logs you trust.
+ */
+public class BlackboardReplayer implements Closeable
+{
+    /**
+     * Replay as fast as possible
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    
+    /**
+     * Replay in the speed the messages were recorded
+     */
+    public static final double REAL_TIME = 1;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  blackboard  The blackboard to broadcast on
+     * @param  input       The stream to read the log from, will be closed by {@link #close()}
+     * 
+     * @throws  IOException  On I/O error or if the stream is not a log
+     */
+    public BlackboardReplayer(final Blackboard blackboard, final InputStream input) throws IOException
+    {
+	this.blackboard = blackboard;
+	this.input = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+	
+	final byte[] magic = new byte[BlackboardRecorder.MAGIC.length];
+	this.input.readFully(magic);
+	if (Arrays.equals(magic, BlackboardRecorder.MAGIC) == false)
+	    throw new StreamCorruptedException("Not a blackboard log");
+	if (this.input.readUnsignedByte() != BlackboardRecorder.VERSION)
+	    throw new StreamCorruptedException("Unsupported blackboard log version");
+    }
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  blackboard  The blackboard to broadcast on
+     * @param  file        The file to read the log from
+     * 
+     * @throws  IOException  On I/O error or if the file is not a log
+     */
+    public BlackboardReplayer(final Blackboard blackboard, final String file) throws IOException
+    {
+	this(blackboard, new FileInputStream(file));
+    }
+    
+    
+    
+    /**
+     * The blackboard to broadcast on
+     */
+    private final Blackboard blackboard;
+    
+    /**
+     * The log
+     */
+    private final DataInputStream input;
+    
+    /**
+     * The log's class table, {@code null} for classes that cannot be loaded
+     */
+    private final ArrayList<Class<?>> classes = new ArrayList<>();
+    
+    /**
+     * The number of messages that could not be replayed
+     */
+    private long skipped = 0;
+    
+    
+    
+    /**
+     * Replays the rest of the log
+     * 
+     * @param   speed  How many times faster than recorded to replay, {@link #REAL_TIME} for
+     *                 the recorded speed and {@link #AS_FAST_AS_POSSIBLE} to not wait at all
+     * @return         The number of replayed messages
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public long replay(final double speed) throws IOException
+    {
+	final long start = System.nanoTime();
+	long recorded = 0;
+	long count = 0;
+	
+	for (;;)
+	{
+	    final long delta;
+	    try
+	    {   delta = BlackboardRecorder.readNumber(this.input);
+	    }
+	    catch (final EOFException err)
+	    {   return count;
+	    }
+	    
+	    final Class<?> messageType = this.readClass();
+	    final long length = BlackboardRecorder.readNumber(this.input);
+	    if ((length < 0) || (length > BlackboardRecorder.MAX_PAYLOAD))
+		throw new StreamCorruptedException("Invalid payload length");
+	    final byte[] payload = new byte[(int)length];
+	    this.input.readFully(payload);
+	    
+	    final Blackboard.BlackboardMessage message = createMessage(messageType, payload);
+	    if (message == null)
+	    {
+		this.skipped++;
+		continue;
+	    }
+	    
+	    recorded += delta;
+	    if (speed > 0)
+		for (long wait; (wait = start + (long)(recorded / speed) - System.nanoTime()) > 0;)
+		    LockSupport.parkNanos(wait);
+	    
+	    this.blackboard.broadcastMessage(message);
+	    count++;
+	}
+    }
+    
+    
+    /**
+     * Gets the number of messages that could not be replayed
+     * 
+     * @return  The number of skipped messages
+     */
+    public long getSkippedCount()
+    {
+	return this.skipped;
+    }
+    
+    
+    /**
+     * Closes the log
+     * 
+     * @throws  IOException  On I/O error
+     */
+    @Override
+    public void close() throws IOException
+    {
+	this.input.close();
+    }
+    
+    
+    /**
+     * Reads a class reference
+     * 
+     * @return  The class, {@code null} if it cannot be loaded
+     * 
+     * @throws  IOException  On I/O error or if the log is corrupt
+     */
+    private Class<?> readClass() throws IOException
+    {
+	final long index = BlackboardRecorder.readNumber(this.input);
+	if (index < this.classes.size())
+	    return this.classes.get((int)index);
+	if (index != this.classes.size())
+	    throw new StreamCorruptedException("Invalid class index");
+	
+	final String name = this.input.readUTF();
+	Class<?> messageType;
+	try
+	{   messageType = Class.forName(name);
+	    if (Blackboard.BlackboardMessage.class.isAssignableFrom(messageType) == false)
+		messageType = null;
+	}
+	catch (final ClassNotFoundException err)
+	{   messageType = null;
+	}
+	this.classes.add(messageType);
+	return messageType;
+    }
+    
+    
+    /**
+     * Recreates a message
+     * 
+     * @param   messageType  The class of the message, {@code null} if unknown
+     * @param   payload      The encoded message
+     * @return               The message, {@code null} if it cannot be recreated
+     */
+    private static Blackboard.BlackboardMessage createMessage(final Class<?> messageType, final byte[] payload)
+    {
+	if (messageType == null)
+	    return null;
+	try
+	{
+	    final BlackboardRecorder.Codec<Blackboard.BlackboardMessage> codec = BlackboardRecorder.getCodec(messageType);
+	    if (codec != null)
+	    {
+		final ByteArrayInputStream bais = new ByteArrayInputStream(payload);
+		final Blackboard.BlackboardMessage message = codec.decode(new DataInputStream(bais));
+		return (bais.available() == 0) && messageType.isInstance(message) ? message : null;
+	    }
+	    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload)))
+	    {   final Object message = ois.readObject();
+		return messageType.isInstance(message) ? (Blackboard.BlackboardMessage)message : null;
+	    }
+	}
+	catch (final Exception err)
+	{
+	    return null;
+	}
+    }
+    
+}
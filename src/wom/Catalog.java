@@ -0,0 +1,1238 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * Persistent catalog of the pictures in the picture directory, stored under
+ * {@code .catalog} in the picture directory.<br/>
+ * The catalog is columnar: each attribute of the pictures is stored in a file
+ * of its own, as an array with one fixed-size element per picture, and the
+ * files are memory-mapped. Opening the catalog therefore only maps the files,
+ * regardless of the number of pictures, a filter that only looks at the
+ * timestamps only touches the pages of the timestamp column, and the caching
+ * is left to the page cache of the operating system.<br/>
+ * Paths, and the names of categories and people, are stored in string pools
+ * and referred to by their index in the pool. The categories and people of a
+ * picture are stored as runs of ids, with the start of each picture's run in
+ * a column.<br/>
+ * The number of pictures, and the lengths of the pools and runs, are kept in
+ * a header that is updated after the data it covers has been written, so data
+ * appended after the header was last updated is ignored and overwritten. The
+ * header has a sequence number that is odd while the header is updated, and
+ * that is incremented before and after the update, so that other instances of
+ * the catalog, such as the one of an import, can read a consistent header.<br/>
+ * This ordering holds in memory, for other instances and if the program dies,
+ * but not on the disk: the operating system writes the mapped pages back in
+ * any order, so if the system crashes the header may count pictures whose
+ * data never reached the disk. Only what the catalog held when it was last
+ * flushed, which forces the columns before the header, or closed, is durable.<br/>
+ * Only one instance writes at a time, writers lock the header file, and
+ * instances in the same JVM also share a lock as file locks are per JVM,
+ * and a writer picks up what other instances have committed before it
+ * appends.<br/>
+ * Reading and writing the columns are loads and stores in the mapped pages,
+ * which the operating system pages in and writes back on its own, so they
+ * are not made through the {@link IoScheduler}; flushing the catalog is.<br/>
+ * The columns are mapped in whole, so a column cannot exceed 2 GiB, which is
+ * 268 million pictures for the widest column.
+ */
+public class Catalog implements Closeable
+{
+    /**
+     * The name of the catalog directory in the picture directory
+     */
+    public static final String DIRECTORY = ".catalog";
+    
+    /**
+     * The magic number at the start of the header
+     */
+    private static final int MAGIC = ('W' << 24) | ('O' << 16) | ('M' << 8) | 'C';
+    
+    /**
+     * The version of the catalog format
+     */
+    private static final int VERSION = 2;
+    
+    /**
+     * The number of elements columns are created with
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    /**
+     * Header slot: the number of pictures
+     */
+    private static final int ENTRIES = 0;
+    
+    /**
+     * Header slot: the number of paths
+     */
+    private static final int PATHS = 1;
+    
+    /**
+     * Header slot: the number of bytes in the path pool
+     */
+    private static final int PATH_BYTES = 2;
+    
+    /**
+     * Header slot: the number of category ids in the runs
+     */
+    private static final int CATEGORY_LINKS = 3;
+    
+    /**
+     * Header slot: the number of categories
+     */
+    private static final int CATEGORIES = 4;
+    
+    /**
+     * Header slot: the number of bytes in the category name pool
+     */
+    private static final int CATEGORY_BYTES = 5;
+    
+    /**
+     * Header slot: the number of person ids in the runs
+     */
+    private static final int PERSON_LINKS = 6;
+    
+    /**
+     * Header slot: the number of people
+     */
+    private static final int PEOPLE = 7;
+    
+    /**
+     * Header slot: the number of bytes in the person name pool
+     */
+    private static final int PERSON_BYTES = 8;
+    
+    /**
+     * The number of header slots
+     */
+    private static final int SLOTS = 9;
+    
+    /**
+     * The position of the sequence number in the header
+     */
+    private static final int SEQUENCE = 8;
+    
+    /**
+     * The size of the header
+     */
+    private static final int HEADER_SIZE = 12 + 4 * SLOTS;
+    
+    /**
+     * The maximum time, in nanoseconds, to wait for another instance to finish updating the header,
+     * a header that stays odd for longer was being updated when the other instance died
+     */
+    private static final long HEADER_TIMEOUT = 1_000_000_000L;
+    
+    /**
+     * Volatile access to the integers in the header
+     */
+    private static final VarHandle HEADER = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    
+    /**
+     * The character set of the string pools
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    
+    
+    /**
+     * A memory-mapped file of fixed-size elements, mapped beyond its
+     * last element so that it can be appended to without remapping
+     */
+    private static final class Column implements Closeable
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  file   The file
+	 * @param  width  The size of an element
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	Column(final Path file, final int width) throws IOException
+	{
+	    this.width = width;
+	    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	    final long size = this.channel.size();
+	    this.buffer = this.map(size < INITIAL_CAPACITY * width ? INITIAL_CAPACITY * width : size);
+	}
+	
+	
+	
+	/**
+	 * The size of an element
+	 */
+	final int width;
+	
+	/**
+	 * The file
+	 */
+	private final FileChannel channel;
+	
+	/**
+	 * The mapping of the file, replaced when the file grows, readers
+	 * may keep using the old mapping, it maps the same pages
+	 */
+	volatile MappedByteBuffer buffer;
+	
+	
+	
+	/**
+	 * Maps the file, growing it if it is smaller than the mapping
+	 * 
+	 * @param   size  The size of the mapping
+	 * @return        The mapping
+	 * 
+	 * @throws  IOException  On file I/O error, or if the size exceeds the size of a mapping
+	 */
+	private MappedByteBuffer map(final long size) throws IOException
+	{
+	    if (size > Integer.MAX_VALUE)
+		throw new IOException("Catalog column is full");
+	    return this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+	
+	/**
+	 * Checks whether the file holds a number of elements
+	 * 
+	 * @param   length  The number of elements
+	 * @return          Whether the file is large enough
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	boolean holds(final int length) throws IOException
+	{
+	    return this.channel.size() >= (long)length * this.width;
+	}
+	
+	/**
+	 * Grows the mapping, if necessary, so that it holds a number of elements
+	 * 
+	 * @param  length  The number of elements
+	 * 
+	 * @throws  IOException  On file I/O error, or if the column is full
+	 */
+	void ensure(final int length) throws IOException
+	{
+	    final long size = (long)length * this.width;
+	    final int capacity = this.buffer.capacity();
+	    if (size > capacity)
+		this.buffer = this.map(Math.min(Math.max(size, 2L * capacity), Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * Empties the file
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	void clear() throws IOException
+	{
+	    this.channel.truncate(0);
+	    this.buffer = this.map(INITIAL_CAPACITY * this.width);
+	}
+	
+	/**
+	 * Forces the mapped pages to the disk
+	 */
+	void force()
+	{
+	    this.buffer.force();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws IOException
+	{
+	    this.channel.close();
+	}
+	
+    }
+    
+    
+    /**
+     * A pool of strings, stored as their UTF-8 encoding concatenated,
+     * and a column of the offsets of the strings
+     */
+    private final class Pool
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  name   The name of the pool file
+	 * @param  count  The header slot of the number of strings
+	 * @param  bytes  The header slot of the number of bytes
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	Pool(final String name, final int count, final int bytes) throws IOException
+	{
+	    this.data = Catalog.this.open(name, 1);
+	    this.offsets = Catalog.this.open(name + ".offsets", 4);
+	    this.count = count;
+	    this.bytes = bytes;
+	}
+	
+	
+	
+	/**
+	 * The UTF-8 encoding of the strings
+	 */
+	final Column data;
+	
+	/**
+	 * The offsets of the strings in {@link #data}
+	 */
+	final Column offsets;
+	
+	/**
+	 * The header slot of the number of strings
+	 */
+	private final int count;
+	
+	/**
+	 * The header slot of the number of bytes
+	 */
+	private final int bytes;
+	
+	/**
+	 * Map from strings to their ids, built on first use
+	 */
+	private HashMap<String, Integer> ids = null;
+	
+	
+	
+	/**
+	 * Gets the number of strings
+	 * 
+	 * @return  The number of strings
+	 */
+	int size()
+	{
+	    return Catalog.this.counts[this.count];
+	}
+	
+	/**
+	 * Gets a string
+	 * 
+	 * @param   id  The id of the string
+	 * @return      The string
+	 */
+	String get(final int id)
+	{
+	    final int size = this.size();
+	    if ((id < 0) || (id >= size))
+		throw new IndexOutOfBoundsException("No such string: " + id);
+	    final ByteBuffer offsets = this.offsets.buffer;
+	    final int start = offsets.getInt(id << 2);
+	    final int end = id + 1 < size ? offsets.getInt((id + 1) << 2) : Catalog.this.counts[this.bytes];
+	    final byte[] encoded = new byte[end - start];
+	    final ByteBuffer data = this.data.buffer.duplicate();
+	    data.position(start);
+	    data.get(encoded);
+	    return new String(encoded, UTF_8);
+	}
+	
+	/**
+	 * Appends a string, without committing it
+	 * 
+	 * @param   string  The string
+	 * @return          The id of the string
+	 * 
+	 * @throws  IOException  On file I/O error, or if the pool is full
+	 */
+	int add(final String string) throws IOException
+	{
+	    final int id = Catalog.this.pending[this.count];
+	    final int start = Catalog.this.pending[this.bytes];
+	    final byte[] encoded = string.getBytes(UTF_8);
+	    if ((long)start + encoded.length > Integer.MAX_VALUE)
+		throw new IOException("Catalog string pool is full");
+	    this.offsets.ensure(id + 1);
+	    this.data.ensure(start + encoded.length);
+	    this.offsets.buffer.putInt(id << 2, start);
+	    final ByteBuffer data = this.data.buffer.duplicate();
+	    data.position(start);
+	    data.put(encoded);
+	    Catalog.this.pending[this.count] = id + 1;
+	    Catalog.this.pending[this.bytes] = start + encoded.length;
+	    if (this.ids != null)
+		this.ids.put(string, Integer.valueOf(id));
+	    return id;
+	}
+	
+	/**
+	 * Gets the id of a string
+	 * 
+	 * @param   string  The string
+	 * @return          The id of the string, -1 if it is not in the pool
+	 */
+	int find(final String string)
+	{
+	    if (this.ids == null)
+	    {   this.ids = new HashMap<String, Integer>();
+		for (int id = 0, n = this.size(); id < n; id++)
+		    this.ids.put(this.get(id), Integer.valueOf(id));
+	    }
+	    final Integer id = this.ids.get(string);
+	    /* Strings appended by a failed addition are never committed */
+	    return (id == null) || (id.intValue() >= this.size()) ? -1 : id.intValue();
+	}
+	
+	/**
+	 * Gets the id of a string, adding and committing the string if it is not in the pool
+	 * 
+	 * @param   string  The string
+	 * @return          The id of the string
+	 * 
+	 * @throws  IOException  On file I/O error, or if the pool is full
+	 */
+	int intern(final String string) throws IOException
+	{
+	    final int id = this.find(string);
+	    if (id >= 0)
+		return id;
+	    final int added = this.add(string);
+	    Catalog.this.commit();
+	    return added;
+	}
+	
+    }
+    
+    
+    /**
+     * Runs of ids, one run per picture
+     */
+    private final class Runs
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  name   The name of the run file
+	 * @param  links  The header slot of the number of ids in the runs
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	Runs(final String name, final int links) throws IOException
+	{
+	    this.ids = Catalog.this.open(name, 4);
+	    this.starts = Catalog.this.open(name + ".starts", 4);
+	    this.links = links;
+	}
+	
+	
+	
+	/**
+	 * The ids
+	 */
+	final Column ids;
+	
+	/**
+	 * The offsets in {@link #ids} of the runs of the pictures
+	 */
+	final Column starts;
+	
+	/**
+	 * The header slot of the number of ids in the runs
+	 */
+	private final int links;
+	
+	
+	
+	/**
+	 * Gets the run of a picture
+	 * 
+	 * @param   entry    The index of the picture
+	 * @param   entries  The number of pictures
+	 * @return           The ids in the run
+	 */
+	int[] get(final int entry, final int entries)
+	{
+	    final ByteBuffer starts = this.starts.buffer;
+	    final int start = starts.getInt(entry << 2);
+	    final int end = entry + 1 < entries ? starts.getInt((entry + 1) << 2) : Catalog.this.counts[this.links];
+	    final ByteBuffer ids = this.ids.buffer;
+	    final int[] run = new int[end - start];
+	    for (int i = 0; i < run.length; i++)
+		run[i] = ids.getInt((start + i) << 2);
+	    return run;
+	}
+	
+	/**
+	 * Appends the run of a picture, without committing it
+	 * 
+	 * @param  entry  The index of the picture
+	 * @param  run    The ids in the run
+	 * 
+	 * @throws  IOException  On file I/O error, or if the column is full
+	 */
+	void add(final int entry, final int[] run) throws IOException
+	{
+	    final int start = Catalog.this.pending[this.links];
+	    if ((long)start + run.length > Integer.MAX_VALUE >> 2)
+		throw new IOException("Catalog column is full");
+	    this.starts.ensure(entry + 1);
+	    this.ids.ensure(start + run.length);
+	    this.starts.buffer.putInt(entry << 2, start);
+	    final ByteBuffer ids = this.ids.buffer;
+	    for (int i = 0; i < run.length; i++)
+		ids.putInt((start + i) << 2, run[i]);
+	    Catalog.this.pending[this.links] = start + run.length;
+	}
+	
+    }
+    
+    
+    
+    /**
+     * Constructor, opens the catalog, and creates it if missing
+     * 
+     * @param  pictureDirectory  The picture directory
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public Catalog(final String pictureDirectory) throws IOException
+    {
+	this.directory = Paths.get(pictureDirectory, DIRECTORY);
+	Files.createDirectories(this.directory);
+	synchronized (writers)
+	{   final Path key = this.directory.toRealPath();
+	    ReentrantLock writer = writers.get(key);
+	    if (writer == null)
+		writers.put(key, writer = new ReentrantLock());
+	    this.writer = writer;
+	}
+	FileLock lock = null;
+	try
+	{   this.headerChannel = FileChannel.open(this.directory.resolve("header"),
+						  StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	    final boolean exists = this.headerChannel.size() >= HEADER_SIZE;
+	    this.header = this.headerChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+	    
+	    this.timestamps   = this.open("timestamp",   8);
+	    this.widths       = this.open("width",       4);
+	    this.heights      = this.open("height",      4);
+	    this.orientations = this.open("orientation", 1);
+	    this.sizes        = this.open("size",        8);
+	    this.pathIds      = this.open("path",        4);
+	    this.paths          = new Pool("paths",      PATHS,      PATH_BYTES);
+	    this.categoryNames  = new Pool("categories", CATEGORIES, CATEGORY_BYTES);
+	    this.personNames    = new Pool("people",     PEOPLE,     PERSON_BYTES);
+	    this.categoryRuns   = new Runs("category",   CATEGORY_LINKS);
+	    this.personRuns     = new Runs("person",     PERSON_LINKS);
+	    
+	    /* Only validated and repaired by one instance at a time, other instances may be committing */
+	    lock = this.lock();
+	    boolean valid = exists && (this.header.getInt(0) == MAGIC) && (this.header.getInt(4) == VERSION);
+	    boolean repair = false;
+	    if (valid && (this.readHeader(this.counts) == false))
+	    {   System.err.println("Catalog header was left partially updated, using it as it is");
+		repair = true;
+	    }
+	    for (int slot = 0; valid && (slot < SLOTS); slot++)
+		valid = this.counts[slot] >= 0;
+	    valid = valid && this.holds();
+	    
+	    if (valid == false)
+	    {   if (exists)
+		    System.err.println("Catalog is invalid, emptying it");
+		for (final Column column : this.columns)
+		    column.clear();
+		Arrays.fill(this.counts, 0);
+		this.header.putInt(0, MAGIC);
+		this.header.putInt(4, VERSION);
+		HEADER.setVolatile(this.header, SEQUENCE, 0);
+		repair = true;
+	    }
+	    System.arraycopy(this.counts, 0, this.pending, 0, SLOTS);
+	    this.entries = this.counts[ENTRIES];
+	    /* A valid header is not written back, it could roll back what other instances commit */
+	    if (repair)
+		this.commit();
+	}
+	catch (final IOException err)
+	{   this.close();
+	    throw err;
+	}
+	finally
+	{   if (lock != null)
+		this.unlock(lock);
+	}
+    }
+    
+    
+    
+    /**
+     * The writer lock of each catalog directory opened in the JVM
+     */
+    private static final HashMap<Path, ReentrantLock> writers = new HashMap<Path, ReentrantLock>();
+    
+    
+    
+    /**
+     * The catalog directory
+     */
+    private final Path directory;
+    
+    /**
+     * The writer lock of the catalog in the JVM
+     */
+    private final ReentrantLock writer;
+    
+    /**
+     * The header file
+     */
+    private FileChannel headerChannel = null;
+    
+    /**
+     * The mapping of the header
+     */
+    private MappedByteBuffer header = null;
+    
+    /**
+     * All opened columns
+     */
+    private final ArrayList<Column> columns = new ArrayList<Column>();
+    
+    /**
+     * The committed values of the header slots
+     */
+    private final int[] counts = new int[SLOTS];
+    
+    /**
+     * The values of the header slots, including uncommitted data
+     */
+    private final int[] pending = new int[SLOTS];
+    
+    /**
+     * The number of pictures, published after {@link #counts} is updated
+     */
+    private volatile int entries = 0;
+    
+    /**
+     * The timestamp column, milliseconds since the epoch
+     */
+    private Column timestamps;
+    
+    /**
+     * The width column, in pixels
+     */
+    private Column widths;
+    
+    /**
+     * The height column, in pixels
+     */
+    private Column heights;
+    
+    /**
+     * The orientation column, as in EXIF
+     */
+    private Column orientations;
+    
+    /**
+     * The file size column
+     */
+    private Column sizes;
+    
+    /**
+     * The path id column
+     */
+    private Column pathIds;
+    
+    /**
+     * The paths of the pictures, relative to the picture directory
+     */
+    private Pool paths;
+    
+    /**
+     * The names of the categories
+     */
+    private Pool categoryNames;
+    
+    /**
+     * The names of the people
+     */
+    private Pool personNames;
+    
+    /**
+     * The categories of the pictures
+     */
+    private Runs categoryRuns;
+    
+    /**
+     * The people in the pictures
+     */
+    private Runs personRuns;
+    
+    
+    
+    /**
+     * Opens a column
+     * 
+     * @param   name   The name of the column file
+     * @param   width  The size of an element
+     * @return         The column
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private Column open(final String name, final int width) throws IOException
+    {
+	final Column column = new Column(this.directory.resolve(name), width);
+	this.columns.add(column);
+	return column;
+    }
+    
+    
+    /**
+     * Checks that the column files hold the data covered by the header
+     * 
+     * @return  Whether the column files are large enough
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private boolean holds() throws IOException
+    {
+	final int entries = this.counts[ENTRIES];
+	return this.timestamps.holds(entries) && this.widths.holds(entries) && this.heights.holds(entries)
+	    && this.orientations.holds(entries) && this.sizes.holds(entries) && this.pathIds.holds(entries)
+	    && this.categoryRuns.starts.holds(entries) && this.categoryRuns.ids.holds(this.counts[CATEGORY_LINKS])
+	    && this.personRuns.starts.holds(entries) && this.personRuns.ids.holds(this.counts[PERSON_LINKS])
+	    && this.paths.offsets.holds(this.counts[PATHS]) && this.paths.data.holds(this.counts[PATH_BYTES])
+	    && this.categoryNames.offsets.holds(this.counts[CATEGORIES])
+	    && this.categoryNames.data.holds(this.counts[CATEGORY_BYTES])
+	    && this.personNames.offsets.holds(this.counts[PEOPLE])
+	    && this.personNames.data.holds(this.counts[PERSON_BYTES]);
+    }
+    
+    
+    /**
+     * Commits the appended data, by updating the header
+     */
+    private void commit()
+    {
+	/* Already odd if the header was left by an instance that died while updating it */
+	final int odd = (int)HEADER.getVolatile(this.header, SEQUENCE) | 1;
+	HEADER.setVolatile(this.header, SEQUENCE, odd);
+	for (int slot = 0; slot < SLOTS; slot++)
+	    HEADER.setVolatile(this.header, 12 + 4 * slot, this.counts[slot] = this.pending[slot]);
+	HEADER.setVolatile(this.header, SEQUENCE, odd + 1);
+	this.entries = this.counts[ENTRIES];
+    }
+    
+    
+    /**
+     * Reads the header slots, waiting for another instance to finish updating them
+     * 
+     * @param   counts  Output parameter for the header slots, set even if the header is inconsistent
+     * @return          Whether a consistent header was read, otherwise
+     *                  another instance died while updating the header
+     */
+    private boolean readHeader(final int[] counts)
+    {
+	final long start = System.nanoTime();
+	for (int attempt = 0;; attempt++)
+	{
+	    final int sequence = (int)HEADER.getVolatile(this.header, SEQUENCE);
+	    for (int slot = 0; slot < SLOTS; slot++)
+		counts[slot] = (int)HEADER.getVolatile(this.header, 12 + 4 * slot);
+	    if (((sequence & 1) == 0) && ((int)HEADER.getVolatile(this.header, SEQUENCE) == sequence))
+		return true;
+	    if (System.nanoTime() - start > HEADER_TIMEOUT)
+		return false;
+	    if (attempt < 100)
+		Thread.onSpinWait();
+	    else
+		Thread.yield();
+	}
+    }
+    
+    
+    /**
+     * Picks up the data committed by other instances of the catalog,
+     * such as the one of an import
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public synchronized void refresh() throws IOException
+    {
+	final int[] counts = new int[SLOTS];
+	if (this.readHeader(counts) == false)
+	    /* Left inconsistent by an instance that died while updating it, it is repaired by the next commit */
+	    return;
+	if (counts[ENTRIES] < this.counts[ENTRIES])
+	    /* Emptied by another instance, the data we have mapped is still readable */
+	    return;
+	this.adopt(counts);
+    }
+    
+    
+    /**
+     * Takes the writer lock
+     * 
+     * @return  The lock of the header file, release with {@link #unlock(FileLock)}
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private FileLock lock() throws IOException
+    {
+	this.writer.lock();
+	try
+	{   return this.headerChannel.lock();
+	}
+	catch (final IOException | RuntimeException err)
+	{   this.writer.unlock();
+	    throw err;
+	}
+    }
+    
+    
+    /**
+     * Releases the writer lock
+     * 
+     * @param  lock  The lock of the header file
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private void unlock(final FileLock lock) throws IOException
+    {
+	try
+	{   lock.release();
+	}
+	finally
+	{   this.writer.unlock();
+	}
+    }
+    
+    
+    /**
+     * Picks up the data committed by other instances, must be called with the writer lock held
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private void catchUp() throws IOException
+    {
+	/* Even if left inconsistent by an instance that died while updating it, this writer repairs it */
+	final int[] counts = new int[SLOTS];
+	this.readHeader(counts);
+	this.adopt(counts);
+    }
+    
+    
+    /**
+     * Uses the values of header slots committed by another instance
+     * 
+     * @param   counts  The header slots
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private void adopt(final int[] counts) throws IOException
+    {
+	final int entries = counts[ENTRIES];
+	for (final Column column : new Column[] { this.timestamps, this.widths, this.heights, this.orientations,
+						  this.sizes, this.pathIds, this.categoryRuns.starts, this.personRuns.starts })
+	    column.ensure(entries);
+	this.categoryRuns.ids.ensure(counts[CATEGORY_LINKS]);
+	this.personRuns.ids.ensure(counts[PERSON_LINKS]);
+	this.paths.offsets.ensure(counts[PATHS]);
+	this.paths.data.ensure(counts[PATH_BYTES]);
+	this.categoryNames.offsets.ensure(counts[CATEGORIES]);
+	this.categoryNames.data.ensure(counts[CATEGORY_BYTES]);
+	this.personNames.offsets.ensure(counts[PEOPLE]);
+	this.personNames.data.ensure(counts[PERSON_BYTES]);
+	this.paths.ids = null;
+	this.categoryNames.ids = null;
+	this.personNames.ids = null;
+	
+	/* The header is not written back, the other instance may have committed more since */
+	System.arraycopy(counts, 0, this.counts, 0, SLOTS);
+	System.arraycopy(counts, 0, this.pending, 0, SLOTS);
+	this.entries = counts[ENTRIES];
+    }
+    
+    
+    /**
+     * Checks that an index refers to a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The number of pictures
+     */
+    private int check(final int entry)
+    {
+	final int entries = this.entries;
+	if ((entry < 0) || (entry >= entries))
+	    throw new IndexOutOfBoundsException("No such picture: " + entry);
+	return entries;
+    }
+    
+    
+    /**
+     * Gets the number of pictures in the catalog
+     * 
+     * @return  The number of pictures
+     */
+    public int size()
+    {
+	return this.entries;
+    }
+    
+    
+    /**
+     * Adds a picture to the catalog
+     * 
+     * @param   timestamp    When the picture was taken, in milliseconds since the epoch
+     * @param   width        The width of the picture, in pixels, zero if unknown
+     * @param   height       The height of the picture, in pixels, zero if unknown
+     * @param   orientation  The orientation of the picture, as in EXIF, zero if unknown
+     * @param   size         The size of the picture file
+     * @param   path         The path of the picture, relative to the picture directory
+     * @param   categories   The ids of the categories of the picture
+     * @param   people       The ids of the people in the picture
+     * @return               The index of the picture
+     * 
+     * @throws  IOException  On file I/O error, or if the catalog is full
+     */
+    public synchronized int add(final long timestamp, final int width, final int height, final int orientation,
+				final long size, final String path, final int[] categories, final int[] people)
+		    throws IOException
+    {
+	final FileLock lock = this.lock();
+	try
+	{   this.catchUp();
+	    return this.append(timestamp, width, height, orientation, size, path, categories, people);
+	}
+	finally
+	{   this.unlock(lock);
+	}
+    }
+    
+    
+    /**
+     * Adds a picture, must be called with the writer lock held
+     * 
+     * @param   timestamp    When the picture was taken, in milliseconds since the epoch
+     * @param   width        The width of the picture, in pixels, zero if unknown
+     * @param   height       The height of the picture, in pixels, zero if unknown
+     * @param   orientation  The orientation of the picture, as in EXIF, zero if unknown
+     * @param   size         The size of the picture file
+     * @param   path         The path of the picture, relative to the picture directory
+     * @param   categories   The ids of the categories of the picture
+     * @param   people       The ids of the people in the picture
+     * @return               The index of the picture
+     * 
+     * @throws  IOException  On file I/O error, or if the catalog is full
+     */
+    private int append(final long timestamp, final int width, final int height, final int orientation,
+		       final long size, final String path, final int[] categories, final int[] people) throws IOException
+    {
+	final int entry = this.counts[ENTRIES];
+	System.arraycopy(this.counts, 0, this.pending, 0, SLOTS);
+	
+	final int pathId = this.paths.add(path);
+	this.categoryRuns.add(entry, categories);
+	this.personRuns.add(entry, people);
+	
+	this.timestamps.ensure(entry + 1);
+	this.widths.ensure(entry + 1);
+	this.heights.ensure(entry + 1);
+	this.orientations.ensure(entry + 1);
+	this.sizes.ensure(entry + 1);
+	this.pathIds.ensure(entry + 1);
+	this.timestamps.buffer.putLong(entry << 3, timestamp);
+	this.widths.buffer.putInt(entry << 2, width);
+	this.heights.buffer.putInt(entry << 2, height);
+	this.orientations.buffer.put(entry, (byte)orientation);
+	this.sizes.buffer.putLong(entry << 3, size);
+	this.pathIds.buffer.putInt(entry << 2, pathId);
+	
+	this.pending[ENTRIES] = entry + 1;
+	this.commit();
+	return entry;
+    }
+    
+    
+    /**
+     * Gets when a picture was taken
+     * 
+     * @param   entry  The index of the picture
+     * @return         When the picture was taken, in milliseconds since the epoch
+     */
+    public long getTimestamp(final int entry)
+    {
+	this.check(entry);
+	return this.timestamps.buffer.getLong(entry << 3);
+    }
+    
+    /**
+     * Gets the width of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The width of the picture, in pixels, zero if unknown
+     */
+    public int getWidth(final int entry)
+    {
+	this.check(entry);
+	return this.widths.buffer.getInt(entry << 2);
+    }
+    
+    /**
+     * Gets the height of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The height of the picture, in pixels, zero if unknown
+     */
+    public int getHeight(final int entry)
+    {
+	this.check(entry);
+	return this.heights.buffer.getInt(entry << 2);
+    }
+    
+    /**
+     * Gets the orientation of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The orientation of the picture, as in EXIF, zero if unknown
+     */
+    public int getOrientation(final int entry)
+    {
+	this.check(entry);
+	return this.orientations.buffer.get(entry) & 255;
+    }
+    
+    /**
+     * Gets the file size of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The size of the picture file
+     */
+    public long getSize(final int entry)
+    {
+	this.check(entry);
+	return this.sizes.buffer.getLong(entry << 3);
+    }
+    
+    /**
+     * Gets the path id of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The id of the path of the picture
+     */
+    public int getPathId(final int entry)
+    {
+	this.check(entry);
+	return this.pathIds.buffer.getInt(entry << 2);
+    }
+    
+    /**
+     * Checks whether a picture is in the catalog
+     * 
+     * @param   path  The path of the picture, relative to the picture directory
+     * @return        Whether a picture with the path has been added
+     */
+    public synchronized boolean contains(final String path)
+    {
+	return this.paths.find(path) >= 0;
+    }
+    
+    /**
+     * Gets the path of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The path of the picture, relative to the picture directory
+     */
+    public String getPath(final int entry)
+    {
+	return this.paths.get(this.getPathId(entry));
+    }
+    
+    /**
+     * Gets the title of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The file name of the picture, without extension
+     */
+    public String getTitle(final int entry)
+    {
+	final String path = this.getPath(entry);
+	final String name = path.substring(path.lastIndexOf(File.separatorChar) + 1);
+	final int dot = name.lastIndexOf('.');
+	return dot <= 0 ? name : name.substring(0, dot);
+    }
+    
+    /**
+     * Gets the categories of a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The ids of the categories of the picture
+     */
+    public int[] getCategories(final int entry)
+    {
+	return this.categoryRuns.get(entry, this.check(entry));
+    }
+    
+    /**
+     * Gets the people in a picture
+     * 
+     * @param   entry  The index of the picture
+     * @return         The ids of the people in the picture
+     */
+    public int[] getPeople(final int entry)
+    {
+	return this.personRuns.get(entry, this.check(entry));
+    }
+    
+    
+    /**
+     * Gets the id of a category, adding the category if it is new
+     * 
+     * @param   name  The name of the category
+     * @return        The id of the category
+     * 
+     * @throws  IOException  On file I/O error, or if the catalog is full
+     */
+    public synchronized int category(final String name) throws IOException
+    {
+	final int id = this.categoryNames.find(name);
+	if (id >= 0)
+	    return id;
+	final FileLock lock = this.lock();
+	try
+	{   this.catchUp();
+	    System.arraycopy(this.counts, 0, this.pending, 0, SLOTS);
+	    return this.categoryNames.intern(name);
+	}
+	finally
+	{   this.unlock(lock);
+	}
+    }
+    
+    /**
+     * Gets the id of a person, adding the person if it is new
+     * 
+     * @param   name  The name of the person
+     * @return        The id of the person
+     * 
+     * @throws  IOException  On file I/O error, or if the catalog is full
+     */
+    public synchronized int person(final String name) throws IOException
+    {
+	final int id = this.personNames.find(name);
+	if (id >= 0)
+	    return id;
+	final FileLock lock = this.lock();
+	try
+	{   this.catchUp();
+	    System.arraycopy(this.counts, 0, this.pending, 0, SLOTS);
+	    return this.personNames.intern(name);
+	}
+	finally
+	{   this.unlock(lock);
+	}
+    }
+    
+    /**
+     * Gets the number of categories
+     * 
+     * @return  The number of categories
+     */
+    public synchronized int getCategoryCount()
+    {
+	return this.categoryNames.size();
+    }
+    
+    /**
+     * Gets the number of people
+     * 
+     * @return  The number of people
+     */
+    public synchronized int getPersonCount()
+    {
+	return this.personNames.size();
+    }
+    
+    /**
+     * Gets the name of a category
+     * 
+     * @param   id  The id of the category
+     * @return      The name of the category
+     */
+    public synchronized String getCategoryName(final int id)
+    {
+	return this.categoryNames.get(id);
+    }
+    
+    /**
+     * Gets the name of a person
+     * 
+     * @param   id  The id of the person
+     * @return      The name of the person
+     */
+    public synchronized String getPersonName(final int id)
+    {
+	return this.personNames.get(id);
+    }
+    
+    
+    /**
+     * Forces the catalog to the disk, the columns before the header,
+     * as one operation in the {@link IoScheduler}
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public synchronized void flush() throws IOException
+    {
+	IoScheduler.begin(0);
+	try
+	{   for (final Column column : this.columns)
+		column.force();
+	    this.header.force();
+	}
+	finally
+	{   IoScheduler.end();
+	}
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+	if ((this.headerChannel == null) || (this.headerChannel.isOpen() == false))
+	    return;
+	if (this.header != null)
+	    this.flush();
+	for (final Column column : this.columns)
+	    column.close();
+	this.headerChannel.close();
+    }
+    
+}
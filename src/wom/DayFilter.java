@@ -25,7 +25,10 @@ import java.awt.event.*;
 
 
 /**
- * Day filter component
+ * Day filter component, with a column for each of the weeks up to the last
+ * week with pictures, or the current week until that is known, and a row for
+ * each weekday; weekdays selected in the row for all weeks are also selected
+ * in the weeks that are not shown
  */
 @SuppressWarnings("serial")
 public class DayFilter extends JComponent implements MouseInputListener
@@ -66,6 +69,7 @@ public class DayFilter extends JComponent implements MouseInputListener
 	
 	this.addMouseListener(this);
 	this.addMouseMotionListener(this);
+	ToolTipManager.sharedInstance().registerComponent(this);
 	
 	final int x_ = Math.max(this.selected.length, 1);
 	final int x = MARGIN * 2 + BOX_WIDTH  + BIG_GAP + x_ * (BOX_WIDTH  + BOX_GAP) - BOX_GAP;
@@ -85,6 +89,11 @@ public class DayFilter extends JComponent implements MouseInputListener
      */
     private byte d_selected = 0;
     
+    /**
+     * The week of the first column, as returned by {@link TimeIndex#getWeek(long)}
+     */
+    private int first_week = TimeIndex.getWeek(System.currentTimeMillis()) - this.selected.length + 1;
+    
     /**
      * The index of the hovered element, -1 if none
      */
@@ -92,6 +101,72 @@ public class DayFilter extends JComponent implements MouseInputListener
     
     
     
+    /**
+     * Sets the last week to show, the selection of the weeks that remain is kept,
+     * and the weekdays selected for all weeks are selected in the added weeks
+     * 
+     * @param  lastWeek  The last week with pictures, as returned by {@link TimeIndex#getWeek(long)}
+     */
+    public void setLastWeek(final int lastWeek)
+    {
+	final int firstWeek = lastWeek - this.selected.length + 1;
+	if (firstWeek == this.first_week)
+	    return;
+	final byte[] selected = new byte[this.selected.length];
+	for (int i = 0; i < selected.length; i++)
+	{   final int old = firstWeek + i - this.first_week;
+	    selected[i] = (0 <= old) && (old < this.selected.length) ? this.selected[old] : this.d_selected;
+	}
+	this.selected = selected;
+	this.first_week = firstWeek;
+	this.repaint();
+    }
+    
+    /**
+     * Gets the week of the first column
+     * 
+     * @return  The week of the first column, as returned by {@link TimeIndex#getWeek(long)}
+     */
+    public int getFirstWeek()
+    {
+	return this.first_week;
+    }
+    
+    /**
+     * Gets the selection
+     * 
+     * @return  For each week, the mask of selected weekdays
+     */
+    public byte[] getSelection()
+    {
+	return this.selected.clone();
+    }
+    
+    /**
+     * Gets the selection of the row for all weeks, which applies to the weeks that are not shown
+     * 
+     * @return  The mask of weekdays selected for all weeks
+     */
+    public byte getAllWeeksSelection()
+    {
+	return this.d_selected;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getToolTipText(final MouseEvent e)
+    {
+	final int hover = calculateHover(e.getPoint());
+	final int x = (hover / 8) - 1;
+	if ((hover < 0) || (x >= this.selected.length))
+	    return null;
+	return x < 0 ? "All weeks" : String.format("Week of %tF", TimeIndex.getWeekStart(this.first_week + x));
+    }
+    
+    
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,497 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+
+/**
+ * Executor-backed {@link Blackboard.ThreadingPolicy threading policies},
+ * these run message deliveries on a bounded number of threads rather than
+ * starting a new thread for each delivered message
+ */
+public class ExecutorThreading
+{
+    /**
+     * Non-instansiable class
+     */
+    private ExecutorThreading()
+    {
+	/* do nothing */
+    }
+    
+    
+    
+    /**
+     * What to do with a delivery when a policy's queue is full
+     */
+    public static enum Saturation
+    {
+	/**
+	 * Block the broadcaster until there is room in the queue, unless the
+	 * broadcaster is itself running a delivery of an executor-backed policy,
+	 * in which case the delivery is run in its thread, as waiting for a queue
+	 * that only the waiting threads can drain would deadlock
+	 */
+	BLOCK,
+	
+	/**
+	 * Run the delivery in the broadcaster's thread
+	 */
+	CALLER_RUNS,
+	
+	/**
+	 * Drop the delivery
+	 */
+	DISCARD,
+	
+	/**
+	 * Drop the oldest queued delivery, only available for thread pools
+	 */
+	DISCARD_OLDEST,
+	
+	/**
+	 * Throw a {@link RejectedExecutionException} in the broadcaster's thread
+	 */
+	ABORT,
+    }
+    
+    
+    
+    /**
+     * The shared fork–join pool, created when first used
+     */
+    private static ForkJoinPool forkJoinPool = null;
+    
+    /**
+     * Whether the current thread is running a delivery of an executor-backed policy
+     */
+    private static final ThreadLocal<Boolean> delivering = new ThreadLocal<Boolean>();
+    
+    /**
+     * {@code Thread.ofVirtual()}, {@code null} if virtual threads are not supported
+     */
+    private static final Method OF_VIRTUAL;
+    
+    /**
+     * {@code Thread.Builder.unstarted(Runnable)}, {@code null} if virtual threads are not supported
+     */
+    private static final Method UNSTARTED;
+    
+    
+    
+    /**
+     * Class initialiser
+     */
+    static
+    {
+	Method ofVirtual = null, unstarted = null;
+	try
+	{   ofVirtual = Thread.class.getMethod("ofVirtual");
+	    unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+	}
+	catch (final Throwable err)
+	{   ofVirtual = unstarted = null;
+	}
+	OF_VIRTUAL = ofVirtual;
+	UNSTARTED = unstarted;
+    }
+    
+    
+    
+    /**
+     * Gets whether the JVM supports virtual threads
+     * 
+     * @return  Whether the JVM supports virtual threads
+     */
+    public static boolean hasVirtualThreads()
+    {
+	return OF_VIRTUAL != null;
+    }
+    
+    
+    /**
+     * Creates a threading policy backed by a thread pool of its own
+     * 
+     * @param   threads     The number of threads in the pool, must be positive
+     * @param   queueLimit  The maximum number of deliveries waiting for a thread, must be positive
+     * @param   saturation  What to do when the queue is full
+     * @param   daemon      Whether the threads should be daemon threads
+     * @param   priority    The priority of the threads, 1 is nice, 5 is normal and 10 is nasty
+     * @return              The threading policy
+     * 
+     * @throws  IllegalArgumentException  If {@code threads} or {@code queueLimit} is not positive
+     */
+    public static Blackboard.ExecutorThreadingPolicy pooled(final int threads, final int queueLimit, final Saturation saturation,
+							    final boolean daemon, final int priority)
+    {
+	return new PooledPolicy(threads, queueLimit, saturation, daemon, priority);
+    }
+    
+    
+    /**
+     * Creates a threading policy backed by the fork–join pool shared by all
+     * such policies, the pool has one daemon thread per processor
+     * 
+     * @param   queueLimit  The maximum number of deliveries this policy may have queued or running, must be positive
+     * @param   saturation  What to do when the limit is reached, may not be {@link Saturation#DISCARD_OLDEST}
+     * @return              The threading policy
+     * 
+     * @throws  IllegalArgumentException  If {@code queueLimit} is not positive
+     */
+    public static Blackboard.ExecutorThreadingPolicy forkJoin(final int queueLimit, final Saturation saturation)
+    {
+	return new BoundedPolicy(getForkJoinPool(), queueLimit, saturation);
+    }
+    
+    
+    /**
+     * Creates a threading policy that runs each delivery in a virtual thread,
+     * if the JVM does not support virtual threads the shared fork–join pool
+     * is used instead, so deliveries always run on a fixed number of carriers
+     * 
+     * @param   queueLimit  The maximum number of deliveries this policy may have queued or running, must be positive
+     * @param   saturation  What to do when the limit is reached, may not be {@link Saturation#DISCARD_OLDEST}
+     * @return              The threading policy
+     * 
+     * @throws  IllegalArgumentException  If {@code queueLimit} is not positive
+     */
+    public static Blackboard.ExecutorThreadingPolicy virtual(final int queueLimit, final Saturation saturation)
+    {
+	if (queueLimit <= 0)
+	    throw new IllegalArgumentException("Queue limit must be positive");
+	if (hasVirtualThreads() == false)
+	    return forkJoin(queueLimit, saturation);
+	
+	return new BoundedPolicy(new Executor()
+		{   /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public void execute(final Runnable runnable)
+		    {   createVirtualThread(runnable).start();
+		}   }, queueLimit, saturation);
+    }
+    
+    
+    /**
+     * Gets, and if missing, creates, the shared fork–join pool
+     * 
+     * @return  The shared fork–join pool
+     */
+    private static synchronized ForkJoinPool getForkJoinPool()
+    {
+	if (forkJoinPool == null)
+	    forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+					    new ForkJoinPool.ForkJoinWorkerThreadFactory()
+					    {   /**
+						 * {@inheritDoc}
+						 */
+						@Override
+						public ForkJoinWorkerThread newThread(final ForkJoinPool pool)
+						{   final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) { /* protected constructor */ };
+						    thread.setDaemon(true);
+						    thread.setName("blackboard-fork-join-" + thread.getPoolIndex());
+						    return thread;
+					    }   }, null, true);
+	return forkJoinPool;
+    }
+    
+    
+    /**
+     * Creates an unstarted daemon thread, a virtual thread if the JVM supports them
+     * 
+     * @param   runnable  The {@code run} implementation of the thread
+     * @return            The new thread
+     */
+    static Thread createDaemonThread(final Runnable runnable)
+    {
+	final Thread thread = hasVirtualThreads() ? createVirtualThread(runnable) : new Thread(runnable);
+	if (thread.isDaemon() == false)
+	    thread.setDaemon(true);
+	return thread;
+    }
+    
+    
+    /**
+     * Wraps a delivery so that it is known to run in a thread of an executor-backed policy
+     * 
+     * @param   runnable  The delivery
+     * @return            The wrapped delivery
+     */
+    private static Runnable delivery(final Runnable runnable)
+    {
+	return new Runnable()
+	    {   /**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run()
+		{   final Boolean previous = delivering.get();
+		    delivering.set(Boolean.TRUE);
+		    try
+		    {   runnable.run();
+		    }
+		    finally
+		    {   delivering.set(previous);
+	    }   }   };
+    }
+    
+    
+    /**
+     * Gets whether the current thread is running a delivery of an executor-backed policy
+     * 
+     * @return  Whether the current thread is running a delivery
+     */
+    private static boolean isDelivering()
+    {
+	return delivering.get() != null;
+    }
+    
+    
+    /**
+     * Creates an unstarted virtual thread
+     * 
+     * @param   runnable  The {@code run} implementation of the thread
+     * @return            The new thread
+     */
+    private static Thread createVirtualThread(final Runnable runnable)
+    {
+	try
+	{   return (Thread)(UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable));
+	}
+	catch (final Exception err)
+	{   throw new RejectedExecutionException(err);
+	}
+    }
+    
+    
+    
+    /**
+     * Threading policy backed by a thread pool of its own
+     */
+    private static class PooledPolicy implements Blackboard.ExecutorThreadingPolicy
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  threads     The number of threads in the pool
+	 * @param  queueLimit  The maximum number of deliveries waiting for a thread
+	 * @param  saturation  What to do when the queue is full
+	 * @param  daemon      Whether the threads should be daemon threads
+	 * @param  priority    The priority of the threads
+	 */
+	PooledPolicy(final int threads, final int queueLimit, final Saturation saturation, final boolean daemon, final int priority)
+	{
+	    if (threads <= 0)
+		throw new IllegalArgumentException("Number of threads must be positive");
+	    if (queueLimit <= 0)
+		throw new IllegalArgumentException("Queue limit must be positive");
+	    this.daemon = daemon;
+	    this.priority = priority;
+	    
+	    final RejectedExecutionHandler handler;
+	    switch (saturation)
+	    {
+		case BLOCK:
+		    handler = new RejectedExecutionHandler()
+			    {   /**
+				 * {@inheritDoc}
+				 */
+				@Override
+				public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor)
+				{   if (executor.isShutdown())
+					throw new RejectedExecutionException("Thread pool has been shut down");
+				    if (isDelivering())
+				    {   runnable.run();
+					return;
+				    }
+				    try
+				    {   executor.getQueue().put(runnable);
+				    }
+				    catch (final InterruptedException err)
+				    {   Thread.currentThread().interrupt();
+					throw new RejectedExecutionException(err);
+			    }   }   };
+		    break;
+		    
+		case CALLER_RUNS:     handler = new ThreadPoolExecutor.CallerRunsPolicy();     break;
+		case DISCARD:         handler = new ThreadPoolExecutor.DiscardPolicy();        break;
+		case DISCARD_OLDEST:  handler = new ThreadPoolExecutor.DiscardOldestPolicy();  break;
+		default:              handler = new ThreadPoolExecutor.AbortPolicy();          break;
+	    }
+	    
+	    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+						   new ArrayBlockingQueue<Runnable>(queueLimit),
+						   new ThreadFactory()
+						   {   /**
+							* {@inheritDoc}
+							*/
+						       @Override
+						       public Thread newThread(final Runnable runnable)
+						       {   return PooledPolicy.this.createThread(runnable);
+						   }   }, handler);
+	    this.executor.allowCoreThreadTimeOut(true);
+	}
+	
+	
+	
+	/**
+	 * The thread pool
+	 */
+	private final ThreadPoolExecutor executor;
+	
+	/**
+	 * Whether the threads should be daemon threads
+	 */
+	private final boolean daemon;
+	
+	/**
+	 * The priority of the threads
+	 */
+	private final int priority;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Thread createThread(final Runnable runnable)
+	{
+	    final Thread thread = new Thread(runnable);
+	    thread.setDaemon(this.daemon);
+	    thread.setPriority(this.priority);
+	    return thread;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void execute(final Runnable runnable)
+	{
+	    this.executor.execute(delivery(runnable));
+	}
+    }
+    
+    
+    /**
+     * Threading policy backed by a shared executor, with a limit
+     * of the number of deliveries the policy may have in it
+     */
+    private static class BoundedPolicy implements Blackboard.ExecutorThreadingPolicy
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  executor    The executor
+	 * @param  queueLimit  The maximum number of deliveries this policy may have queued or running
+	 * @param  saturation  What to do when the limit is reached
+	 */
+	BoundedPolicy(final Executor executor, final int queueLimit, final Saturation saturation)
+	{
+	    if (saturation == Saturation.DISCARD_OLDEST)
+		throw new IllegalArgumentException("DISCARD_OLDEST requires a thread pool");
+	    if (queueLimit <= 0)
+		throw new IllegalArgumentException("Queue limit must be positive");
+	    this.executor = executor;
+	    this.permits = new Semaphore(queueLimit);
+	    this.saturation = saturation;
+	}
+	
+	
+	
+	/**
+	 * The executor
+	 */
+	private final Executor executor;
+	
+	/**
+	 * One permit for each delivery that may be added
+	 */
+	private final Semaphore permits;
+	
+	/**
+	 * What to do when the limit is reached
+	 */
+	private final Saturation saturation;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Thread createThread(final Runnable runnable)
+	{
+	    return createDaemonThread(runnable);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void execute(final Runnable runnable)
+	{
+	    if (this.permits.tryAcquire() == false)
+		switch (this.saturation)
+		{
+		    case BLOCK:
+			if (isDelivering())
+			{   runnable.run();
+			    return;
+			}
+			this.permits.acquireUninterruptibly();
+			break;
+			
+		    case CALLER_RUNS:
+			runnable.run();
+			return;
+			
+		    case DISCARD:
+			return;
+			
+		    default:
+			throw new RejectedExecutionException("Threading policy is saturated");
+		}
+	    
+	    try
+	    {   this.executor.execute(delivery(new Runnable()
+			{   /**
+			     * {@inheritDoc}
+			     */
+			    @Override
+			    public void run()
+			    {   try
+				{   runnable.run();
+				}
+				finally
+				{   BoundedPolicy.this.permits.release();
+			}   }   }));
+	    }
+	    catch (final RejectedExecutionException err)
+	    {   this.permits.release();
+		throw err;
+	    }
+	}
+    }
+    
+}
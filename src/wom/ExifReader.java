@@ -0,0 +1,589 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Extracts the capture time, dimensions and orientation of pictures from
+ * their headers, without decoding any pixels.<br/>
+ * JPEG files are read segment by segment up to the start of the image data:
+ * the EXIF data is read from the APP1 segment, and the dimensions from the
+ * start-of-frame segment. TIFF files, and raw formats based on TIFF, are read
+ * from their first IFD and EXIF IFD, and PNG files from their IHDR chunk.
+ * The header is normally within the first 64 KiB, which is read at once into
+ * a direct buffer, the buffers are reused between files. Malformed or truncated
+ * headers give whatever was found before the error.
+ */
+public class ExifReader
+{
+    /**
+     * Non-instansiable class
+     */
+    private ExifReader()
+    {
+	/* do nothing */
+    }
+    
+    
+    
+    /**
+     * The size of the read buffers, the largest JPEG segment with its marker
+     */
+    private static final int BUFFER_SIZE = 2 + 0xFFFF;
+    
+    /**
+     * The maximum number of reads per file, bounds the I/O spent on a scattered header
+     */
+    private static final int MAX_READS = 8;
+    
+    /**
+     * Unused read buffers
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    
+    
+    
+    /**
+     * The metadata of a picture
+     */
+    public static final class Metadata
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  timestamp    When the picture was taken, in milliseconds since the epoch, -1 if unknown
+	 * @param  width        The width of the picture, in pixels, zero if unknown
+	 * @param  height       The height of the picture, in pixels, zero if unknown
+	 * @param  orientation  The orientation of the picture, as in EXIF, zero if unknown
+	 */
+	Metadata(final long timestamp, final int width, final int height, final int orientation)
+	{
+	    this.timestamp = timestamp;
+	    this.width = width;
+	    this.height = height;
+	    this.orientation = orientation;
+	}
+	
+	
+	
+	/**
+	 * When the picture was taken, in milliseconds since the epoch, -1 if unknown
+	 */
+	private final long timestamp;
+	
+	/**
+	 * The width of the picture, in pixels, zero if unknown
+	 */
+	private final int width;
+	
+	/**
+	 * The height of the picture, in pixels, zero if unknown
+	 */
+	private final int height;
+	
+	/**
+	 * The orientation of the picture, as in EXIF, zero if unknown
+	 */
+	private final int orientation;
+	
+	
+	
+	/**
+	 * Gets when the picture was taken
+	 * 
+	 * @return  When the picture was taken, in milliseconds since the epoch, -1 if unknown
+	 */
+	public long getTimestamp()
+	{   return this.timestamp;
+	}
+	
+	/**
+	 * Gets the width of the picture, as stored
+	 * 
+	 * @return  The width of the picture, in pixels, zero if unknown
+	 */
+	public int getWidth()
+	{   return this.width;
+	}
+	
+	/**
+	 * Gets the height of the picture, as stored
+	 * 
+	 * @return  The height of the picture, in pixels, zero if unknown
+	 */
+	public int getHeight()
+	{   return this.height;
+	}
+	
+	/**
+	 * Gets the orientation of the picture
+	 * 
+	 * @return  The orientation of the picture, as in EXIF, 1 to 8, zero if unknown
+	 */
+	public int getOrientation()
+	{   return this.orientation;
+	}
+	
+    }
+    
+    
+    /**
+     * The state of the extraction from a file
+     */
+    private static final class Parser
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  channel  The file
+	 * @param  buffer   The read buffer
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	Parser(final FileChannel channel, final ByteBuffer buffer) throws IOException
+	{
+	    this.channel = channel;
+	    this.buffer = buffer;
+	    this.size = channel.size();
+	    this.fill(0);
+	}
+	
+	
+	
+	/**
+	 * The file
+	 */
+	private final FileChannel channel;
+	
+	/**
+	 * The read buffer, holds the bytes from {@link #base}
+	 */
+	private final ByteBuffer buffer;
+	
+	/**
+	 * The size of the file
+	 */
+	private final long size;
+	
+	/**
+	 * The position in the file of the first byte in the buffer
+	 */
+	private long base = 0;
+	
+	/**
+	 * The number of reads made
+	 */
+	private int reads = 0;
+	
+	/**
+	 * The value of DateTimeOriginal, -1 if not found
+	 */
+	long original = -1;
+	
+	/**
+	 * The value of DateTimeDigitized, -1 if not found
+	 */
+	long digitized = -1;
+	
+	/**
+	 * The value of DateTime, -1 if not found
+	 */
+	long changed = -1;
+	
+	/**
+	 * The value of OffsetTimeOriginal, {@code null} if not found
+	 */
+	String offset = null;
+	
+	/**
+	 * The width from the image data, or the first IFD, zero if not found
+	 */
+	int width = 0;
+	
+	/**
+	 * The height from the image data, or the first IFD, zero if not found
+	 */
+	int height = 0;
+	
+	/**
+	 * The value of PixelXDimension, zero if not found
+	 */
+	int pixelWidth = 0;
+	
+	/**
+	 * The value of PixelYDimension, zero if not found
+	 */
+	int pixelHeight = 0;
+	
+	/**
+	 * The value of Orientation, zero if not found
+	 */
+	int orientation = 0;
+	
+	
+	
+	/**
+	 * Fills the buffer from a position in the file
+	 * 
+	 * @param  position  The position in the file
+	 * 
+	 * @throws  IOException  On file I/O error, or if the file has been read too many times
+	 */
+	private void fill(final long position) throws IOException
+	{
+	    if (++this.reads > MAX_READS)
+		throw new EOFException("Picture header is too scattered");
+	    this.buffer.clear();
+	    IoScheduler.begin(this.buffer.capacity());
+	    try
+	    {   for (long offset = position; this.buffer.hasRemaining();)
+		{   final int n = this.channel.read(this.buffer, offset);
+		    if (n < 0)
+			break;
+		    offset += n;
+	    }   }
+	    finally
+	    {   IoScheduler.end();
+	    }
+	    this.buffer.flip();
+	    this.base = position;
+	}
+	
+	/**
+	 * Makes sure that a range of the file is in the buffer
+	 * 
+	 * @param   position  The position of the range in the file
+	 * @param   length    The length of the range, at most the size of the buffer
+	 * @return            The position of the range in the buffer
+	 * 
+	 * @throws  IOException  On file I/O error, or if the range is outside the file
+	 */
+	int at(final long position, final int length) throws IOException
+	{
+	    if ((position < 0) || (position + length > this.size))
+		throw new EOFException("Truncated picture header");
+	    if ((position < this.base) || (position + length > this.base + this.buffer.limit()))
+		this.fill(position);
+	    return (int)(position - this.base);
+	}
+	
+	/**
+	 * Reads an unsigned byte
+	 * 
+	 * @param   position  The position in the file
+	 * @return            The value
+	 * 
+	 * @throws  IOException  On file I/O error, or if the position is outside the file
+	 */
+	int u8(final long position) throws IOException
+	{
+	    return this.buffer.get(this.at(position, 1)) & 255;
+	}
+	
+	/**
+	 * Reads an unsigned 16-bit integer, in the current byte order
+	 * 
+	 * @param   position  The position in the file
+	 * @return            The value
+	 * 
+	 * @throws  IOException  On file I/O error, or if the position is outside the file
+	 */
+	int u16(final long position) throws IOException
+	{
+	    return this.buffer.getShort(this.at(position, 2)) & 0xFFFF;
+	}
+	
+	/**
+	 * Reads an unsigned 32-bit integer, in the current byte order
+	 * 
+	 * @param   position  The position in the file
+	 * @return            The value
+	 * 
+	 * @throws  IOException  On file I/O error, or if the position is outside the file
+	 */
+	long u32(final long position) throws IOException
+	{
+	    return this.buffer.getInt(this.at(position, 4)) & 0xFFFFFFFFL;
+	}
+	
+	
+	/**
+	 * Extracts the metadata
+	 * 
+	 * @throws  IOException  On file I/O error, or if the header is malformed
+	 */
+	void parse() throws IOException
+	{
+	    this.buffer.order(ByteOrder.BIG_ENDIAN);
+	    final int magic = this.u16(0);
+	    if (magic == 0xFFD8)
+		this.jpeg();
+	    else if ((magic == 0x4949) || (magic == 0x4D4D))
+		this.tiff(0);
+	    else if ((this.u32(0) == 0x89504E47L) && (this.u32(4) == 0x0D0A1A0AL) && (this.u32(12) == 0x49484452L))
+	    {   /* PNG signature followed by an IHDR chunk */
+		this.width = (int)Math.min(this.u32(16), Integer.MAX_VALUE);
+		this.height = (int)Math.min(this.u32(20), Integer.MAX_VALUE);
+	    }
+	}
+	
+	/**
+	 * Extracts the metadata from the segments of a JPEG file
+	 * 
+	 * @throws  IOException  On file I/O error, or if the header is malformed
+	 */
+	private void jpeg() throws IOException
+	{
+	    boolean exif = false;
+	    for (long position = 2;;)
+	    {
+		if (this.u8(position) != 0xFF)
+		    return;
+		final int marker = this.u8(position + 1);
+		if (marker == 0xFF)
+		{   /* Fill byte */
+		    position++;
+		    continue;
+		}
+		if ((marker == 0x01) || ((0xD0 <= marker) && (marker <= 0xD8)))
+		{   /* Standalone markers */
+		    position += 2;
+		    continue;
+		}
+		if ((marker == 0xD9) || (marker == 0xDA))
+		    /* End of image, or start of the image data: there is no frame header */
+		    return;
+		
+		final int length = this.u16(position + 2);
+		if (length < 2)
+		    return;
+		if ((marker == 0xE1) && (exif == false) && (length >= 16)
+		    && (this.u32(position + 4) == 0x45786966L) && (this.u16(position + 8) == 0))
+		{   /* "Exif\0\0", the whole segment is read at once */
+		    this.at(position, 2 + length);
+		    exif = true;
+		    this.tiff(position + 10);
+		    this.buffer.order(ByteOrder.BIG_ENDIAN);
+		}
+		else if ((0xC0 <= marker) && (marker <= 0xCF) && (marker != 0xC4) && (marker != 0xC8) && (marker != 0xCC))
+		{   /* Start of frame, the EXIF data comes before it */
+		    this.height = this.u16(position + 5);
+		    this.width = this.u16(position + 7);
+		    return;
+		}
+		position += 2 + length;
+	    }
+	}
+	
+	/**
+	 * Extracts the metadata from a TIFF structure
+	 * 
+	 * @param  start  The position of the TIFF header in the file
+	 * 
+	 * @throws  IOException  On file I/O error, or if the structure is malformed
+	 */
+	private void tiff(final long start) throws IOException
+	{
+	    final int order = this.u16(start);
+	    if (order == 0x4949)
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+	    else if (order == 0x4D4D)
+		this.buffer.order(ByteOrder.BIG_ENDIAN);
+	    else
+		return;
+	    
+	    /* TIFF, and the variants of Olympus and Panasonic raw files */
+	    final int version = this.u16(start + 2);
+	    if ((version != 42) && (version != 0x4F52) && (version != 0x5352) && (version != 0x55))
+		return;
+	    
+	    final long exif = this.ifd(start, this.u32(start + 4));
+	    if (exif > 0)
+		this.ifd(start, exif);
+	}
+	
+	/**
+	 * Extracts the metadata from an IFD
+	 * 
+	 * @param   start   The position of the TIFF header in the file
+	 * @param   offset  The offset of the IFD from the TIFF header
+	 * @return          The offset of the EXIF IFD from the TIFF header, zero if not referred to
+	 * 
+	 * @throws  IOException  On file I/O error, or if the IFD is malformed
+	 */
+	private long ifd(final long start, final long offset) throws IOException
+	{
+	    long exif = 0;
+	    final long position = start + offset;
+	    final int count = this.u16(position);
+	    for (int i = 0; i < count; i++)
+	    {
+		final long entry = position + 2 + 12 * i;
+		switch (this.u16(entry))
+		{
+		    case 0x0100:  this.width = (int)Math.min(this.integer(entry), Integer.MAX_VALUE);        break;
+		    case 0x0101:  this.height = (int)Math.min(this.integer(entry), Integer.MAX_VALUE);       break;
+		    case 0x0112:  this.orientation = (int)this.integer(entry);                               break;
+		    case 0x0132:  this.changed = this.time(this.string(start, entry));                      break;
+		    case 0x8769:  exif = Math.max(this.integer(entry), 0);                                  break;
+		    case 0x9003:  this.original = this.time(this.string(start, entry));                     break;
+		    case 0x9004:  this.digitized = this.time(this.string(start, entry));                    break;
+		    case 0x9011:  this.offset = this.string(start, entry);                                  break;
+		    case 0xA002:  this.pixelWidth = (int)Math.min(this.integer(entry), Integer.MAX_VALUE);  break;
+		    case 0xA003:  this.pixelHeight = (int)Math.min(this.integer(entry), Integer.MAX_VALUE); break;
+		    default:
+			break;
+		}
+	    }
+	    return exif;
+	}
+	
+	/**
+	 * Reads the value of an IFD entry of the type SHORT or LONG
+	 * 
+	 * @param   entry  The position of the entry in the file
+	 * @return         The value, -1 if the entry is of another type
+	 * 
+	 * @throws  IOException  On file I/O error, or if the entry is outside the file
+	 */
+	private long integer(final long entry) throws IOException
+	{
+	    switch (this.u16(entry + 2))
+	    {
+		case 3:   return this.u16(entry + 8);
+		case 4:   return this.u32(entry + 8);
+		default:  return -1;
+	    }
+	}
+	
+	/**
+	 * Reads the value of an IFD entry of the type ASCII
+	 * 
+	 * @param   start  The position of the TIFF header in the file
+	 * @param   entry  The position of the entry in the file
+	 * @return         The value, {@code null} if the entry is of another type
+	 * 
+	 * @throws  IOException  On file I/O error, or if the value is outside the file
+	 */
+	private String string(final long start, final long entry) throws IOException
+	{
+	    if (this.u16(entry + 2) != 2)
+		return null;
+	    final long count = Math.min(this.u32(entry + 4), 64);
+	    final long position = count <= 4 ? entry + 8 : start + this.u32(entry + 8);
+	    final StringBuilder string = new StringBuilder();
+	    for (int i = 0; i < count; i++)
+	    {   final int c = this.u8(position + i);
+		if (c == 0)
+		    break;
+		string.append((char)c);
+	    }
+	    return string.toString();
+	}
+	
+	/**
+	 * Parses an EXIF timestamp, "YYYY:MM:DD HH:MM:SS"
+	 * 
+	 * @param   value  The timestamp, may be {@code null}
+	 * @return         The timestamp, in milliseconds since the epoch, -1 if missing or invalid
+	 */
+	private long time(final String value)
+	{
+	    if ((value == null) || (value.length() < 19))
+		return -1;
+	    final int[] fields = new int[6];
+	    for (int i = 0; i < 6; i++)
+		for (int j = 0; j < (i == 0 ? 4 : 2); j++)
+		{   final char c = value.charAt(i == 0 ? j : 2 + 3 * i + j);
+		    if ((c < '0') || ('9' < c))
+			return -1;
+		    fields[i] = fields[i] * 10 + (c - '0');
+		}
+	    if ((fields[0] == 0) || (fields[1] < 1) || (fields[1] > 12) || (fields[2] < 1) || (fields[2] > 31)
+		|| (fields[3] > 23) || (fields[4] > 59) || (fields[5] > 60))
+		return -1;
+	    final GregorianCalendar calendar = new GregorianCalendar();
+	    calendar.clear();
+	    calendar.set(fields[0], fields[1] - 1, fields[2], fields[3], fields[4], fields[5]);
+	    return calendar.getTimeInMillis();
+	}
+	
+	
+	/**
+	 * Creates the metadata from what has been found
+	 * 
+	 * @return  The metadata
+	 */
+	Metadata toMetadata()
+	{
+	    long timestamp = this.original >= 0 ? this.original : this.digitized >= 0 ? this.digitized : this.changed;
+	    if ((timestamp >= 0) && (timestamp == this.original) && (this.offset != null)
+		&& this.offset.matches("[+-][0-9][0-9]:[0-9][0-9]"))
+	    {   /* The capture time was in another time zone than ours */
+		final TimeZone zone = TimeZone.getTimeZone("GMT" + this.offset);
+		timestamp += TimeZone.getDefault().getOffset(timestamp) - zone.getOffset(timestamp);
+	    }
+	    final boolean frame = (this.width > 0) && (this.height > 0);
+	    return new Metadata(timestamp,
+				frame ? this.width  : this.pixelWidth,
+				frame ? this.height : this.pixelHeight,
+				(1 <= this.orientation) && (this.orientation <= 8) ? this.orientation : 0);
+	}
+	
+    }
+    
+    
+    
+    /**
+     * Extracts the metadata of a picture
+     * 
+     * @param   file  The picture
+     * @return        The metadata of the picture
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public static Metadata read(final Path file) throws IOException
+    {
+	ByteBuffer buffer = buffers.poll();
+	if (buffer == null)
+	    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+	{
+	    final Parser parser = new Parser(channel, buffer);
+	    try
+	    {   parser.parse();
+	    }
+	    catch (final EOFException err)
+	    {   /* Truncated or malformed, keep what was found */
+	    }
+	    return parser.toMetadata();
+	}
+	finally
+	{   buffers.offer(buffer);
+	}
+    }
+    
+}
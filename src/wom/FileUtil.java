@@ -19,7 +19,10 @@
 package wom;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -27,6 +30,113 @@ import java.util.*;
  */
 public class FileUtil
 {
+    /**
+     * Methods of transferring a file into the picture directory
+     */
+    public static enum TransferMethod
+    {
+	/**
+	 * Copy the file through a buffer
+	 */
+	COPY("copy"),
+	
+	/**
+	 * Copy the file without passing the data through user space, with {@code copy_file_range}
+	 * or {@code sendfile} if the native library is available, otherwise with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+	 */
+	ZERO_COPY("zerocopy"),
+	
+	/**
+	 * Clone the file, on copy-on-write filesystems the clone shares data blocks with the
+	 * original until either is modified, other filesystems fall back to {@link #ZERO_COPY}.
+	 * Requires the native library.
+	 */
+	CLONE("clone"),
+	
+	/**
+	 * Move the file, by renaming it if it is on the same filesystem,
+	 * never replacing an existing file
+	 */
+	MOVE("move"),
+	
+	/**
+	 * Create a hard link to the file, the original and the transferred file
+	 * will share their content and attributes
+	 */
+	HARDLINK("hardlink"),
+	
+	/**
+	 * Create a symbolic link to the file
+	 */
+	SYMLINK("symlink"),
+	
+	/**
+	 * Use the fastest method that makes an independent copy of the file: on the same
+	 * filesystem a clone if the filesystem supports it, otherwise a zero-copy copy.
+	 * The original is never moved or linked, so changes to the attributes of the
+	 * transferred file do not affect it, {@link #MOVE}, {@link #HARDLINK} and
+	 * {@link #SYMLINK} must be selected explicitly.
+	 */
+	AUTO("auto");
+	
+	
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param  name  The name of the method in the configurations
+	 */
+	private TransferMethod(final String name)
+	{
+	    this.name = name;
+	}
+	
+	
+	
+	/**
+	 * The name of the method in the configurations
+	 */
+	private final String name;
+	
+	
+	
+	/**
+	 * Gets the name of the method in the configurations
+	 * 
+	 * @return  The name of the method in the configurations
+	 */
+	public String getName()
+	{
+	    return this.name;
+	}
+	
+	
+	/**
+	 * Gets a method by its name in the configurations
+	 * 
+	 * @param   name  The name of the method in the configurations
+	 * @return        The method, {@link #COPY} if the name is not recognised
+	 */
+	public static TransferMethod forName(final String name)
+	{
+	    for (final TransferMethod method : values())
+		if (method.name.equals(name))
+		    return method;
+	    return COPY;
+	}
+    }
+    
+    
+    
+    /**
+     * The method {@link TransferMethod#AUTO} has resolved to for pairs of source and destination
+     * filesystems, only recorded when cloning is found to be unsupported between the filesystems
+     */
+    private static final ConcurrentHashMap<List<FileStore>, TransferMethod> automatic = new ConcurrentHashMap<>();
+    
+    
+    
     /**
      * Copy a file
      * 
@@ -47,10 +157,17 @@ public class FileUtil
 	    
 	    for (;;)
 	    {
-		final int n = is.read(data, 0, data.length);
+		final int n;
+		IoScheduler.begin(data.length);
+		try
+		{   if ((n = is.read(data, 0, data.length)) > 0)
+			os.write(data, 0, n);
+		}
+		finally
+		{   IoScheduler.end();
+		}
 		if (n <= 0)
 		    break;
-		os.write(data, 0, n);
 	    }
 	    
 	    os.flush();
@@ -74,7 +191,207 @@ public class FileUtil
     
     
     /**
-     * Read a file as text
+     * Transfer a file into the picture directory, using the method
+     * selected by the configuration {@link Settings#TRANSFER_METHOD}
+     * 
+     * @param   source       The file to transfer
+     * @param   destination  The output file, must not exist
+     * @return               The method that was used
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public static TransferMethod transfer(final String source, final String destination) throws IOException
+    {
+	return transfer(source, destination, TransferMethod.forName(Settings.getString(Settings.TRANSFER_METHOD)));
+    }
+    
+    
+    /**
+     * Transfer a file, falling back to copying if the method is not
+     * supported for the source and the destination
+     * 
+     * @param   source       The file to transfer
+     * @param   destination  The output file, must not exist
+     * @param   method       The method to use
+     * @return               The method that was used, never {@link TransferMethod#AUTO}
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public static TransferMethod transfer(final String source, final String destination, final TransferMethod method) throws IOException
+    {
+	final Path from = Paths.get(source);
+	final Path to = Paths.get(destination);
+	
+	if (method == TransferMethod.AUTO)
+	{
+	    final Path directory = to.toAbsolutePath().getParent();
+	    final List<FileStore> pair = Arrays.asList(Files.getFileStore(from), Files.getFileStore(directory));
+	    TransferMethod resolved = automatic.get(pair);
+	    if (resolved == null)
+		if (pair.get(0).equals(pair.get(1)) && NativeTransfer.isAvailable())
+		    resolved = TransferMethod.CLONE;
+		else
+		    resolved = TransferMethod.ZERO_COPY;
+	    if (resolved == TransferMethod.CLONE)
+		if (NativeTransfer.clone(from, to))
+		    return TransferMethod.CLONE;
+		else
+		{   /* Unsupported between the filesystems, rather than for the file, so it is not retried for each file */
+		    automatic.put(pair, TransferMethod.ZERO_COPY);
+		    resolved = TransferMethod.ZERO_COPY;
+		}
+	    return transfer(from, to, resolved);
+	}
+	
+	return transfer(from, to, method);
+    }
+    
+    
+    /**
+     * Transfer a file, falling back to a slower method if the method is
+     * not supported for the source and the destination
+     * 
+     * @param   source       The file to transfer
+     * @param   destination  The output file, must not exist
+     * @param   method       The method to use, not {@link TransferMethod#AUTO}
+     * @return               The method that was used
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    @SuppressWarnings("fallthrough")
+    private static TransferMethod transfer(final Path source, final Path destination, final TransferMethod method) throws IOException
+    {
+	switch (method)
+	{
+	    case MOVE:
+	    {   /* Linked and then unlinked, as an atomic rename would replace an existing destination */
+		boolean linked = false;
+		IoScheduler.begin(0);
+		try
+		{   Files.createLink(destination, source);
+		    linked = true;
+		}
+		catch (final UnsupportedOperationException | FileSystemException err)
+		{   if (err instanceof FileAlreadyExistsException)
+			throw (FileAlreadyExistsException)err;
+		    if (Files.getFileStore(source).equals(Files.getFileStore(destination.toAbsolutePath().getParent())))
+		    {   /* Without hard links, renamed unless the destination exists, which is checked first */
+			Files.move(source, destination);
+			return TransferMethod.MOVE;
+		    }
+		}
+		finally
+		{   IoScheduler.end();
+		}
+		if (linked)
+		{   Files.delete(source);
+		    return TransferMethod.MOVE;
+		}
+		/* Different filesystems, copy and delete instead */
+		final TransferMethod used = transfer(source, destination, TransferMethod.ZERO_COPY);
+		Files.delete(source);
+		return used;
+	    }
+		
+	    case HARDLINK:
+		try
+		{   IoScheduler.begin(0);
+		    try
+		    {   Files.createLink(destination, source);
+		    }
+		    finally
+		    {   IoScheduler.end();
+		    }
+		    return TransferMethod.HARDLINK;
+		}
+		catch (final UnsupportedOperationException | FileSystemException err)
+		{   if (err instanceof FileAlreadyExistsException)
+			throw (FileAlreadyExistsException)err;
+		    return transfer(source, destination, TransferMethod.ZERO_COPY);
+		}
+		
+	    case CLONE:
+		if (NativeTransfer.clone(source, destination))
+		    return TransferMethod.CLONE;
+		return transfer(source, destination, TransferMethod.ZERO_COPY);
+		
+	    case SYMLINK:
+		try
+		{   IoScheduler.begin(0);
+		    try
+		    {   Files.createSymbolicLink(destination, source.toAbsolutePath());
+		    }
+		    finally
+		    {   IoScheduler.end();
+		    }
+		    return TransferMethod.SYMLINK;
+		}
+		catch (final UnsupportedOperationException | FileSystemException err)
+		{   if (err instanceof FileAlreadyExistsException)
+			throw (FileAlreadyExistsException)err;
+		    return transfer(source, destination, TransferMethod.ZERO_COPY);
+		}
+		
+	    case ZERO_COPY:
+		try
+		{   if (NativeTransfer.isAvailable())
+			NativeTransfer.copy(source, destination);
+		    else
+			transferTo(source, destination);
+		    return TransferMethod.ZERO_COPY;
+		}
+		catch (final FileAlreadyExistsException | NoSuchFileException err)
+		{   throw err;
+		}
+		catch (final IOException err)
+		{   Files.deleteIfExists(destination);
+		    /* fall through to copying */
+		}
+		
+	    default:
+		if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS))
+		    throw new FileAlreadyExistsException(destination.toString());
+		copy(source.toString(), destination.toString());
+		return TransferMethod.COPY;
+	}
+    }
+    
+    
+    /**
+     * Copy a file without passing its content through user space, if the platform allows it
+     * 
+     * @param  source       The file to copy
+     * @param  destination  The output file, must not exist
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private static void transferTo(final Path source, final Path destination) throws IOException
+    {
+	try (final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+	     final FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+	{
+	    final long size = in.size();
+	    for (long position = 0; position < size;)
+	    {   final long chunk = Math.min(IoScheduler.CHUNK_SIZE, size - position);
+		final long n;
+		IoScheduler.begin(chunk);
+		try
+		{   n = in.transferTo(position, chunk, out);
+		}
+		finally
+		{   IoScheduler.end();
+		}
+		if (n <= 0)
+		    throw new EOFException("File shrunk during transfer: " + source);
+		position += n;
+	    }
+	}
+    }
+    
+    
+    /**
+     * Read a file as text, use {@link TextReader} to process large
+     * files without holding them in memory
      * 
      * @param   file  The file
      * @return        The text in the file
@@ -83,47 +400,28 @@ public class FileUtil
      */
     public static String readFile(final String file) throws IOException
     {
-	final String text;
-	InputStream is = null;
-	try
+	final Path path = Paths.get(file);
+	try (final InputStream is = Files.newInputStream(path))
 	{
-	    is = new BufferedInputStream(new FileInputStream(new File(file)));
-	    final Vector<byte[]> bufs = new Vector<byte[]>();
-	    int size = 0;
-	    
-	    for (int av; (av = is.available()) > 0;)
-	    {
-		byte[] buf = new byte[av];
-		av = is.read(buf, 0, av);
-		if (av < buf.length)
-		{
-		    final byte[] nbuf = new byte[av];
-		    System.arraycopy(buf, 0, nbuf, 0, av);
-		    buf = nbuf;
-		}
-		size += av;
-		bufs.add(buf);
-	    }
-	    
-	    final byte[] full = new byte[size];
-	    int ptr = 0;
-	    for (final byte[] buf : bufs)
+	    final ByteArrayOutputStream data = new ByteArrayOutputStream((int)Math.min(Files.size(path), Integer.MAX_VALUE - 8));
+	    final byte[] buffer = new byte[IoScheduler.CHUNK_SIZE];
+	    /* Reads until end of file, not until available() says there is nothing buffered */
+	    for (;;)
 	    {
-		System.arraycopy(buf, 0, full, ptr, buf.length);
-		ptr += buf.length;
-	    }
-	    
-	    text = new String(full, "UTF-8");
-	}
-	finally
-	{   if (is != null)
+		int n = 0;
+		IoScheduler.begin(buffer.length);
 		try
-		{   is.close();
+		{   for (int r; (n < buffer.length) && ((r = is.read(buffer, n, buffer.length - n)) > 0);)
+			n += r;
 		}
-		catch (final Throwable ignore)
-		{   /* ignore */
-	}       }
-	return text;
+		finally
+		{   IoScheduler.end();
+		}
+		data.write(buffer, 0, n);
+		if (n < buffer.length)
+		    return new String(data.toByteArray(), "UTF-8");
+	    }
+	}
     }
     
 }
@@ -0,0 +1,658 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.text.ParseException;
+import java.util.*;
+
+
+/**
+ * A parsed and planned filter expression, such as the active filters of the
+ * {@link ManeFilter}.<br/>
+ * An expression combines named predicates with {@code and}, {@code or} and
+ * {@code not}, in falling order of precedence, and with parentheses, names and
+ * keywords are case-insensitive. A predicate is either answered by an index,
+ * as a bitmap of the matching pictures, or tested picture by picture.<br/>
+ * Before the expression is evaluated it is planned: the selectivity of each
+ * predicate is estimated, exactly for indexed predicates, and by testing a
+ * sample of the pictures otherwise, a predicate that is not indexed may still
+ * use an index to narrow the pictures it tests to a superset of its matches,
+ * in which case only those are sampled and tested. The operands of each
+ * {@code and} and {@code or} are ordered by their estimated cost per picture they rule out,
+ * or match, respectively. Indexed predicates, whose cost is an intersection,
+ * are thus applied before predicates tested picture by picture, which then
+ * only see the remaining candidates, and an {@code and} stops as soon as no
+ * candidates remain, and an {@code or} as soon as all candidates have matched.
+ */
+public class FilterQuery
+{
+    /**
+     * The estimated cost, per picture, of intersecting with an index
+     */
+    private static final double INDEX_COST = 0.001;
+    
+    /**
+     * The number of pictures tested to estimate the selectivity of a predicate that is not indexed
+     */
+    private static final int SAMPLE_SIZE = 64;
+    
+    
+    
+    /**
+     * A predicate in a filter expression
+     */
+    public static interface Predicate
+    {
+	/**
+	 * Selects the matching pictures from an index
+	 * 
+	 * @return  The matching pictures, {@code null} if the predicate
+	 *          is not indexed, and must be tested picture by picture
+	 */
+	public Bitmap select();
+	
+	/**
+	 * Narrows the pictures that can match, using an index, for a predicate that is not indexed
+	 * 
+	 * @return  A superset of the matching pictures, {@code null} if every picture can match
+	 */
+	public Bitmap narrow();
+	
+	/**
+	 * Tests whether a picture matches, only used if the predicate is not indexed
+	 * 
+	 * @param   entry  The index of the picture in the catalog
+	 * @return         Whether the picture matches
+	 */
+	public boolean test(final int entry);
+	
+	/**
+	 * Gets the cost of testing a picture, relative to matching
+	 * a title against a regular expression, which costs 1
+	 * 
+	 * @return  The cost of {@link #test(int)}
+	 */
+	public double getCost();
+	
+    }
+    
+    
+    /**
+     * A node in the expression tree
+     */
+    private static abstract class Node
+    {
+	/**
+	 * The estimated cost of evaluating the node, per candidate
+	 */
+	double cost;
+	
+	/**
+	 * The estimated fraction of the candidates that match the node
+	 */
+	double selectivity;
+	
+	
+	
+	/**
+	 * Estimates the cost and selectivity of the node, and orders its operands
+	 * 
+	 * @param  query  The query
+	 */
+	abstract void plan(final FilterQuery query);
+	
+	/**
+	 * Selects the candidates that match the node
+	 * 
+	 * @param   candidates  The candidates
+	 * @return              The matching candidates
+	 */
+	abstract Bitmap evaluate(final Bitmap candidates);
+	
+	/**
+	 * Describes the plan of the node
+	 * 
+	 * @param  buffer  Buffer to append the description to
+	 */
+	abstract void explain(final StringBuilder buffer);
+	
+    }
+    
+    
+    /**
+     * A predicate
+     */
+    private static final class Leaf extends Node
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  name       The name of the predicate
+	 * @param  predicate  The predicate
+	 */
+	Leaf(final String name, final Predicate predicate)
+	{
+	    this.name = name;
+	    this.predicate = predicate;
+	}
+	
+	
+	
+	/**
+	 * The name of the predicate
+	 */
+	final String name;
+	
+	/**
+	 * The predicate
+	 */
+	final Predicate predicate;
+	
+	/**
+	 * The matching pictures, {@code null} if the predicate is not indexed
+	 */
+	Bitmap selection = null;
+	
+	/**
+	 * The pictures that can match, {@code null} if the predicate is indexed or every picture can match
+	 */
+	Bitmap narrowing = null;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	void plan(final FilterQuery query)
+	{
+	    this.selection = query.select(this.name, this.predicate);
+	    if (this.selection != null)
+	    {   this.cost = INDEX_COST;
+		this.selectivity = query.total == 0 ? 0 : (double)(this.selection.getCardinality()) / query.total;
+	    }
+	    else
+	    {   this.narrowing = query.narrow(this.name, this.predicate);
+		final double fraction = this.narrowing == null ? 1 : query.total == 0 ? 0
+				      : (double)(this.narrowing.getCardinality()) / query.total;
+		this.cost = (this.narrowing == null ? 0 : INDEX_COST) + fraction * this.predicate.getCost();
+		this.selectivity = fraction * query.sample(this.name, this.predicate, this.narrowing);
+	    }
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	Bitmap evaluate(final Bitmap candidates)
+	{
+	    if (this.selection != null)
+		return candidates.and(this.selection);
+	    final Bitmap matching = new Bitmap();
+	    for (final int entry : (this.narrowing == null ? candidates : candidates.and(this.narrowing)).toArray())
+		if (this.predicate.test(entry))
+		    matching.add(entry);
+	    return matching;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	void explain(final StringBuilder buffer)
+	{
+	    buffer.append(this.name);
+	    buffer.append(this.selection != null ? "[index " : this.narrowing != null ? "[narrowed test " : "[test ");
+	    buffer.append(String.format("%.3f", Double.valueOf(this.selectivity)));
+	    buffer.append(']');
+	}
+	
+    }
+    
+    
+    /**
+     * A conjunction or a disjunction
+     */
+    private static final class Junction extends Node
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  conjunction  Whether the node is a conjunction, rather than a disjunction
+	 * @param  operands     The operands
+	 */
+	Junction(final boolean conjunction, final List<Node> operands)
+	{
+	    this.conjunction = conjunction;
+	    this.operands = operands;
+	}
+	
+	
+	
+	/**
+	 * Whether the node is a conjunction, rather than a disjunction
+	 */
+	final boolean conjunction;
+	
+	/**
+	 * The operands, in evaluation order once planned
+	 */
+	final List<Node> operands;
+	
+	
+	
+	/**
+	 * Gets the rank of an operand, operands are evaluated in ascending order by rank
+	 * 
+	 * @param   operand  The operand
+	 * @return           The estimated cost per candidate ruled out, for a conjunction,
+	 *                   or matched, for a disjunction
+	 */
+	private double rank(final Node operand)
+	{
+	    final double decided = this.conjunction ? 1 - operand.selectivity : operand.selectivity;
+	    return decided <= 0 ? Double.POSITIVE_INFINITY : operand.cost / decided;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	void plan(final FilterQuery query)
+	{
+	    for (final Node operand : this.operands)
+		operand.plan(query);
+	    Collections.sort(this.operands, new Comparator<Node>()
+		    {
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public int compare(final Node a, final Node b)
+			{
+			    return Double.compare(Junction.this.rank(a), Junction.this.rank(b));
+			}
+		    });
+	    
+	    /* Each operand only sees the candidates that its predecessors left undecided */
+	    double undecided = 1;
+	    this.cost = 0;
+	    for (final Node operand : this.operands)
+	    {   this.cost += operand.cost * undecided;
+		undecided *= this.conjunction ? operand.selectivity : 1 - operand.selectivity;
+	    }
+	    this.selectivity = this.conjunction ? undecided : 1 - undecided;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	Bitmap evaluate(final Bitmap candidates)
+	{
+	    if (this.conjunction)
+	    {   Bitmap remaining = candidates;
+		for (final Node operand : this.operands)
+		    if ((remaining = operand.evaluate(remaining)).isEmpty())
+			break;
+		return remaining;
+	    }
+	    
+	    final ArrayList<Bitmap> matched = new ArrayList<Bitmap>();
+	    Bitmap remaining = candidates;
+	    for (final Node operand : this.operands)
+	    {   final Bitmap matching = operand.evaluate(remaining);
+		if (matching.isEmpty())
+		    continue;
+		matched.add(matching);
+		if ((remaining = remaining.andNot(matching)).isEmpty())
+		    break;
+	    }
+	    return Bitmap.or(matched);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	void explain(final StringBuilder buffer)
+	{
+	    buffer.append(this.conjunction ? "and(" : "or(");
+	    for (int i = 0, n = this.operands.size(); i < n; i++)
+	    {   if (i > 0)
+		    buffer.append(", ");
+		this.operands.get(i).explain(buffer);
+	    }
+	    buffer.append(')');
+	}
+	
+    }
+    
+    
+    /**
+     * A negation
+     */
+    private static final class Negation extends Node
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  operand  The negated node
+	 */
+	Negation(final Node operand)
+	{
+	    this.operand = operand;
+	}
+	
+	
+	
+	/**
+	 * The negated node
+	 */
+	final Node operand;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	void plan(final FilterQuery query)
+	{
+	    this.operand.plan(query);
+	    this.cost = this.operand.cost;
+	    this.selectivity = 1 - this.operand.selectivity;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	Bitmap evaluate(final Bitmap candidates)
+	{
+	    return candidates.andNot(this.operand.evaluate(candidates));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	void explain(final StringBuilder buffer)
+	{
+	    buffer.append("not(");
+	    this.operand.explain(buffer);
+	    buffer.append(')');
+	}
+	
+    }
+    
+    
+    
+    /**
+     * Constructor, parses an expression
+     * 
+     * @param  expression  The expression
+     * @param  predicates  The predicates, by their names in lower case
+     * 
+     * @throws  ParseException  If the expression is malformed, or refers to an unknown predicate
+     */
+    public FilterQuery(final String expression, final Map<String, Predicate> predicates) throws ParseException
+    {
+	this.expression = expression;
+	this.predicates = predicates;
+	this.root = this.parseDisjunction();
+	if (this.peek() != null)
+	    throw new ParseException("Unexpected \"" + this.peek() + "\"", this.position);
+    }
+    
+    
+    
+    /**
+     * The expression
+     */
+    private final String expression;
+    
+    /**
+     * The predicates, by their names in lower case
+     */
+    private final Map<String, Predicate> predicates;
+    
+    /**
+     * The root of the expression tree
+     */
+    private final Node root;
+    
+    /**
+     * The parse position in the expression
+     */
+    private int position = 0;
+    
+    /**
+     * The number of pictures while planning
+     */
+    private int total = 0;
+    
+    /**
+     * The selections of the indexed predicates while planning, and evaluating
+     */
+    private final HashMap<String, Bitmap> selections = new HashMap<String, Bitmap>();
+    
+    /**
+     * The estimated selectivities of the predicates that are not indexed, while planning
+     */
+    private final HashMap<String, Double> samples = new HashMap<String, Double>();
+    
+    /**
+     * The narrowings of the predicates that are not indexed, while planning and evaluating
+     */
+    private final HashMap<String, Bitmap> narrowings = new HashMap<String, Bitmap>();
+    
+    
+    
+    /**
+     * Gets the next token without consuming it
+     * 
+     * @return  The next token, in lower case, {@code null} at the end of the expression
+     */
+    private String peek()
+    {
+	final String expression = this.expression;
+	while ((this.position < expression.length()) && Character.isWhitespace(expression.charAt(this.position)))
+	    this.position++;
+	if (this.position == expression.length())
+	    return null;
+	
+	final char c = expression.charAt(this.position);
+	if ((c == '(') || (c == ')'))
+	    return Character.toString(c);
+	int end = this.position;
+	while ((end < expression.length()) && (Character.isLetterOrDigit(expression.charAt(end)) || (expression.charAt(end) == '_')))
+	    end++;
+	return end == this.position ? Character.toString(c) : expression.substring(this.position, end).toLowerCase();
+    }
+    
+    /**
+     * Consumes the next token
+     * 
+     * @return  The token, in lower case
+     */
+    private String next()
+    {
+	final String token = this.peek();
+	this.position += token.length();
+	return token;
+    }
+    
+    /**
+     * Parses a disjunction
+     * 
+     * @return  The node of the disjunction
+     * 
+     * @throws  ParseException  If the expression is malformed
+     */
+    private Node parseDisjunction() throws ParseException
+    {
+	final ArrayList<Node> operands = new ArrayList<Node>();
+	operands.add(this.parseConjunction());
+	while ("or".equals(this.peek()))
+	{   this.next();
+	    operands.add(this.parseConjunction());
+	}
+	return operands.size() == 1 ? operands.get(0) : new Junction(false, operands);
+    }
+    
+    /**
+     * Parses a conjunction
+     * 
+     * @return  The node of the conjunction
+     * 
+     * @throws  ParseException  If the expression is malformed
+     */
+    private Node parseConjunction() throws ParseException
+    {
+	final ArrayList<Node> operands = new ArrayList<Node>();
+	operands.add(this.parseNegation());
+	while ("and".equals(this.peek()))
+	{   this.next();
+	    operands.add(this.parseNegation());
+	}
+	return operands.size() == 1 ? operands.get(0) : new Junction(true, operands);
+    }
+    
+    /**
+     * Parses a negation, a parenthesised expression, or a predicate
+     * 
+     * @return  The node of the negation, expression or predicate
+     * 
+     * @throws  ParseException  If the expression is malformed
+     */
+    private Node parseNegation() throws ParseException
+    {
+	final String token = this.peek();
+	if (token == null)
+	    throw new ParseException("Unexpected end of expression", this.position);
+	if (token.equals("not"))
+	{   this.next();
+	    return new Negation(this.parseNegation());
+	}
+	if (token.equals("("))
+	{   this.next();
+	    final Node node = this.parseDisjunction();
+	    if (")".equals(this.peek()) == false)
+		throw new ParseException("Missing \")\"", this.position);
+	    this.next();
+	    return node;
+	}
+	final Predicate predicate = this.predicates.get(token);
+	if ((predicate == null) || token.equals("and") || token.equals("or") || token.equals(")"))
+	    throw new ParseException("Unknown filter \"" + token + "\"", this.position);
+	this.next();
+	return new Leaf(token, predicate);
+    }
+    
+    
+    /**
+     * Gets the selection of an indexed predicate, once per planning
+     * 
+     * @param   name       The name of the predicate
+     * @param   predicate  The predicate
+     * @return             The matching pictures, {@code null} if the predicate is not indexed
+     */
+    private Bitmap select(final String name, final Predicate predicate)
+    {
+	if (this.selections.containsKey(name) == false)
+	    this.selections.put(name, predicate.select());
+	return this.selections.get(name);
+    }
+    
+    /**
+     * Gets the narrowing of a predicate that is not indexed, once per planning
+     * 
+     * @param   name       The name of the predicate
+     * @param   predicate  The predicate
+     * @return             The pictures that can match, {@code null} if every picture can match
+     */
+    private Bitmap narrow(final String name, final Predicate predicate)
+    {
+	if (this.narrowings.containsKey(name) == false)
+	    this.narrowings.put(name, predicate.narrow());
+	return this.narrowings.get(name);
+    }
+    
+    /**
+     * Estimates the selectivity of a predicate that is not indexed, by testing evenly spaced pictures
+     * 
+     * @param   name       The name of the predicate
+     * @param   predicate  The predicate
+     * @param   narrowing  The pictures that can match, {@code null} if every picture can match
+     * @return             The estimated fraction of the pictures, that can match, that match
+     */
+    private double sample(final String name, final Predicate predicate, final Bitmap narrowing)
+    {
+	Double selectivity = this.samples.get(name);
+	if (selectivity == null)
+	{   final int[] entries = narrowing == null ? null : narrowing.toArray();
+	    final int count = entries == null ? this.total : entries.length;
+	    final int n = Math.min(SAMPLE_SIZE, count);
+	    int matched = 0;
+	    for (int i = 0; i < n; i++)
+	    {   final int index = (int)((long)i * count / n);
+		if (predicate.test(entries == null ? index : entries[index]))
+		    matched++;
+	    }
+	    /* Never certain from a sample, so that the predicate is still ranked */
+	    this.samples.put(name, selectivity = Double.valueOf((matched + 0.5) / (n + 1)));
+	}
+	return selectivity.doubleValue();
+    }
+    
+    
+    /**
+     * Plans and evaluates the expression
+     * 
+     * @param   all    All pictures, the pictures in the catalog
+     * @param   total  The number of pictures in the catalog
+     * @return         The matching pictures
+     */
+    public Bitmap execute(final Bitmap all, final int total)
+    {
+	this.selections.clear();
+	this.samples.clear();
+	this.narrowings.clear();
+	this.total = total;
+	this.root.plan(this);
+	return this.root.evaluate(all);
+    }
+    
+    
+    /**
+     * Describes the plan of the last execution
+     * 
+     * @return  The plan, with the operands in evaluation order,
+     *          and the estimated selectivities of the predicates
+     */
+    @Override
+    public String toString()
+    {
+	final StringBuilder buffer = new StringBuilder();
+	this.root.explain(buffer);
+	return buffer.toString();
+    }
+    
+}
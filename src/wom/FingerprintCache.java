@@ -0,0 +1,307 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+
+/**
+ * Persistent cache of the fingerprints of imported pictures, so that known
+ * files can be recognised after reading a few KiB of them rather than all
+ * of them.<br/>
+ * A fingerprint is the size of a file and a hash of its first and last block
+ * and of a few blocks sampled evenly in between, small files are fingerprinted
+ * in full. Each fingerprint maps to the SHA-256 hashes of the contents that
+ * have been seen with it; a file whose fingerprint maps to one content is taken
+ * to be that content, if the fingerprint maps to several contents, the file
+ * must be hashed in full to tell which, if any, it is. Files that differ only
+ * between the sampled blocks are therefore taken to be equal, which for
+ * compressed pictures of the same size does not happen in practice.
+ */
+public class FingerprintCache implements Closeable
+{
+    /**
+     * The name of the cache file in the picture directory
+     */
+    public static final String FILE = ".fingerprints";
+    
+    /**
+     * The size of the sampled blocks
+     */
+    private static final int BLOCK_SIZE = 4096;
+    
+    /**
+     * The number of sampled blocks between the first and the last block
+     */
+    private static final int SAMPLES = 4;
+    
+    /**
+     * The magic number at the start of the cache file
+     */
+    private static final int MAGIC = ('W' << 24) | ('O' << 16) | ('M' << 8) | 'F';
+    
+    /**
+     * The version of the cache file format
+     */
+    private static final int VERSION = 1;
+    
+    /**
+     * The size of the header of the cache file
+     */
+    private static final int HEADER_SIZE = 8;
+    
+    /**
+     * The size of the block digest in a fingerprint
+     */
+    private static final int DIGEST_SIZE = 16;
+    
+    /**
+     * The size of a content hash
+     */
+    private static final int HASH_SIZE = 32;
+    
+    /**
+     * The size of a record in the cache file: size, block digest and content hash
+     */
+    private static final int RECORD_SIZE = 8 + DIGEST_SIZE + HASH_SIZE;
+    
+    
+    
+    /**
+     * Constructor, loads the cache, and creates it if missing
+     * 
+     * @param  pictureDirectory  The picture directory
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public FingerprintCache(final String pictureDirectory) throws IOException
+    {
+	this.channel = FileChannel.open(Paths.get(pictureDirectory, FILE),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	final long size = this.channel.size();
+	final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	boolean valid = false;
+	if ((size >= HEADER_SIZE) && (this.channel.read(header, 0) == HEADER_SIZE))
+	{   header.flip();
+	    valid = (header.getInt() == MAGIC) && (header.getInt() == VERSION);
+	}
+	
+	if (valid)
+	{
+	    final ByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size - HEADER_SIZE);
+	    final byte[] digest = new byte[DIGEST_SIZE];
+	    final byte[] hash = new byte[HASH_SIZE];
+	    while (buffer.remaining() >= RECORD_SIZE)
+	    {   final long fileSize = buffer.getLong();
+		buffer.get(digest);
+		buffer.get(hash);
+		this.put(toKey(fileSize, digest), Importer.toHex(hash));
+	    }
+	    /* Drop a torn record */
+	    this.channel.truncate(size - buffer.remaining());
+	}
+	else
+	{   this.channel.truncate(0);
+	    header.clear();
+	    header.putInt(MAGIC).putInt(VERSION).flip();
+	    this.channel.write(header, 0);
+	}
+	this.channel.position(this.channel.size());
+    }
+    
+    
+    
+    /**
+     * The cache file
+     */
+    private final FileChannel channel;
+    
+    /**
+     * Map from fingerprints to the hashes of the contents seen with them
+     */
+    private final HashMap<String, String[]> fingerprints = new HashMap<String, String[]>();
+    
+    
+    
+    /**
+     * Calculates the fingerprint of a file
+     * 
+     * @param   file  The file
+     * @param   size  The size of the file
+     * @return        The fingerprint
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public static String fingerprint(final Path file, final long size) throws IOException
+    {
+	final MessageDigest digest;
+	try
+	{   digest = MessageDigest.getInstance("SHA-256");
+	}
+	catch (final NoSuchAlgorithmException err)
+	{   throw new Error(err);
+	}
+	
+	final int blocks = SAMPLES + 2;
+	final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE * blocks);
+	IoScheduler.begin(Math.min(size, buffer.capacity()));
+	try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+	{
+	    if (size <= buffer.capacity())
+		read(channel, buffer, 0, (int)size);
+	    else
+		for (int i = 0; i < blocks; i++)
+		{   /* Block i starts at i/(blocks - 1) of the way to the last block */
+		    final long position = (size - BLOCK_SIZE) * i / (blocks - 1);
+		    read(channel, buffer, position, BLOCK_SIZE);
+		}
+	}
+	finally
+	{   IoScheduler.end();
+	}
+	buffer.flip();
+	digest.update(buffer);
+	return toKey(size, Arrays.copyOf(digest.digest(), DIGEST_SIZE));
+    }
+    
+    
+    /**
+     * Reads a number of bytes at a position of a file
+     * 
+     * @param  channel   The file
+     * @param  buffer    The buffer to read into
+     * @param  position  The position in the file
+     * @param  length    The number of bytes to read
+     * 
+     * @throws  IOException  On file I/O error, or if the file has shrunk
+     */
+    private static void read(final FileChannel channel, final ByteBuffer buffer, final long position, final int length) throws IOException
+    {
+	final int limit = buffer.limit();
+	buffer.limit(buffer.position() + length);
+	for (long offset = position; buffer.hasRemaining();)
+	{   final int n = channel.read(buffer, offset);
+	    if (n < 0)
+		throw new EOFException("File shrunk while being fingerprinted");
+	    offset += n;
+	}
+	buffer.limit(limit);
+    }
+    
+    
+    /**
+     * Creates the key of a fingerprint
+     * 
+     * @param   size    The size of the file
+     * @param   digest  The digest of the sampled blocks
+     * @return          The fingerprint
+     */
+    private static String toKey(final long size, final byte[] digest)
+    {
+	return Long.toHexString(size) + ":" + Importer.toHex(digest);
+    }
+    
+    
+    /**
+     * Adds a content hash to a fingerprint in memory
+     * 
+     * @param   fingerprint  The fingerprint
+     * @param   hash         The SHA-256 hash of the content, in hexadecimal
+     * @return               Whether the hash was not already mapped from the fingerprint
+     */
+    private boolean put(final String fingerprint, final String hash)
+    {
+	final String[] hashes = this.fingerprints.get(fingerprint);
+	if (hashes == null)
+	{   this.fingerprints.put(fingerprint, new String[] { hash });
+	    return true;
+	}
+	for (final String known : hashes)
+	    if (known.equals(hash))
+		return false;
+	final String[] extended = Arrays.copyOf(hashes, hashes.length + 1);
+	extended[hashes.length] = hash;
+	this.fingerprints.put(fingerprint, extended);
+	return true;
+    }
+    
+    
+    /**
+     * Gets the hashes of the contents seen with a fingerprint
+     * 
+     * @param   fingerprint  The fingerprint
+     * @return               The SHA-256 hashes, in hexadecimal, empty if the fingerprint is unknown
+     */
+    public synchronized List<String> lookup(final String fingerprint)
+    {
+	final String[] hashes = this.fingerprints.get(fingerprint);
+	return hashes == null ? Collections.<String>emptyList() : Arrays.asList(hashes);
+    }
+    
+    
+    /**
+     * Records that a content has been seen with a fingerprint
+     * 
+     * @param  fingerprint  The fingerprint
+     * @param  hash         The SHA-256 hash of the content, in hexadecimal
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public synchronized void add(final String fingerprint, final String hash) throws IOException
+    {
+	if (this.put(fingerprint, hash) == false)
+	    return;
+	
+	final int colon = fingerprint.indexOf(':');
+	final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	record.putLong(Long.parseLong(fingerprint.substring(0, colon), 16));
+	for (int i = colon + 1; i < fingerprint.length(); i += 2)
+	    record.put((byte)(Integer.parseInt(fingerprint.substring(i, i + 2), 16)));
+	for (int i = 0; i < hash.length(); i += 2)
+	    record.put((byte)(Integer.parseInt(hash.substring(i, i + 2), 16)));
+	record.flip();
+	IoScheduler.begin(RECORD_SIZE);
+	try
+	{   while (record.hasRemaining())
+		this.channel.write(record);
+	}
+	finally
+	{   IoScheduler.end();
+	}
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+	if (this.channel.isOpen())
+	{   this.channel.force(false);
+	    this.channel.close();
+	}
+    }
+    
+}
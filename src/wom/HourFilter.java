@@ -92,6 +92,17 @@ public class HourFilter extends JComponent implements MouseInputListener
     
     
     
+    /**
+     * Gets the selection
+     * 
+     * @return  For each hour, the mask of selected weekdays
+     */
+    public byte[] getSelection()
+    {
+	return this.selected.clone();
+    }
+    
+    
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,1218 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Imports pictures into the picture directory.<br/>
+ * Each picture passes through the stages of the import: it is discovered, with
+ * its attributes, by walking the source directories, then fingerprinted, and
+ * hashed unless the fingerprint is known, see {@link FingerprintCache}, and has
+ * its header read, see {@link ExifReader}, then transferred into a directory for
+ * the day it was last modified, given the picture group, and registered in the
+ * {@link Catalog}. Every stage has a bounded parallelism, and each picture is
+ * processed in a thread of its own, a virtual thread if the JVM supports them,
+ * with background priority in the {@link IoScheduler}.
+ * Progress is broadcasted on a {@link Blackboard}.<br/>
+ * If the pictures are stored by content, see {@link PictureStore}, they are hashed
+ * as they are copied into the store, instead of in a stage of their own, and the
+ * transfer method is not used.<br/>
+ * Registered pictures are written to a journal in the picture directory, if the
+ * import is interrupted, the next import skips the sources listed in the journal.
+ * The journal is removed when an import has completed without failures.
+ */
+public class Importer
+{
+    /**
+     * The stages of an import
+     */
+    public static enum Stage
+    {
+	/**
+	 * Walk the source directories and read the attributes of the files
+	 */
+	DISCOVER,
+	
+	/**
+	 * Fingerprint the files, skip known ones, and hash the content of the others
+	 */
+	HASH,
+	
+	/**
+	 * Transfer the files into the picture directory
+	 */
+	TRANSFER,
+	
+	/**
+	 * Apply the picture group to the transferred files
+	 */
+	GROUP,
+	
+	/**
+	 * Record the transferred files in the journal and announce them
+	 */
+	REGISTER,
+    }
+    
+    
+    
+    /**
+     * Message broadcasted when the progress of an import has changed,
+     * messages from the same import supersede each other when coalesced
+     */
+    public static class ProgressMessage implements Blackboard.CoalescableMessage
+    {
+	static
+	{
+	    BlackboardRecorder.registerCodec(ProgressMessage.class, new BlackboardRecorder.Codec<ProgressMessage>()
+		    {   /**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void encode(final ProgressMessage message, final DataOutput output) throws IOException
+			{
+			    output.writeLong(message.discovered);
+			    output.writeLong(message.imported);
+			    output.writeLong(message.skipped);
+			    output.writeLong(message.failed);
+			    output.writeLong(message.bytes);
+			    output.writeBoolean(message.finished);
+			}
+			
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public ProgressMessage decode(final DataInput input) throws IOException
+			{
+			    return new ProgressMessage(null, input.readLong(), input.readLong(), input.readLong(),
+						       input.readLong(), input.readLong(), input.readBoolean());
+			}
+		    });
+	}
+	
+	
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param  importer    The import, {@code null} if replayed from a log
+	 * @param  discovered  The number of discovered files
+	 * @param  imported    The number of imported files
+	 * @param  skipped     The number of files that were already imported
+	 * @param  failed      The number of files that could not be imported
+	 * @param  bytes       The number of imported bytes
+	 * @param  finished    Whether the import has finished
+	 */
+	public ProgressMessage(final Importer importer, final long discovered, final long imported, final long skipped,
+			       final long failed, final long bytes, final boolean finished)
+	{
+	    this.importer = importer;
+	    this.discovered = discovered;
+	    this.imported = imported;
+	    this.skipped = skipped;
+	    this.failed = failed;
+	    this.bytes = bytes;
+	    this.finished = finished;
+	}
+	
+	
+	
+	/**
+	 * The import
+	 */
+	private final Importer importer;
+	
+	/**
+	 * The number of discovered files
+	 */
+	private final long discovered;
+	
+	/**
+	 * The number of imported files
+	 */
+	private final long imported;
+	
+	/**
+	 * The number of files that were already imported
+	 */
+	private final long skipped;
+	
+	/**
+	 * The number of files that could not be imported
+	 */
+	private final long failed;
+	
+	/**
+	 * The number of imported bytes
+	 */
+	private final long bytes;
+	
+	/**
+	 * Whether the import has finished
+	 */
+	private final boolean finished;
+	
+	
+	
+	/**
+	 * Gets the import
+	 * 
+	 * @return  The import, {@code null} if the message was replayed from a log
+	 */
+	public Importer getImporter()
+	{   return this.importer;
+	}
+	
+	/**
+	 * Gets the number of discovered files
+	 * 
+	 * @return  The number of discovered files
+	 */
+	public long getDiscovered()
+	{   return this.discovered;
+	}
+	
+	/**
+	 * Gets the number of imported files
+	 * 
+	 * @return  The number of imported files
+	 */
+	public long getImported()
+	{   return this.imported;
+	}
+	
+	/**
+	 * Gets the number of files that were already imported
+	 * 
+	 * @return  The number of files that were already imported
+	 */
+	public long getSkipped()
+	{   return this.skipped;
+	}
+	
+	/**
+	 * Gets the number of files that could not be imported
+	 * 
+	 * @return  The number of files that could not be imported
+	 */
+	public long getFailed()
+	{   return this.failed;
+	}
+	
+	/**
+	 * Gets the number of imported bytes
+	 * 
+	 * @return  The number of imported bytes
+	 */
+	public long getBytes()
+	{   return this.bytes;
+	}
+	
+	/**
+	 * Gets whether the import has finished
+	 * 
+	 * @return  Whether the import has finished
+	 */
+	public boolean isFinished()
+	{   return this.finished;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object getCoalescingKey()
+	{   return this.importer;
+	}
+    }
+    
+    
+    /**
+     * Message broadcasted when a picture has been imported
+     */
+    public static class ImportedMessage implements Blackboard.BlackboardMessage
+    {
+	static
+	{
+	    BlackboardRecorder.registerCodec(ImportedMessage.class, new BlackboardRecorder.Codec<ImportedMessage>()
+		    {   /**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void encode(final ImportedMessage message, final DataOutput output) throws IOException
+			{
+			    output.writeUTF(message.source);
+			    output.writeUTF(message.destination);
+			    output.writeUTF(message.hash);
+			}
+			
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public ImportedMessage decode(final DataInput input) throws IOException
+			{
+			    return new ImportedMessage(input.readUTF(), input.readUTF(), input.readUTF());
+			}
+		    });
+	}
+	
+	
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param  source       The imported file
+	 * @param  destination  The file in the picture directory
+	 * @param  hash         The SHA-256 hash of the content, in hexadecimal
+	 */
+	public ImportedMessage(final String source, final String destination, final String hash)
+	{
+	    this.source = source;
+	    this.destination = destination;
+	    this.hash = hash;
+	}
+	
+	
+	
+	/**
+	 * The imported file
+	 */
+	private final String source;
+	
+	/**
+	 * The file in the picture directory
+	 */
+	private final String destination;
+	
+	/**
+	 * The SHA-256 hash of the content, in hexadecimal
+	 */
+	private final String hash;
+	
+	
+	
+	/**
+	 * Gets the imported file
+	 * 
+	 * @return  The imported file
+	 */
+	public String getSource()
+	{   return this.source;
+	}
+	
+	/**
+	 * Gets the file in the picture directory
+	 * 
+	 * @return  The file in the picture directory
+	 */
+	public String getDestination()
+	{   return this.destination;
+	}
+	
+	/**
+	 * Gets the SHA-256 hash of the content
+	 * 
+	 * @return  The SHA-256 hash of the content, in hexadecimal
+	 */
+	public String getHash()
+	{   return this.hash;
+	}
+    }
+    
+    
+    
+    /**
+     * The name of the journal in the picture directory
+     */
+    public static final String JOURNAL = ".import.journal";
+    
+    /**
+     * File name extensions of pictures
+     */
+    private static final HashSet<String> EXTENSIONS = new HashSet<String>(Arrays.asList(
+		"jpg", "jpeg", "jpe", "png", "gif", "bmp", "tif", "tiff", "webp", "heic", "heif",
+		"dng", "cr2", "cr3", "crw", "nef", "nrw", "arw", "srf", "sr2", "orf", "rw2", "raf", "pef", "x3f"));
+    
+    /**
+     * The number of journal records between each synchronisation of the journal to the disk
+     */
+    private static final int JOURNAL_SYNC_INTERVAL = 64;
+    
+    
+    
+    /**
+     * Constructor, the picture directory, the transfer method and
+     * the picture group are taken from the settings
+     * 
+     * @param  sources  The files and directories to import
+     */
+    public Importer(final Collection<String> sources)
+    {
+	this(sources, Settings.getString(Settings.PICTURE_DIRECTORY),
+	     FileUtil.TransferMethod.forName(Settings.getString(Settings.TRANSFER_METHOD)),
+	     "content".equals(Settings.getString(Settings.PICTURE_STORAGE)),
+	     Settings.getString(Settings.PICTURE_GROUP), Blackboard.getInstance(null));
+    }
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  sources           The files and directories to import
+     * @param  pictureDirectory  The picture directory
+     * @param  method            The transfer method
+     * @param  byContent         Whether to store the pictures by content, in a {@link PictureStore}
+     * @param  group             The group the pictures shall be owned by, empty or {@code null} to leave as is
+     * @param  blackboard        The blackboard to broadcast progress on
+     */
+    public Importer(final Collection<String> sources, final String pictureDirectory, final FileUtil.TransferMethod method,
+		    final boolean byContent, final String group, final Blackboard blackboard)
+    {
+	this.sources = new ArrayList<String>(sources);
+	this.pictureDirectory = Paths.get(pictureDirectory);
+	this.method = method;
+	this.byContent = byContent;
+	this.group = ((group == null) || group.isEmpty()) ? null : group;
+	this.blackboard = blackboard;
+	
+	final int processors = Runtime.getRuntime().availableProcessors();
+	this.setParallelism(Stage.HASH, processors);
+	this.setParallelism(Stage.TRANSFER, 4);
+	this.setParallelism(Stage.GROUP, 4);
+	this.setParallelism(Stage.REGISTER, 1);
+    }
+    
+    
+    
+    /**
+     * The files and directories to import
+     */
+    private final List<String> sources;
+    
+    /**
+     * The picture directory
+     */
+    private final Path pictureDirectory;
+    
+    /**
+     * The transfer method
+     */
+    private final FileUtil.TransferMethod method;
+    
+    /**
+     * Whether to store the pictures by content
+     */
+    private final boolean byContent;
+    
+    /**
+     * The content store, {@code null} unless storing by content and importing
+     */
+    private PictureStore store = null;
+    
+    /**
+     * The fingerprints of imported pictures, {@code null} unless importing
+     */
+    private FingerprintCache fingerprints = null;
+    
+    /**
+     * The picture catalog, {@code null} unless importing
+     */
+    private Catalog catalog = null;
+    
+    /**
+     * The group the pictures shall be owned by, {@code null} to leave as is
+     */
+    private final String group;
+    
+    /**
+     * The blackboard to broadcast progress on
+     */
+    private final Blackboard blackboard;
+    
+    /**
+     * The maximum number of pictures in each stage
+     */
+    private final EnumMap<Stage, Integer> parallelism = new EnumMap<Stage, Integer>(Stage.class);
+    
+    /**
+     * Permits to enter each stage
+     */
+    private final EnumMap<Stage, Semaphore> stages = new EnumMap<Stage, Semaphore>(Stage.class);
+    
+    /**
+     * Whether the import has been cancelled
+     */
+    private volatile boolean cancelled = false;
+    
+    /**
+     * The number of discovered files
+     */
+    private final AtomicLong discovered = new AtomicLong();
+    
+    /**
+     * The number of imported files
+     */
+    private final AtomicLong imported = new AtomicLong();
+    
+    /**
+     * The number of files that were already imported
+     */
+    private final AtomicLong skipped = new AtomicLong();
+    
+    /**
+     * The number of files that could not be imported
+     */
+    private final AtomicLong failed = new AtomicLong();
+    
+    /**
+     * The number of imported bytes
+     */
+    private final AtomicLong bytes = new AtomicLong();
+    
+    /**
+     * The picture group, looked up when first needed
+     */
+    private GroupPrincipal groupPrincipal = null;
+    
+    
+    
+    /**
+     * Sets the maximum number of pictures that may be in a stage at the same time,
+     * may not be called during the import
+     * 
+     * @param  stage    The stage, {@link Stage#DISCOVER} is always sequential
+     * @param  pictures The maximum number of pictures in the stage
+     */
+    public void setParallelism(final Stage stage, final int pictures)
+    {
+	if (pictures < 1)
+	    throw new IllegalArgumentException("parallelism must be positive");
+	if (stage != Stage.DISCOVER)
+	    this.parallelism.put(stage, Integer.valueOf(pictures));
+    }
+    
+    
+    /**
+     * Cancels the import, pictures that are being transferred are completed, the
+     * journal is kept so that a later import resumes where this one stopped
+     */
+    public void cancel()
+    {
+	this.cancelled = true;
+    }
+    
+    
+    /**
+     * Runs the import, and returns when it has finished
+     * 
+     * @throws  IOException           If the journal cannot be written
+     * @throws  InterruptedException  If the thread is interrupted, the import is cancelled
+     */
+    public void execute() throws IOException, InterruptedException
+    {
+	int inFlight = 0;
+	for (final Map.Entry<Stage, Integer> entry : this.parallelism.entrySet())
+	{   this.stages.put(entry.getKey(), new Semaphore(entry.getValue().intValue()));
+	    inFlight += entry.getValue().intValue();
+	}
+	/* Bounds the number of discovered pictures waiting for a stage */
+	final Semaphore permits = new Semaphore(inFlight *= 2);
+	
+	Files.createDirectories(this.pictureDirectory);
+	try (final Journal journal = new Journal(this.pictureDirectory.resolve(JOURNAL));
+	     final PictureStore store = this.byContent ? new PictureStore(this.pictureDirectory.toString()) : null;
+	     final FingerprintCache fingerprints = new FingerprintCache(this.pictureDirectory.toString());
+	     final Catalog catalog = new Catalog(this.pictureDirectory.toString()))
+	{
+	    this.store = store;
+	    this.fingerprints = fingerprints;
+	    this.catalog = catalog;
+	    try
+	    {   for (final String source : this.sources)
+		    if (this.cancelled == false)
+			this.discover(Paths.get(source), journal, permits);
+	    }
+	    catch (final InterruptedException err)
+	    {   this.cancelled = true;
+		throw err;
+	    }
+	    finally
+	    {   permits.acquireUninterruptibly(inFlight);
+		this.progress(true);
+	    }
+	    
+	    if ((this.cancelled == false) && (this.failed.get() == 0))
+		journal.delete();
+	}
+    }
+    
+    
+    /**
+     * Discovers the pictures in a file or directory, and starts importing them
+     * 
+     * @param   source   The file or directory
+     * @param   journal  The journal
+     * @param   permits  Permits to start importing a picture
+     * 
+     * @throws  IOException           If the source cannot be read
+     * @throws  InterruptedException  If the thread is interrupted
+     */
+    private void discover(final Path source, final Journal journal, final Semaphore permits) throws IOException, InterruptedException
+    {
+	final InterruptedException[] interrupted = { null };
+	Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+		    {
+			if (Importer.this.cancelled)
+			    return FileVisitResult.TERMINATE;
+			if ((attributes.isRegularFile() == false) || (isPicture(file) == false))
+			    return FileVisitResult.CONTINUE;
+			
+			Importer.this.discovered.incrementAndGet();
+			final long size = attributes.size();
+			final long modified = attributes.lastModifiedTime().toMillis();
+			if (journal.contains(file.toString(), size, modified))
+			{   Importer.this.skipped.incrementAndGet();
+			    Importer.this.progress(false);
+			    return FileVisitResult.CONTINUE;
+			}
+			
+			try
+			{   permits.acquire();
+			}
+			catch (final InterruptedException err)
+			{   interrupted[0] = err;
+			    return FileVisitResult.TERMINATE;
+			}
+			try
+			{   ExecutorThreading.createDaemonThread(new Runnable()
+				    {   /**
+					 * {@inheritDoc}
+					 */
+					@Override
+					public void run()
+					{   try
+					    {   IoScheduler.setPriority(IoScheduler.Priority.BACKGROUND);
+						Importer.this.process(file, size, modified, journal);
+					    }
+					    finally
+					    {   permits.release();
+				    }   }   }).start();
+			}
+			catch (final Throwable err)
+			{   permits.release();
+			    throw err;
+			}
+			return FileVisitResult.CONTINUE;
+		    }
+		    
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public FileVisitResult visitFileFailed(final Path file, final IOException err)
+		    {
+			System.err.println("Cannot import " + file + ": " + err.toString());
+			return FileVisitResult.CONTINUE;
+		    }
+		});
+	if (interrupted[0] != null)
+	    throw interrupted[0];
+    }
+    
+    
+    /**
+     * Imports a picture
+     * 
+     * @param  source    The picture
+     * @param  size      The size of the picture
+     * @param  modified  The modification time of the picture
+     * @param  journal   The journal
+     */
+    private void process(final Path source, final long size, final long modified, final Journal journal)
+    {
+	try
+	{
+	    Semaphore stage = this.enter(Stage.HASH);
+	    String hash = null;
+	    final String fingerprint;
+	    boolean known = false;
+	    ExifReader.Metadata metadata = null;
+	    try
+	    {   fingerprint = FingerprintCache.fingerprint(source, size);
+		final List<String> hashes = this.fingerprints.lookup(fingerprint);
+		if (hashes.size() == 1)
+		{   known = this.isPresent(source, size, modified, hashes.get(0));
+		    if ((known == false) && (this.store == null))
+			/* Imported before, but removed from the picture directory since */
+			hash = hash(source);
+		}
+		else if ((this.store == null) || (hashes.isEmpty() == false))
+		{   /* Unknown, or a fingerprint shared by several contents, which only the full hash can tell apart */
+		    hash = hash(source);
+		    known = hashes.contains(hash) && this.isPresent(source, size, modified, hash);
+		}
+		if (known == false)
+		    metadata = ExifReader.read(source);
+	    }
+	    finally
+	    {   stage.release();
+	    }
+	    
+	    if (known)
+	    {   this.skipped.incrementAndGet();
+		this.progress(false);
+		return;
+	    }
+	    
+	    stage = this.enter(Stage.TRANSFER);
+	    Path destination;
+	    boolean duplicate = false;
+	    Path partial = null;
+	    try
+	    {   PictureStore.Stored stored = null;
+		if (this.store != null)
+		{   stored = this.store.store(source);
+		    hash = stored.getHash();
+		}
+		
+		final Path directory = this.getDirectory(modified);
+		/* Pictures with the same name may be imported in parallel, so the name is only
+		 * taken once the picture is complete, and the checks are redone if it was taken first */
+		for (;;)
+		{   destination = directory.resolve(source.getFileName());
+		    if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS))
+			if ((Files.size(destination) == size) && hash.equals(hash(destination)))
+			    duplicate = true;
+			else
+			{   destination = tag(destination, hash);
+			    /* The hash is in the name, the file may have been imported but not journaled before an interruption */
+			    duplicate = Files.exists(destination, LinkOption.NOFOLLOW_LINKS);
+			}
+		    if ((duplicate == false) && (stored != null) && (stored.isAdded() == false) && this.store.isNamed(hash))
+		    {   /* Already stored content is not given another name, unless an interrupted import left it without one */
+			duplicate = true;
+			destination = stored.getPath();
+		    }
+		    if (duplicate)
+			break;
+		    
+		    Files.createDirectories(directory);
+		    if (stored != null)
+			try
+			{   this.store.link(hash, destination);
+			    break;
+			}
+			catch (final FileAlreadyExistsException err)
+			{   continue;
+			}
+		    if (partial == null)
+		    {   /* Transfer to a temporary file, so that an interrupted transfer does not leave a broken picture,
+			 * with a name of its own, so that parallel imports of pictures with the same name do not meet */
+			partial = directory.resolve("." + destination.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+			if (this.method == FileUtil.TransferMethod.MOVE)
+			    /* The partial file will be the only copy, so it must be found if the import is interrupted */
+			    journal.moving(source.toString(), partial.toString());
+			FileUtil.transfer(source.toString(), partial.toString(), this.method);
+		    }
+		    if (claim(partial, destination))
+		    {   partial = null;
+			break;
+		    }
+		}
+	    }
+	    finally
+	    {   stage.release();
+		if (partial != null)
+		    restore(partial, source);
+	    }
+	    
+	    if ((duplicate == false) && (this.group != null))
+	    {   stage = this.enter(Stage.GROUP);
+		try
+		{   final PosixFileAttributeView view = Files.getFileAttributeView(destination, PosixFileAttributeView.class,
+										   LinkOption.NOFOLLOW_LINKS);
+		    if (view != null)
+			view.setGroup(this.getGroupPrincipal(destination));
+		}
+		finally
+		{   stage.release();
+	    }   }
+	    
+	    stage = this.enter(Stage.REGISTER);
+	    try
+	    {   /* A duplicate may have been transferred, but not registered, before an interruption */
+		final String relative = this.pictureDirectory.relativize(destination).toString();
+		final boolean stored = (this.store != null) && destination.equals(this.store.getPath(hash));
+		if ((duplicate == false) || ((stored == false) && (this.catalog.contains(relative) == false)))
+		    this.catalog.add(metadata.getTimestamp() < 0 ? modified : metadata.getTimestamp(),
+				     metadata.getWidth(), metadata.getHeight(), metadata.getOrientation(), size,
+				     relative, new int[0], new int[0]);
+		journal.append(source.toString(), size, modified, hash, destination.toString());
+		this.fingerprints.add(fingerprint, hash);
+	    }
+	    finally
+	    {   stage.release();
+	    }
+	    
+	    if (duplicate)
+		this.skipped.incrementAndGet();
+	    else
+	    {   this.imported.incrementAndGet();
+		this.bytes.addAndGet(size);
+		this.blackboard.broadcastMessage(new ImportedMessage(source.toString(), destination.toString(), hash));
+	    }
+	}
+	catch (final CancellationException err)
+	{   /* cancelled, the picture will be imported when the import is resumed */
+	}
+	catch (final Throwable err)
+	{   this.failed.incrementAndGet();
+	    System.err.println("Cannot import " + source + ": " + err.toString());
+	}
+	this.progress(false);
+    }
+    
+    
+    /**
+     * Gets the directory a picture is imported into
+     * 
+     * @param   modified  The modification time of the picture
+     * @return            The directory for the day the picture was last modified
+     */
+    private Path getDirectory(final long modified)
+    {
+	return this.pictureDirectory.resolve(String.format("%tY/%<tY-%<tm-%<td", Long.valueOf(modified)));
+    }
+    
+    
+    /**
+     * Gets the name a picture is given if its own name is taken by another picture
+     * 
+     * @param   destination  The picture's own name in the picture directory
+     * @param   hash         The SHA-256 hash of the content, in hexadecimal
+     * @return               The name with the start of the hash
+     */
+    private static Path tag(final Path destination, final String hash)
+    {
+	final String name = destination.getFileName().toString();
+	final int dot = name.lastIndexOf('.');
+	final String tag = "-" + hash.substring(0, 8);
+	return destination.resolveSibling(dot <= 0 ? name + tag : name.substring(0, dot) + tag + name.substring(dot));
+    }
+    
+    
+    /**
+     * Checks whether a picture that has been imported before is still in the picture directory,
+     * a picture that has been removed from the picture directory is imported again
+     * 
+     * @param   source    The picture
+     * @param   size      The size of the picture
+     * @param   modified  The modification time of the picture
+     * @param   hash      The SHA-256 hash of the content, in hexadecimal
+     * @return            Whether the picture is in the picture directory
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private boolean isPresent(final Path source, final long size, final long modified, final String hash) throws IOException
+    {
+	if (this.store != null)
+	    /* The store keeps the content, but it is only in the library while it has a name */
+	    return Files.exists(this.store.getPath(hash), LinkOption.NOFOLLOW_LINKS) && this.store.isNamed(hash);
+	/* Where the transfer stage would have put it; a copy under another name is not looked for */
+	final Path destination = this.getDirectory(modified).resolve(source.getFileName());
+	try
+	{   if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS) && (Files.size(destination) == size))
+		return true;
+	}
+	catch (final NoSuchFileException err)
+	{   /* removed meanwhile */
+	}
+	return Files.exists(tag(destination, hash), LinkOption.NOFOLLOW_LINKS);
+    }
+    
+    
+    /**
+     * Gives a transferred picture its name, unless the name is already taken
+     * 
+     * @param   partial      The transferred picture
+     * @param   destination  The name
+     * @return               Whether the picture was given the name, otherwise it is left as it is
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private static boolean claim(final Path partial, final Path destination) throws IOException
+    {
+	try
+	{   /* A link is created exclusively, and the name never refers to an incomplete picture */
+	    Files.createLink(destination, partial);
+	}
+	catch (final FileAlreadyExistsException err)
+	{   return false;
+	}
+	catch (final UnsupportedOperationException | FileSystemException err)
+	{   /* Without hard links, the name is reserved exclusively and the picture is renamed over the reservation */
+	    try
+	    {   Files.createFile(destination);
+	    }
+	    catch (final FileAlreadyExistsException taken)
+	    {   return false;
+	    }
+	    try
+	    {   Files.move(partial, destination, StandardCopyOption.ATOMIC_MOVE);
+	    }
+	    catch (final IOException | RuntimeException failure)
+	    {   Files.deleteIfExists(destination);
+		throw failure;
+	    }
+	    return true;
+	}
+	Files.delete(partial);
+	return true;
+    }
+    
+    
+    /**
+     * Disposes of a transferred picture that was not given a name, if its source
+     * is gone, it was moved and the transferred picture is moved back, otherwise
+     * the transferred picture is removed; if it cannot be moved back, it is left
+     * as it is
+     * 
+     * @param  partial  The transferred picture
+     * @param  source   The source of the picture
+     */
+    static void restore(final Path partial, final Path source)
+    {
+	try
+	{   if (Files.exists(partial, LinkOption.NOFOLLOW_LINKS) == false)
+		return;
+	    if (Files.exists(source, LinkOption.NOFOLLOW_LINKS))
+		Files.delete(partial);
+	    else
+		Files.move(partial, source);
+	}
+	catch (final IOException err)
+	{   System.err.println("Cannot restore " + source + " from " + partial + ": " + err.toString());
+	}
+    }
+    
+    
+    /**
+     * Waits for a permit to enter a stage
+     * 
+     * @param   stage  The stage
+     * @return         The permits of the stage, release one when the stage is left
+     * 
+     * @throws  CancellationException  If the import has been cancelled
+     */
+    private Semaphore enter(final Stage stage)
+    {
+	if (this.cancelled)
+	    throw new CancellationException();
+	final Semaphore permits = this.stages.get(stage);
+	permits.acquireUninterruptibly();
+	return permits;
+    }
+    
+    
+    /**
+     * Gets the principal of the picture group
+     * 
+     * @param   file  A file on the filesystem the principal is used for
+     * @return        The principal of the picture group
+     * 
+     * @throws  IOException  If the group does not exist
+     */
+    private synchronized GroupPrincipal getGroupPrincipal(final Path file) throws IOException
+    {
+	if (this.groupPrincipal == null)
+	    this.groupPrincipal = file.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByGroupName(this.group);
+	return this.groupPrincipal;
+    }
+    
+    
+    /**
+     * Broadcasts the progress of the import
+     * 
+     * @param  finished  Whether the import has finished
+     */
+    private void progress(final boolean finished)
+    {
+	this.blackboard.broadcastMessage(new ProgressMessage(this, this.discovered.get(), this.imported.get(), this.skipped.get(),
+							     this.failed.get(), this.bytes.get(), finished));
+    }
+    
+    
+    /**
+     * Gets whether a file is a picture, by its name
+     * 
+     * @param   file  The file
+     * @return        Whether the file is a picture
+     */
+    private static boolean isPicture(final Path file)
+    {
+	final String name = file.getFileName().toString();
+	final int dot = name.lastIndexOf('.');
+	return (dot > 0) && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+    
+    
+    /**
+     * Calculates the SHA-256 hash of a file
+     * 
+     * @param   file  The file
+     * @return        The hash, in hexadecimal
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    static String hash(final Path file) throws IOException
+    {
+	final MessageDigest digest;
+	try
+	{   digest = MessageDigest.getInstance("SHA-256");
+	}
+	catch (final NoSuchAlgorithmException err)
+	{   throw new Error(err);
+	}
+	final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+	try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+	{   for (;;)
+	    {   final int n;
+		IoScheduler.begin(buffer.capacity());
+		try
+		{   n = channel.read(buffer);
+		}
+		finally
+		{   IoScheduler.end();
+		}
+		if (n < 0)
+		    break;
+		buffer.flip();
+		digest.update(buffer);
+		buffer.clear();
+	}   }
+	return toHex(digest.digest());
+    }
+    
+    
+    /**
+     * Converts bytes to hexadecimal
+     * 
+     * @param   data  The bytes
+     * @return        The bytes in hexadecimal
+     */
+    static String toHex(final byte[] data)
+    {
+	final char[] rc = new char[data.length * 2];
+	for (int i = 0; i < data.length; i++)
+	{   rc[2 * i + 0] = "0123456789abcdef".charAt((data[i] >> 4) & 15);
+	    rc[2 * i + 1] = "0123456789abcdef".charAt((data[i] >> 0) & 15);
+	}
+	return new String(rc);
+    }
+    
+    
+    
+    /**
+     * Append-only journal of registered pictures, one line per picture with the tab-separated
+     * fields: source, size, modification time, hash and destination. Records are synchronised
+     * to the disk in groups, a picture whose record was lost in a crash is found in the
+     * picture directory and skipped as a duplicate when the import is resumed. A torn last
+     * line is ignored.<br/>
+     * Before a picture is moved, a line with the fields source and transferred picture is
+     * synchronised to the disk, if the picture has not been registered when the journal is
+     * loaded again, the transferred picture is moved back to the source.
+     */
+    private static class Journal implements Closeable
+    {
+	/**
+	 * Constructor, loads the journal left by an interrupted import
+	 * 
+	 * @param  file  The journal file
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	Journal(final Path file) throws IOException
+	{
+	    this.file = file;
+	    if (Files.exists(file))
+		try (final TextReader reader = new TextReader(file.toString()))
+		{   final LinkedHashMap<String, String> moving = new LinkedHashMap<String, String>();
+		    for (String line; (line = reader.readLine()) != null;)
+		    {   final String[] fields = line.split("\t");
+			if (fields.length == 2)
+			    moving.put(fields[0], fields[1]);
+			else if (fields.length == 5)
+			    try
+			    {   this.done.put(fields[0], Long.parseLong(fields[1]) + "\t" + Long.parseLong(fields[2]));
+				moving.remove(fields[0]);
+			    }
+			    catch (final NumberFormatException ignore)
+			    {   /* torn record */
+		    }   }
+		    for (final Map.Entry<String, String> entry : moving.entrySet())
+			restore(Paths.get(entry.getValue()), Paths.get(entry.getKey()));
+		}
+	    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	    /* Start on a new line, in case the last record is torn */
+	    if (this.channel.size() > 0)
+		this.channel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+	}
+	
+	
+	
+	/**
+	 * The journal file
+	 */
+	private final Path file;
+	
+	/**
+	 * The open journal file
+	 */
+	private final FileChannel channel;
+	
+	/**
+	 * Sources listed in the journal, mapped to their size and modification time
+	 */
+	private final ConcurrentHashMap<String, String> done = new ConcurrentHashMap<String, String>();
+	
+	/**
+	 * The number of records since the journal was last synchronised to the disk
+	 */
+	private int unsynchronised = 0;
+	
+	
+	
+	/**
+	 * Checks whether a picture has been registered
+	 * 
+	 * @param   source    The picture
+	 * @param   size      The size of the picture
+	 * @param   modified  The modification time of the picture
+	 * @return            Whether the picture has been registered
+	 */
+	boolean contains(final String source, final long size, final long modified)
+	{
+	    return (size + "\t" + modified).equals(this.done.get(source));
+	}
+	
+	
+	/**
+	 * Records a registered picture
+	 * 
+	 * @param  source       The picture
+	 * @param  size         The size of the picture
+	 * @param  modified     The modification time of the picture
+	 * @param  hash         The hash of the picture
+	 * @param  destination  The picture in the picture directory
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	synchronized void append(final String source, final long size, final long modified, final String hash,
+				 final String destination) throws IOException
+	{
+	    final String record = source + "\t" + size + "\t" + modified + "\t" + hash + "\t" + destination + "\n";
+	    final boolean synchronise = this.unsynchronised + 1 == JOURNAL_SYNC_INTERVAL;
+	    this.write(StandardCharsets.UTF_8.encode(record), synchronise);
+	    this.done.put(source, size + "\t" + modified);
+	    this.unsynchronised = synchronise ? 0 : this.unsynchronised + 1;
+	}
+	
+	
+	/**
+	 * Records that a picture is about to be moved, and synchronises the journal to the disk
+	 * 
+	 * @param  source   The picture
+	 * @param  partial  The file the picture is moved to
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	synchronized void moving(final String source, final String partial) throws IOException
+	{
+	    this.write(StandardCharsets.UTF_8.encode(source + "\t" + partial + "\n"), true);
+	}
+	
+	
+	/**
+	 * Appends a record to the journal, as one operation in the {@link IoScheduler}
+	 * 
+	 * @param  record       The record
+	 * @param  synchronise  Whether to synchronise the journal to the disk
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	private void write(final ByteBuffer record, final boolean synchronise) throws IOException
+	{
+	    IoScheduler.begin(record.remaining());
+	    try
+	    {   while (record.hasRemaining())
+		    this.channel.write(record);
+		if (synchronise)
+		    this.channel.force(false);
+	    }
+	    finally
+	    {   IoScheduler.end();
+	    }
+	}
+	
+	
+	/**
+	 * Removes the journal
+	 * 
+	 * @throws  IOException  On file I/O error
+	 */
+	synchronized void delete() throws IOException
+	{
+	    this.channel.close();
+	    Files.deleteIfExists(this.file);
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+	    if (this.channel.isOpen())
+	    {   this.channel.force(false);
+		this.channel.close();
+	    }
+	}
+    }
+    
+}
@@ -0,0 +1,445 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Scheduler of file I/O, through which bulk file access in the program is made,
+ * so that background work does not disturb what the user is looking at.<br/>
+ * Each operation belongs to a priority class, by default the class set for the
+ * thread with {@link #setPriority(Priority)}. Prefetching waits while interactive
+ * I/O is in progress, or has been within the last {@link #IDLE_WINDOW} nanoseconds,
+ * and background I/O also waits for prefetching in the same way. Each class can be
+ * limited in bandwidth and in operations per second, and be paused.<br/>
+ * Operations are bracketed by {@link #begin(long)} and {@link #end()}, large
+ * transfers are made in chunks, each bracketed of its own, so that they can be
+ * preempted between chunks.
+ */
+public class IoScheduler
+{
+    /**
+     * Priority classes of I/O
+     */
+    public static enum Priority
+    {
+	/**
+	 * I/O that the user is waiting for
+	 */
+	INTERACTIVE,
+	
+	/**
+	 * I/O that the user will probably wait for soon
+	 */
+	PREFETCH,
+	
+	/**
+	 * I/O that nobody is waiting for, such as importing and scrubbing
+	 */
+	BACKGROUND,
+    }
+    
+    
+    
+    /**
+     * The time, in nanoseconds, lower priority classes keep waiting after higher priority I/O has
+     * ended, higher priority I/O tends to come in bursts with short gaps between the operations
+     */
+    public static final long IDLE_WINDOW = 50_000_000L;
+    
+    /**
+     * The recommended size of chunks for large transfers
+     */
+    public static final int CHUNK_SIZE = 1 << 20;
+    
+    /**
+     * The scheduler
+     */
+    private static final IoScheduler instance = new IoScheduler();
+    
+    /**
+     * The priority class of the current thread
+     */
+    private static final ThreadLocal<Priority> priority = new ThreadLocal<Priority>()
+	    {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Priority initialValue()
+		{   return Priority.INTERACTIVE;
+		}
+	    };
+    
+    /**
+     * The priority classes of the current thread's operations in progress, innermost first,
+     * so that {@link #end()} releases the class the operation was admitted in even if the
+     * thread's priority class has changed since
+     */
+    private static final ThreadLocal<ArrayDeque<Priority>> acquired = new ThreadLocal<ArrayDeque<Priority>>()
+	    {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected ArrayDeque<Priority> initialValue()
+		{   return new ArrayDeque<Priority>();
+		}
+	    };
+    
+    
+    
+    /**
+     * Constructor
+     */
+    private IoScheduler()
+    {
+	final Priority[] priorities = Priority.values();
+	this.lanes = new Lane[priorities.length];
+	for (int i = 0; i < priorities.length; i++)
+	    this.lanes[i] = new Lane();
+    }
+    
+    
+    
+    /**
+     * The state of a priority class
+     */
+    private static final class Lane
+    {
+	/**
+	 * The bandwidth limit, in bytes per second, zero if unlimited
+	 */
+	long bandwidth = 0;
+	
+	/**
+	 * The operation limit, in operations per second, zero if unlimited
+	 */
+	long iops = 0;
+	
+	/**
+	 * Available bytes, negative if in debt
+	 */
+	double bytes = 0;
+	
+	/**
+	 * Available operations, negative if in debt
+	 */
+	double operations = 0;
+	
+	/**
+	 * When the budgets were last refilled, in nanoseconds
+	 */
+	long refilled = System.nanoTime();
+	
+	/**
+	 * Whether the class is paused
+	 */
+	boolean paused = false;
+	
+	/**
+	 * The number of operations in progress
+	 */
+	int active = 0;
+	
+	/**
+	 * When an operation last ended, in nanoseconds
+	 */
+	long ended = System.nanoTime() - IDLE_WINDOW;
+	
+	/**
+	 * The number of operations made
+	 */
+	long operationCount = 0;
+	
+	/**
+	 * The number of bytes transferred
+	 */
+	long byteCount = 0;
+	
+	
+	
+	/**
+	 * Reserves budget for an operation
+	 * 
+	 * @param   size  The number of bytes in the operation
+	 * @param   now   The current time, in nanoseconds
+	 * @return        The time, in nanoseconds, to wait before the operation may start
+	 */
+	long reserve(final long size, final long now)
+	{
+	    final double seconds = (now - this.refilled) / 1_000_000_000.;
+	    this.refilled = now;
+	    long delay = 0;
+	    
+	    /* Budgets are capped at one second's worth, so idle time cannot be saved for a burst */
+	    if (this.bandwidth > 0)
+	    {   this.bytes = Math.min(this.bytes + seconds * this.bandwidth, this.bandwidth) - size;
+		if (this.bytes < 0)
+		    delay = (long)(-this.bytes * 1_000_000_000. / this.bandwidth);
+	    }
+	    if (this.iops > 0)
+	    {   this.operations = Math.min(this.operations + seconds * this.iops, this.iops) - 1;
+		if (this.operations < 0)
+		    delay = Math.max(delay, (long)(-this.operations * 1_000_000_000. / this.iops));
+	    }
+	    
+	    this.operationCount++;
+	    this.byteCount += size;
+	    return delay;
+	}
+    }
+    
+    
+    
+    /**
+     * The state of each priority class
+     */
+    private final Lane[] lanes;
+    
+    
+    
+    /**
+     * Gets the scheduler
+     * 
+     * @return  The scheduler
+     */
+    public static IoScheduler getInstance()
+    {
+	return instance;
+    }
+    
+    
+    /**
+     * Sets the priority class of the current thread's I/O
+     * 
+     * @param  priority  The priority class
+     */
+    public static void setPriority(final Priority priority)
+    {
+	IoScheduler.priority.set(priority);
+    }
+    
+    
+    /**
+     * Gets the priority class of the current thread's I/O
+     * 
+     * @return  The priority class
+     */
+    public static Priority getPriority()
+    {
+	return IoScheduler.priority.get();
+    }
+    
+    
+    /**
+     * Waits until the current thread may start an operation, in its priority class
+     * 
+     * @param   size  The number of bytes in the operation, zero for metadata operations
+     * 
+     * @throws  InterruptedIOException  If the thread is interrupted while waiting
+     */
+    public static void begin(final long size) throws InterruptedIOException
+    {
+	final Priority priority = IoScheduler.priority.get();
+	instance.acquire(priority, size);
+	acquired.get().push(priority);
+    }
+    
+    
+    /**
+     * Marks the end of an operation started with {@link #begin(long)},
+     * in the priority class it was started in
+     * 
+     * @throws  IllegalStateException  If the current thread has no operation in progress
+     */
+    public static void end()
+    {
+	final Priority priority = acquired.get().poll();
+	if (priority == null)
+	    throw new IllegalStateException("no I/O operation in progress");
+	instance.release(priority);
+    }
+    
+    
+    /**
+     * Waits until an operation may start
+     * 
+     * @param   priority  The priority class of the operation
+     * @param   size      The number of bytes in the operation, zero for metadata operations
+     * 
+     * @throws  InterruptedIOException  If the thread is interrupted while waiting
+     */
+    public void acquire(final Priority priority, final long size) throws InterruptedIOException
+    {
+	final Lane lane = this.lanes[priority.ordinal()];
+	final long delay;
+	try
+	{   synchronized (this)
+	    {
+		for (;;)
+		{   if (lane.paused)
+		    {   this.wait();
+			continue;
+		    }
+		    final long wait = this.yieldTime(priority, System.nanoTime());
+		    if (wait <= 0)
+			break;
+		    this.wait(wait / 1_000_000L, (int)(wait % 1_000_000L));
+		}
+		lane.active++;
+		delay = lane.reserve(size, System.nanoTime());
+	    }
+	}
+	catch (final InterruptedException err)
+	{   throw new InterruptedIOException("interrupted while waiting for I/O");
+	}
+	
+	if (delay > 0)
+	    try
+	    {   Thread.sleep(delay / 1_000_000L, (int)(delay % 1_000_000L));
+	    }
+	    catch (final InterruptedException err)
+	    {   this.release(priority);
+		throw new InterruptedIOException("interrupted while waiting for I/O");
+	    }
+    }
+    
+    
+    /**
+     * Marks the end of an operation
+     * 
+     * @param  priority  The priority class of the operation
+     */
+    public synchronized void release(final Priority priority)
+    {
+	final Lane lane = this.lanes[priority.ordinal()];
+	lane.active--;
+	lane.ended = System.nanoTime();
+	this.notifyAll();
+    }
+    
+    
+    /**
+     * Gets for how long a priority class has to yield to higher priority classes
+     * 
+     * @param   priority  The priority class
+     * @param   now       The current time, in nanoseconds
+     * @return            The time to wait, in nanoseconds, zero or negative if none
+     */
+    private long yieldTime(final Priority priority, final long now)
+    {
+	long wait = 0;
+	for (int i = 0; i < priority.ordinal(); i++)
+	{   final Lane higher = this.lanes[i];
+	    if (higher.active > 0)
+		wait = Math.max(wait, IDLE_WINDOW);
+	    else
+		wait = Math.max(wait, higher.ended + IDLE_WINDOW - now);
+	}
+	return wait;
+    }
+    
+    
+    /**
+     * Sets the bandwidth limit of a priority class
+     * 
+     * @param  priority  The priority class
+     * @param  bytes     The limit, in bytes per second, zero for unlimited
+     */
+    public synchronized void setBandwidthLimit(final Priority priority, final long bytes)
+    {
+	this.lanes[priority.ordinal()].bandwidth = bytes;
+    }
+    
+    
+    /**
+     * Sets the operation limit of a priority class
+     * 
+     * @param  priority    The priority class
+     * @param  operations  The limit, in operations per second, zero for unlimited
+     */
+    public synchronized void setIopsLimit(final Priority priority, final long operations)
+    {
+	this.lanes[priority.ordinal()].iops = operations;
+    }
+    
+    
+    /**
+     * Pauses a priority class, operations in progress are completed,
+     * but no new operations are started until it is resumed
+     * 
+     * @param  priority  The priority class
+     */
+    public synchronized void pause(final Priority priority)
+    {
+	this.lanes[priority.ordinal()].paused = true;
+    }
+    
+    
+    /**
+     * Resumes a paused priority class
+     * 
+     * @param  priority  The priority class
+     */
+    public synchronized void resume(final Priority priority)
+    {
+	this.lanes[priority.ordinal()].paused = false;
+	this.notifyAll();
+    }
+    
+    
+    /**
+     * Gets whether a priority class is paused
+     * 
+     * @param   priority  The priority class
+     * @return            Whether the priority class is paused
+     */
+    public synchronized boolean isPaused(final Priority priority)
+    {
+	return this.lanes[priority.ordinal()].paused;
+    }
+    
+    
+    /**
+     * Gets the number of operations made in a priority class
+     * 
+     * @param   priority  The priority class
+     * @return            The number of operations
+     */
+    public synchronized long getOperationCount(final Priority priority)
+    {
+	return this.lanes[priority.ordinal()].operationCount;
+    }
+    
+    
+    /**
+     * Gets the number of bytes transferred in a priority class
+     * 
+     * @param   priority  The priority class
+     * @return            The number of bytes
+     */
+    public synchronized long getByteCount(final Priority priority)
+    {
+	return this.lanes[priority.ordinal()].byteCount;
+    }
+    
+}
@@ -20,14 +20,135 @@ package wom;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.regex.*;
 
 
 /**
- * Mane filter component
+ * Mane filter component<br/>
+ * Applying the filters evaluates the active filters expression, see
+ * {@link FilterQuery}, over the pictures in the {@link Catalog}, and broadcasts
+ * the result. The expression may refer to {@code years}, {@code months},
+ * {@code days} and {@code hours}, the selections of the time filters, a time
+ * filter without any selection does not filter, to {@code categories} and
+ * {@code people}, to {@code landscape} and {@code portrait}, and to {@code title},
+ * the title regular expression, which is found in the file names of the pictures.
  */
 @SuppressWarnings("serial")
 public class ManeFilter extends JPanel
 {
+    /**
+     * Message broadcasted with the result of applying the filters
+     */
+    public static class FilteredMessage implements Blackboard.BlackboardMessage
+    {
+	static
+	{
+	    BlackboardRecorder.registerCodec(FilteredMessage.class, new BlackboardRecorder.Codec<FilteredMessage>()
+		    {   /**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void encode(final FilteredMessage message, final DataOutput output) throws IOException
+			{
+			    output.writeUTF(message.expression);
+			    final int[] pictures = message.pictures.toArray();
+			    output.writeInt(pictures.length);
+			    for (final int picture : pictures)
+				output.writeInt(picture);
+			}
+			
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public FilteredMessage decode(final DataInput input) throws IOException
+			{
+			    final String expression = input.readUTF();
+			    final int n = input.readInt();
+			    if (n < 0)
+				throw new StreamCorruptedException("Invalid number of pictures");
+			    final Bitmap pictures = new Bitmap();
+			    for (int i = 0; i < n; i++)
+			    {   final int picture = input.readInt();
+				if (picture < 0)
+				    throw new StreamCorruptedException("Invalid picture index");
+				pictures.add(picture);
+			    }
+			    return new FilteredMessage(expression, null, pictures);
+			}
+		    });
+	}
+	
+	
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param  expression  The applied expression
+	 * @param  catalog     The catalog the pictures are in, {@code null} if replayed from a log
+	 * @param  pictures    The indices of the matching pictures in the catalog
+	 */
+	public FilteredMessage(final String expression, final Catalog catalog, final Bitmap pictures)
+	{
+	    this.expression = expression;
+	    this.catalog = catalog;
+	    this.pictures = pictures;
+	}
+	
+	
+	
+	/**
+	 * The applied expression
+	 */
+	private final String expression;
+	
+	/**
+	 * The catalog the pictures are in
+	 */
+	private final Catalog catalog;
+	
+	/**
+	 * The indices of the matching pictures in the catalog
+	 */
+	private final Bitmap pictures;
+	
+	
+	
+	/**
+	 * Gets the applied expression
+	 * 
+	 * @return  The applied expression
+	 */
+	public String getExpression()
+	{   return this.expression;
+	}
+	
+	/**
+	 * Gets the catalog the pictures are in
+	 * 
+	 * @return  The catalog the pictures are in, {@code null} if the message was replayed from a log
+	 */
+	public Catalog getCatalog()
+	{   return this.catalog;
+	}
+	
+	/**
+	 * Gets the matching pictures
+	 * 
+	 * @return  The indices of the matching pictures in the catalog
+	 */
+	public Bitmap getPictures()
+	{   return this.pictures;
+	}
+	
+    }
+    
+    
+    
     /**
      * The size of the margin
      */
@@ -42,9 +163,20 @@ public class ManeFilter extends JPanel
     
     /**
      * Constructor
+     * 
+     * @param  yearFilter   The year filter
+     * @param  monthFilter  The month filter
+     * @param  dayFilter    The day filter
+     * @param  hourFilter   The hour filter
      */
-    public ManeFilter()
+    public ManeFilter(final YearFilter yearFilter, final MonthFilter monthFilter, final DayFilter dayFilter,
+		      final HourFilter hourFilter)
     {
+	this.yearFilter = yearFilter;
+	this.monthFilter = monthFilter;
+	this.dayFilter = dayFilter;
+	this.hourFilter = hourFilter;
+	
 	this.setBackground(Color.WHITE);
 	this.setLayout(new DockLayout());
 	
@@ -61,30 +193,63 @@ public class ManeFilter extends JPanel
 		    { new PadPane(GAP, GAP),
 		    },
 		    { new JLabel("Active filters: "),
-		      new JTextField("years and months and days and hours and categories and people"),
+		      this.active,
 		      new JButton("Apply"),
 		    },
 		    { new PadPane(GAP, GAP),
 		    },
 		    { new JLabel("Format (conjunctive): "),
-		      new JButton("Landscape"),
-		      new JButton("Portrait"),
+		      this.conjunctive[0],
+		      this.conjunctive[1],
 		    },
 		    { new PadPane(GAP, GAP),
 		    },
 		    { new JLabel("Format (disjunctive): "),
-		      new JButton("Landscape"),
-		      new JButton("Portrait"),
+		      this.disjunctive[0],
+		      this.disjunctive[1],
 		    },
 		    { new PadPane(GAP, GAP),
 		    },
 		    { new JLabel("Title (regex): "),
-		      new JTextField(),
+		      this.title,
 		      new JButton("Add (or)"),
 		      new JButton("Add (and)"),
 		    },
 		};
 	
+	((JButton)(comps[2][2])).addActionListener(new ActionListener()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public void actionPerformed(final ActionEvent e)
+		    {
+			ManeFilter.this.apply();
+		    }
+		});
+	for (int i = 2; i <= 3; i++)
+	{   final String operator = i == 2 ? "or" : "and";
+	    ((JButton)(comps[8][i])).addActionListener(new ActionListener()
+		    {
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void actionPerformed(final ActionEvent e)
+			{
+			    final JTextField active = ManeFilter.this.active;
+			    final String expression = active.getText().trim();
+			    if (expression.isEmpty())
+				active.setText("title");
+			    else if (operator.equals("or"))
+				active.setText(expression + " or title");
+			    else
+				active.setText("(" + expression + ") and title");
+			}
+		    });
+	}
+	
 	comps[2][1].setMinimumSize(comps[2][1].getPreferredSize());
 	comps[2][1].setPreferredSize(new Dimension(0, comps[2][1].getPreferredSize().height));
 	comps[8][1].setMinimumSize(new Dimension(200, comps[8][1].getPreferredSize().height));
@@ -135,5 +300,450 @@ public class ManeFilter extends JPanel
 	this.setPreferredSize(new Dimension(total_width + 2 * MARGIN, total_height));
     }
     
+    
+    
+    /**
+     * The year filter
+     */
+    private final YearFilter yearFilter;
+    
+    /**
+     * The month filter
+     */
+    private final MonthFilter monthFilter;
+    
+    /**
+     * The day filter
+     */
+    private final DayFilter dayFilter;
+    
+    /**
+     * The hour filter
+     */
+    private final HourFilter hourFilter;
+    
+    /**
+     * The active filters expression
+     */
+    private final JTextField active = new JTextField("years and months and days and hours and categories and people");
+    
+    /**
+     * The title regular expression
+     */
+    private final JTextField title = new JTextField();
+    
+    /**
+     * The landscape and portrait buttons whose formats are required
+     */
+    private final JToggleButton[] conjunctive = { new JToggleButton("Landscape"), new JToggleButton("Portrait") };
+    
+    /**
+     * The landscape and portrait buttons whose formats are accepted
+     */
+    private final JToggleButton[] disjunctive = { new JToggleButton("Landscape"), new JToggleButton("Portrait") };
+    
+    /**
+     * The catalog, {@code null} until the filters are first applied
+     */
+    private Catalog catalog = null;
+    
+    /**
+     * The time index of the catalog, {@code null} until the filters are first applied
+     */
+    private TimeIndex timeIndex = null;
+    
+    /**
+     * The trigram index of the titles in the catalog, {@code null} until the title is first filtered by
+     */
+    private TrigramIndex trigramIndex = null;
+    
+    
+    
+    /**
+     * Gets the expression to apply: the active filters, with the formats
+     * 
+     * @return  The expression to apply
+     */
+    private String getExpression()
+    {
+	final String[] formats = { "landscape", "portrait" };
+	String expression = this.active.getText().trim();
+	for (int i = 0; i < 2; i++)
+	    if (this.conjunctive[i].isSelected())
+		expression = "(" + expression + ") and " + formats[i];
+	for (int i = 0; i < 2; i++)
+	    if (this.disjunctive[i].isSelected())
+		expression = "(" + expression + ") or " + formats[i];
+	return expression;
+    }
+    
+    
+    /**
+     * Applies the filters, in the background, and broadcasts the result
+     */
+    private void apply()
+    {
+	final String expression = this.getExpression();
+	final FilterQuery query;
+	try
+	{   query = new FilterQuery(expression, this.createPredicates());
+	}
+	catch (final ParseException err)
+	{   this.active.setForeground(Color.RED);
+	    this.active.setToolTipText(err.getMessage());
+	    return;
+	}
+	catch (final PatternSyntaxException err)
+	{   this.title.setForeground(Color.RED);
+	    this.title.setToolTipText(err.getDescription());
+	    return;
+	}
+	this.active.setForeground(UIManager.getColor("TextField.foreground"));
+	this.active.setToolTipText(null);
+	this.title.setForeground(UIManager.getColor("TextField.foreground"));
+	this.title.setToolTipText(null);
+	
+	ExecutorThreading.createDaemonThread(new Runnable()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public void run()
+		    {
+			try
+			{   ManeFilter.this.execute(expression, query);
+			}
+			catch (final IOException | RuntimeException err)
+			{   System.err.println("Cannot apply filters: " + err.toString());
+			}
+		    }
+		}).start();
+    }
+    
+    
+    /**
+     * Executes a query and broadcasts the result
+     * 
+     * @param  expression  The expression of the query
+     * @param  query       The query
+     * 
+     * @throws  IOException  If the catalog cannot be read
+     */
+    private synchronized void execute(final String expression, final FilterQuery query) throws IOException
+    {
+	if (this.catalog == null)
+	{   this.catalog = new Catalog(Settings.getString(Settings.PICTURE_DIRECTORY));
+	    this.timeIndex = new TimeIndex(this.catalog);
+	}
+	else
+	{   this.catalog.refresh();
+	    this.timeIndex.update();
+	    if (this.trigramIndex != null)
+		this.trigramIndex.update();
+	}
+	
+	final Bitmap pictures = query.execute(this.timeIndex.getAll(), this.catalog.size());
+	
+	/* Show the years and weeks with pictures, the next query uses the new range */
+	final int firstYear = this.timeIndex.getFirstYear();
+	final int lastYear = this.timeIndex.getLastYear();
+	final int lastWeek = this.timeIndex.getLastWeek();
+	if (firstYear >= 0)
+	    SwingUtilities.invokeLater(new Runnable()
+		    {
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void run()
+			{
+			    ManeFilter.this.yearFilter.setYears(firstYear, lastYear);
+			    ManeFilter.this.monthFilter.setYears(firstYear, lastYear);
+			    ManeFilter.this.dayFilter.setLastWeek(lastWeek);
+			}
+		    });
+	Blackboard.getInstance(null).broadcastMessage(new FilteredMessage(expression, this.catalog, pictures));
+    }
+    
+    
+    /**
+     * Creates the predicates of the active filters expression, from the current selections
+     * 
+     * @return  The predicates, by name
+     * 
+     * @throws  PatternSyntaxException  If the title regular expression is malformed
+     */
+    private Map<String, FilterQuery.Predicate> createPredicates()
+    {
+	final HashMap<String, FilterQuery.Predicate> predicates = new HashMap<String, FilterQuery.Predicate>();
+	
+	final int yearsFrom = this.yearFilter.getFirstYear();
+	final short[] years = this.yearFilter.getSelection();
+	final short allYears = this.yearFilter.getAllYearsSelection();
+	final int monthsFrom = this.monthFilter.getFirstYear();
+	final short[][] months = this.monthFilter.getSelection();
+	final short[] allMonths = this.monthFilter.getAllYearsSelection();
+	final int daysFrom = this.dayFilter.getFirstWeek();
+	final byte[] days = this.dayFilter.getSelection();
+	final byte allDays = this.dayFilter.getAllWeeksSelection();
+	final byte[] hours = this.hourFilter.getSelection();
+	final String regex = this.title.getText();
+	final Pattern pattern = TrigramIndex.compile(regex);
+	
+	predicates.put("years", new IndexPredicate()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    protected Bitmap select(final TimeIndex index)
+		    {   return isEmpty(years) ? index.getAll() : index.selectMonths(yearsFrom, years, allYears);
+		    }
+		});
+	predicates.put("months", new IndexPredicate()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    protected Bitmap select(final TimeIndex index)
+		    {   boolean empty = true;
+			for (final short[] year : months)
+			    empty &= isEmpty(year);
+			return empty ? index.getAll() : index.selectDays(monthsFrom, months, allMonths);
+		    }
+		});
+	predicates.put("days", new IndexPredicate()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    protected Bitmap select(final TimeIndex index)
+		    {   return isEmpty(days) ? index.getAll() : index.selectWeekdays(daysFrom, days, allDays);
+		    }
+		});
+	predicates.put("hours", new IndexPredicate()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    protected Bitmap select(final TimeIndex index)
+		    {   return isEmpty(hours) ? index.getAll() : index.selectHours(hours);
+		    }
+		});
+	/* There is no category or person selection yet */
+	predicates.put("categories", new IndexPredicate()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    protected Bitmap select(final TimeIndex index)
+		    {   return index.getAll();
+		    }
+		});
+	predicates.put("people", predicates.get("categories"));
+	
+	for (final boolean landscape : new boolean[] { true, false })
+	    predicates.put(landscape ? "landscape" : "portrait", new TestPredicate(0.01)
+		    {
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			protected boolean test(final Catalog catalog, final int entry)
+			{   int width = catalog.getWidth(entry);
+			    int height = catalog.getHeight(entry);
+			    if (catalog.getOrientation(entry) >= 5)
+			    {   /* Rotated a quarter turn */
+				width = height;
+				height = catalog.getWidth(entry);
+			    }
+			    return landscape ? width > height : width < height;
+			}
+		    });
+	
+	predicates.put("title", new TestPredicate(1)
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    protected boolean test(final Catalog catalog, final int entry)
+		    {   return pattern.matcher(catalog.getTitle(entry)).find();
+		    }
+		    
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public Bitmap narrow()
+		    {   if (ManeFilter.this.trigramIndex == null)
+			    ManeFilter.this.trigramIndex = new TrigramIndex(ManeFilter.this.catalog);
+			return ManeFilter.this.trigramIndex.candidates(regex);
+		    }
+		});
+	
+	return predicates;
+    }
+    
+    
+    /**
+     * Checks whether a selection is empty
+     * 
+     * @param   selection  The selection masks
+     * @return             Whether no mask has any bit set
+     */
+    private static boolean isEmpty(final short[] selection)
+    {
+	for (final short mask : selection)
+	    if (mask != 0)
+		return false;
+	return true;
+    }
+    
+    /**
+     * Checks whether a selection is empty
+     * 
+     * @param   selection  The selection masks
+     * @return             Whether no mask has any bit set
+     */
+    private static boolean isEmpty(final byte[] selection)
+    {
+	for (final byte mask : selection)
+	    if (mask != 0)
+		return false;
+	return true;
+    }
+    
+    
+    /**
+     * A predicate answered by the time index
+     */
+    private abstract class IndexPredicate implements FilterQuery.Predicate
+    {
+	/**
+	 * Selects the matching pictures
+	 * 
+	 * @param   index  The time index
+	 * @return         The matching pictures
+	 */
+	protected abstract Bitmap select(final TimeIndex index);
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Bitmap select()
+	{
+	    return this.select(ManeFilter.this.timeIndex);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Bitmap narrow()
+	{
+	    return null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @throws  IllegalStateException  Always, indexed predicates are answered by {@link #select()}
+	 */
+	@Override
+	public boolean test(final int entry)
+	{
+	    throw new IllegalStateException("indexed predicates are not tested picture by picture");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getCost()
+	{
+	    return 0;
+	}
+	
+    }
+    
+    
+    /**
+     * A predicate tested picture by picture
+     */
+    private abstract class TestPredicate implements FilterQuery.Predicate
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  cost  The cost of testing a picture
+	 */
+	TestPredicate(final double cost)
+	{
+	    this.cost = cost;
+	}
+	
+	
+	
+	/**
+	 * The cost of testing a picture
+	 */
+	private final double cost;
+	
+	
+	
+	/**
+	 * Tests whether a picture matches
+	 * 
+	 * @param   catalog  The catalog
+	 * @param   entry    The index of the picture
+	 * @return           Whether the picture matches
+	 */
+	protected abstract boolean test(final Catalog catalog, final int entry);
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Bitmap select()
+	{
+	    return null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Bitmap narrow()
+	{
+	    return null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean test(final int entry)
+	{
+	    return this.test(ManeFilter.this.catalog, entry);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getCost()
+	{
+	    return this.cost;
+	}
+	
+    }
+    
 }
 
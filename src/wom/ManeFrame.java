@@ -45,15 +45,20 @@ public class ManeFrame extends JFrame
 							JScrollPane.  VERTICAL_SCROLLBAR_ALWAYS,
 							JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 	
+	final YearFilter  year_filter  = new YearFilter();
+	final MonthFilter month_filter = new MonthFilter();
+	final DayFilter   day_filter   = new DayFilter();
+	final HourFilter  hour_filter  = new HourFilter();
+	
 	final Object[][] bottom_tab_contents =
 	        {
-		    {"Years",      new YearFilter()},
-		    {"Months",     new MonthFilter()},
-		    {"Days",       new DayFilter()},
-		    {"Hours",      new HourFilter()},
+		    {"Years",      year_filter},
+		    {"Months",     month_filter},
+		    {"Days",       day_filter},
+		    {"Hours",      hour_filter},
 		    {"Categories", new CategoryFilter()},
 		    {"People",     new PersonFilter()},
-		    {"Filter",     new ManeFilter()},
+		    {"Filter",     new ManeFilter(year_filter, month_filter, day_filter, hour_filter)},
 		};
 	
 	final JTabbedPane bottom_tabs = new JTabbedPane(JTabbedPane.BOTTOM, JTabbedPane.SCROLL_TAB_LAYOUT);
@@ -22,10 +22,14 @@ import javax.swing.*;
 import javax.swing.event.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
 
 
 /**
- * Month filter component
+ * Month filter component, with a day × month grid for each year, from the
+ * first to the last year with pictures, or the last two years until those
+ * are known, and a grid for all years; days selected in the grid for all
+ * years are also selected in the years that are not shown
  */
 @SuppressWarnings("serial")
 public class MonthFilter extends JComponent implements MouseInputListener
@@ -87,9 +91,7 @@ public class MonthFilter extends JComponent implements MouseInputListener
 	this.addMouseListener(this);
 	this.addMouseMotionListener(this);
 	
-	final int x = MARGIN * 2 + YEAR_WIDTH + 100/*dummy max. length of text */;
-	final int y = MARGIN * 2 + this.m_selected.length * (YEAR_HEIGHT + HUGE_GAP) - HUGE_GAP;
-	this.setPreferredSize(new Dimension(x, y));
+	this.updateSize();
     }
     
     
@@ -105,9 +107,9 @@ public class MonthFilter extends JComponent implements MouseInputListener
     private short[] m_selected = new short[3];
     
     /**
-     * The first year with activity
+     * The year of the first year after all years
      */
-    private int first_year = 1990;
+    private int first_year = Calendar.getInstance().get(Calendar.YEAR) - this.m_selected.length + 2;
     
     /**
      * The index of the hovered element, -1 if none
@@ -116,6 +118,81 @@ public class MonthFilter extends JComponent implements MouseInputListener
     
     
     
+    /**
+     * Updates the preferred size from the number of years
+     */
+    private void updateSize()
+    {
+	final int x = MARGIN * 2 + YEAR_WIDTH + 100/*dummy max. length of text */;
+	final int y = MARGIN * 2 + this.m_selected.length * (YEAR_HEIGHT + HUGE_GAP) - HUGE_GAP;
+	this.setPreferredSize(new Dimension(x, y));
+    }
+    
+    /**
+     * Sets the years to show, the selection of the years that remain is kept,
+     * and the days selected for all years are selected in the added years
+     * 
+     * @param  firstYear  The first year with pictures
+     * @param  lastYear   The last year with pictures
+     */
+    public void setYears(final int firstYear, final int lastYear)
+    {
+	final int years = Math.max(lastYear - firstYear + 1, 1);
+	if ((firstYear == this.first_year) && (years + 1 == this.m_selected.length))
+	    return;
+	final short[][] selected = new short[years + 1][];
+	final short[] m_selected = new short[years + 1];
+	selected[0] = this.selected[0];
+	m_selected[0] = this.m_selected[0];
+	for (int i = 1; i <= years; i++)
+	{   final int old = firstYear + i - this.first_year;
+	    final boolean kept = (1 <= old) && (old < this.m_selected.length);
+	    selected[i] = (kept ? this.selected[old] : this.selected[0]).clone();
+	    m_selected[i] = kept ? this.m_selected[old] : this.m_selected[0];
+	}
+	this.selected = selected;
+	this.m_selected = m_selected;
+	this.first_year = firstYear;
+	this.hover = -1;
+	this.updateSize();
+	this.revalidate();
+	this.repaint();
+    }
+    
+    /**
+     * Gets the year of the first year after all years
+     * 
+     * @return  The year of the first year in the selection
+     */
+    public int getFirstYear()
+    {
+	return this.first_year;
+    }
+    
+    /**
+     * Gets the selection
+     * 
+     * @return  For each year, for each day of the month, the mask of selected months
+     */
+    public short[][] getSelection()
+    {
+	final short[][] selection = new short[this.selected.length - 1][];
+	for (int i = 1; i < this.selected.length; i++)
+	    selection[i - 1] = this.selected[i].clone();
+	return selection;
+    }
+    
+    /**
+     * Gets the selection of all years, which applies to the years that are not shown
+     * 
+     * @return  For each day of the month, the mask of months selected for all years
+     */
+    public short[] getAllYearsSelection()
+    {
+	return this.selected[0].clone();
+    }
+    
+    
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,325 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#define _GNU_SOURCE
+#include "wom_NativeTransfer.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/ioctl.h>
+#include <sys/sendfile.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <linux/fs.h>
+
+#ifndef FICLONE
+# define FICLONE  _IOW(0x94, 9, int)
+#endif
+
+
+/**
+ * Throw an exception
+ * 
+ * @param  env      The JNI environment
+ * @param  class    The class of the exception
+ * @param  message  The message of the exception
+ */
+static void throw_new(JNIEnv* env, const char* class, const char* message)
+{
+  jclass exception;
+  if ((exception = (*env)->FindClass(env, class)))
+    (*env)->ThrowNew(env, exception, message);
+}
+
+
+/**
+ * Throw an exception describing the current `errno`
+ * 
+ * @param  env   The JNI environment
+ * @param  file  The file the error concerns
+ */
+static void throw_errno(JNIEnv* env, const char* file)
+{
+  const char* class = errno == EEXIST ? "java/nio/file/FileAlreadyExistsException"
+                    : errno == ENOENT ? "java/nio/file/NoSuchFileException"
+                    :                   "java/io/IOException";
+  char message[1024];
+  char* p;
+  
+  snprintf(message, sizeof(message), "%s: %s", file, strerror(errno));
+  /* The file name is in the platform's encoding, but the message must be modified UTF-8 */
+  for (p = message; *p; p++)
+    if (*p & 0x80)
+      *p = '?';
+  throw_new(env, class, message);
+}
+
+
+/**
+ * Get a path as a NUL-terminated string
+ * 
+ * @param   env    The JNI environment
+ * @param   jpath  The path, in the platform's file name encoding, without terminator
+ * @return         The path, free with `free`, `NULL` if an exception has been thrown
+ */
+static char* get_path(JNIEnv* env, jbyteArray jpath)
+{
+  jsize length = (*env)->GetArrayLength(env, jpath);
+  char* path = malloc((size_t)length + 1);
+  
+  if (path == NULL)
+    return throw_new(env, "java/lang/OutOfMemoryError", "cannot allocate path"), NULL;
+  (*env)->GetByteArrayRegion(env, jpath, 0, length, (jbyte*)path);
+  if ((*env)->ExceptionCheck(env))
+    return free(path), NULL;
+  path[length] = '\0';
+  /* A NUL would silently truncate the path to another file */
+  if (strlen(path) != (size_t)length)
+    return throw_new(env, "java/io/IOException", "path contains NUL"), free(path), NULL;
+  return path;
+}
+
+
+/**
+ * Open the source and create the destination
+ * 
+ * @param   env          The JNI environment
+ * @param   source       The source file
+ * @param   destination  The destination file
+ * @param   fds          Output parameter for the source's and the destination's file descriptors
+ * @param   size         Output parameter for the size of the source
+ * @return               Zero on success, -1 if an exception has been thrown
+ */
+static int open_pair(JNIEnv* env, const char* source, const char* destination, int fds[2], off_t* size)
+{
+  struct stat attr;
+  
+  if ((fds[0] = open(source, O_RDONLY | O_CLOEXEC)) < 0)
+    return throw_errno(env, source), -1;
+  if (fstat(fds[0], &attr) < 0)
+    return throw_errno(env, source), close(fds[0]), -1;
+  if ((fds[1] = open(destination, O_WRONLY | O_CREAT | O_EXCL | O_CLOEXEC, attr.st_mode & 0666)) < 0)
+    return throw_errno(env, destination), close(fds[0]), -1;
+  
+  *size = attr.st_size;
+  return 0;
+}
+
+
+/**
+ * Close the source and the destination, and remove the destination unless it is complete
+ * 
+ * @param  fds          The source's and the destination's file descriptors
+ * @param  destination  The destination file
+ * @param  keep         Whether the destination is complete
+ */
+static void close_pair(int fds[2], const char* destination, int keep)
+{
+  int saved_errno = errno;
+  close(fds[0]);
+  close(fds[1]);
+  if (keep == 0)
+    unlink(destination);
+  errno = saved_errno;
+}
+
+
+/**
+ * Admission of chunks of a transfer in `wom.IoScheduler`
+ */
+struct scheduler
+{
+  /**
+   * The JNI environment
+   */
+  JNIEnv* env;
+  
+  /**
+   * The class `wom.IoScheduler`
+   */
+  jclass class;
+  
+  /**
+   * The method `IoScheduler.begin(long)`
+   */
+  jmethodID begin;
+  
+  /**
+   * The method `IoScheduler.end()`
+   */
+  jmethodID end;
+  
+  /**
+   * The largest number of bytes to transfer per admission
+   */
+  jlong chunk;
+};
+
+
+/**
+ * Look up the I/O scheduler
+ * 
+ * @param   env        The JNI environment
+ * @param   chunk      The largest number of bytes to transfer per admission
+ * @param   scheduler  Output parameter for the scheduler
+ * @return             Zero on success, -1 if an exception has been thrown
+ */
+static int find_scheduler(JNIEnv* env, jlong chunk, struct scheduler* scheduler)
+{
+  scheduler->env = env;
+  scheduler->chunk = chunk;
+  if ((scheduler->class = (*env)->FindClass(env, "wom/IoScheduler")) == NULL)
+    return -1;
+  if ((scheduler->begin = (*env)->GetStaticMethodID(env, scheduler->class, "begin", "(J)V")) == NULL)
+    return -1;
+  if ((scheduler->end = (*env)->GetStaticMethodID(env, scheduler->class, "end", "()V")) == NULL)
+    return -1;
+  return 0;
+}
+
+
+/**
+ * Wait until the next chunk of a transfer may start
+ * 
+ * @param   scheduler  The scheduler
+ * @param   remaining  The number of bytes left to transfer
+ * @return             The number of bytes to transfer in the chunk, -1 if an exception has been thrown
+ */
+static ssize_t admit(struct scheduler* scheduler, off_t remaining)
+{
+  jlong length = remaining < scheduler->chunk ? (jlong)remaining : scheduler->chunk;
+  (*scheduler->env)->CallStaticVoidMethod(scheduler->env, scheduler->class, scheduler->begin, length);
+  return (*scheduler->env)->ExceptionCheck(scheduler->env) ? -1 : (ssize_t)length;
+}
+
+
+/**
+ * Mark the end of a chunk started with `admit`
+ * 
+ * @param  scheduler  The scheduler
+ */
+static void release(struct scheduler* scheduler)
+{
+  int saved_errno = errno;
+  (*scheduler->env)->CallStaticVoidMethod(scheduler->env, scheduler->class, scheduler->end);
+  errno = saved_errno;
+}
+
+
+/**
+ * Copy the rest of a file with `copy_file_range`, or with `sendfile`
+ * if `copy_file_range` is unsupported between the files, admitting
+ * each chunk in the I/O scheduler
+ * 
+ * @param   fds        The source's and the destination's file descriptors
+ * @param   size       The size of the source
+ * @param   scheduler  The scheduler
+ * @return             Zero on success, -1 on error, -2 if an exception has been thrown
+ */
+static int kernel_copy(int fds[2], off_t size, struct scheduler* scheduler)
+{
+  off_t offset = 0;
+  ssize_t n, length;
+  
+#ifdef __NR_copy_file_range
+  while (offset < size)
+    {
+      if ((length = admit(scheduler, size - offset)) < 0)
+	return -2;
+      n = copy_file_range(fds[0], NULL, fds[1], NULL, (size_t)length, 0);
+      release(scheduler);
+      if (n > 0)
+	offset += n;
+      else if (n == 0)
+	return errno = EIO, -1;
+      else if (errno == EINTR)
+	continue;
+      else if (offset == 0 && (errno == ENOSYS || errno == EXDEV || errno == EINVAL || errno == EOPNOTSUPP))
+	break;
+      else
+	return -1;
+    }
+  if (offset > 0)
+    return 0;
+#endif
+  
+  while (offset < size)
+    {
+      if ((length = admit(scheduler, size - offset)) < 0)
+	return -2;
+      n = sendfile(fds[1], fds[0], &offset, (size_t)length);
+      release(scheduler);
+      if (n == 0)
+	return errno = EIO, -1;
+      if ((n < 0) && (errno != EINTR))
+	return -1;
+    }
+  return 0;
+}
+
+
+JNIEXPORT jboolean JNICALL Java_wom_NativeTransfer_cloneFile(JNIEnv* env, jclass class, jbyteArray jsource, jbyteArray jdestination)
+{
+  char* source = get_path(env, jsource);
+  char* destination = source == NULL ? NULL : get_path(env, jdestination);
+  jboolean rc = JNI_FALSE;
+  off_t size;
+  int fds[2];
+  (void) class;
+  
+  if ((destination != NULL) && (open_pair(env, source, destination, fds, &size) == 0))
+    {
+      if (ioctl(fds[1], FICLONE, fds[0]) == 0)
+	rc = JNI_TRUE;
+      else if (errno != EOPNOTSUPP && errno != ENOTTY && errno != EXDEV && errno != EINVAL && errno != ENOSYS)
+	throw_errno(env, destination);
+      close_pair(fds, destination, rc == JNI_TRUE);
+    }
+  
+  free(source);
+  free(destination);
+  return rc;
+}
+
+
+JNIEXPORT void JNICALL Java_wom_NativeTransfer_copyFile(JNIEnv* env, jclass class, jbyteArray jsource, jbyteArray jdestination, jlong chunk)
+{
+  char* source = get_path(env, jsource);
+  char* destination = source == NULL ? NULL : get_path(env, jdestination);
+  struct scheduler scheduler;
+  off_t size;
+  int fds[2];
+  int rc;
+  (void) class;
+  
+  if ((destination != NULL) && (find_scheduler(env, chunk, &scheduler) == 0)
+      && (open_pair(env, source, destination, fds, &size) == 0))
+    {
+      if ((rc = kernel_copy(fds, size, &scheduler)) == -1)
+	throw_errno(env, destination);
+      close_pair(fds, destination, rc == 0);
+    }
+  
+  free(source);
+  free(destination);
+}
+
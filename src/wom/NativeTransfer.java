@@ -0,0 +1,196 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+
+/**
+ * Bindings for the native transfer library, {@code libwall-of-memories},
+ * which can clone files on copy-on-write filesystems and let the kernel
+ * copy files with {@code copy_file_range} or {@code sendfile}.<br/>
+ * The library is looked up in the library path and next to the program's
+ * JAR file, if it is not found {@link #isAvailable()} returns {@code false}
+ * and callers shall use a pure Java transfer method instead.
+ */
+public class NativeTransfer
+{
+    /**
+     * Non-instansiable class
+     */
+    private NativeTransfer()
+    {
+	/* do nothing */
+    }
+    
+    
+    
+    /**
+     * The name of the library
+     */
+    private static final String LIBRARY = "wall-of-memories";
+    
+    /**
+     * The encoding of file names on the platform
+     */
+    private static final Charset FILE_NAME_ENCODING = getFileNameEncoding();
+    
+    /**
+     * Whether the library is loaded
+     */
+    private static final boolean available;
+    
+    
+    
+    /**
+     * Load the library
+     */
+    static
+    {
+	boolean loaded = false;
+	try
+	{   System.loadLibrary(LIBRARY);
+	    loaded = true;
+	}
+	catch (final Throwable err)
+	{   try
+	    {   final File jar = new File(NativeTransfer.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		final File library = new File(jar.getParentFile(), System.mapLibraryName(LIBRARY));
+		if (library.exists())
+		{   System.load(library.getAbsolutePath());
+		    loaded = true;
+	    }	}
+	    catch (final Throwable ignore)
+	    {   /* not available, use the Java fallbacks */
+	}   }
+	available = loaded;
+    }
+    
+    
+    
+    /**
+     * Gets whether the native library is available
+     * 
+     * @return  Whether the native library is available
+     */
+    public static boolean isAvailable()
+    {
+	return available;
+    }
+    
+    
+    /**
+     * Gets the encoding the JVM uses for file names
+     * 
+     * @return  The encoding of file names
+     */
+    private static Charset getFileNameEncoding()
+    {
+	try
+	{   return Charset.forName(System.getProperty("sun.jnu.encoding"));
+	}
+	catch (final RuntimeException err)
+	{   return Charset.defaultCharset();
+	}
+    }
+    
+    
+    /**
+     * Encodes a path for the native library, as the file system sees it; JNI strings
+     * are modified UTF-8, which differs from UTF-8 for characters outside the BMP
+     * 
+     * @param   path  The path
+     * @return        The path in the platform's file name encoding, without terminator
+     */
+    private static byte[] pathname(final Path path)
+    {
+	return path.toString().getBytes(FILE_NAME_ENCODING);
+    }
+    
+    
+    /**
+     * Clones a file, sharing its data blocks with the original until either is modified
+     * 
+     * @param   source       The file to clone
+     * @param   destination  The output file, must not exist
+     * @return               {@code false} if the filesystems do not support cloning between
+     *                       the files, in which case no output file is left behind
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public static boolean clone(final Path source, final Path destination) throws IOException
+    {
+	if (available == false)
+	    return false;
+	IoScheduler.begin(0);
+	try
+	{   return cloneFile(pathname(source), pathname(destination));
+	}
+	finally
+	{   IoScheduler.end();
+	}
+    }
+    
+    
+    /**
+     * Copies a file inside the kernel, with {@code copy_file_range} which lets the
+     * filesystem make a server side copy or share blocks, or with {@code sendfile},
+     * each {@link IoScheduler#CHUNK_SIZE} bytes are admitted in the {@link IoScheduler}
+     * as a separate operation
+     * 
+     * @param  source       The file to copy
+     * @param  destination  The output file, must not exist
+     * 
+     * @throws  IOException                    On file I/O error, no output file is left behind
+     * @throws  UnsupportedOperationException  If the native library is not available
+     */
+    public static void copy(final Path source, final Path destination) throws IOException
+    {
+	if (available == false)
+	    throw new UnsupportedOperationException("native transfer library not available");
+	copyFile(pathname(source), pathname(destination), IoScheduler.CHUNK_SIZE);
+    }
+    
+    
+    /**
+     * Clones a file with the {@code FICLONE} {@code ioctl}
+     * 
+     * @param   source       The file to clone
+     * @param   destination  The output file, must not exist
+     * @return               {@code false} if cloning is not supported
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private static native boolean cloneFile(final byte[] source, final byte[] destination) throws IOException;
+    
+    /**
+     * Copies a file with {@code copy_file_range}, or {@code sendfile}
+     * if {@code copy_file_range} is not supported, admitting each chunk in the {@link IoScheduler}
+     * 
+     * @param  source       The file to copy
+     * @param  destination  The output file, must not exist
+     * @param  chunk        The largest number of bytes to transfer per admission
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private static native void copyFile(final byte[] source, final byte[] destination, final long chunk) throws IOException;
+    
+}
@@ -0,0 +1,409 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+
+/**
+ * Content-addressed picture storage, where each distinct content is stored
+ * once, under {@code .store} in the picture directory, named by its SHA-256
+ * hash, and the original names are links to the stored content.<br/>
+ * Files are hashed while they are copied into the store, so they are only read
+ * once. The hashes of the stored contents are kept in a persistent index, so
+ * checking for a duplicate does not touch the disk. The index is appended to
+ * after the content has been stored, so it never lists missing content, and
+ * content missing from the index after a crash is found when stored again.
+ */
+public class PictureStore implements Closeable
+{
+    /**
+     * The name of the store directory in the picture directory
+     */
+    public static final String DIRECTORY = ".store";
+    
+    /**
+     * The magic number at the start of the index
+     */
+    private static final int MAGIC = ('W' << 24) | ('O' << 16) | ('M' << 8) | 'I';
+    
+    /**
+     * The version of the index format
+     */
+    private static final int VERSION = 1;
+    
+    /**
+     * The size of the index header
+     */
+    private static final int HEADER_SIZE = 8;
+    
+    /**
+     * The size of a hash, and of an index record
+     */
+    private static final int HASH_SIZE = 32;
+    
+    
+    
+    /**
+     * The result of storing a file
+     */
+    public static final class Stored
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  hash   The SHA-256 hash of the content, in hexadecimal
+	 * @param  path   The stored content
+	 * @param  added  Whether the content was added, rather than already stored
+	 */
+	Stored(final String hash, final Path path, final boolean added)
+	{
+	    this.hash = hash;
+	    this.path = path;
+	    this.added = added;
+	}
+	
+	
+	
+	/**
+	 * The SHA-256 hash of the content, in hexadecimal
+	 */
+	private final String hash;
+	
+	/**
+	 * The stored content
+	 */
+	private final Path path;
+	
+	/**
+	 * Whether the content was added, rather than already stored
+	 */
+	private final boolean added;
+	
+	
+	
+	/**
+	 * Gets the SHA-256 hash of the content
+	 * 
+	 * @return  The SHA-256 hash of the content, in hexadecimal
+	 */
+	public String getHash()
+	{   return this.hash;
+	}
+	
+	/**
+	 * Gets the stored content
+	 * 
+	 * @return  The stored content
+	 */
+	public Path getPath()
+	{   return this.path;
+	}
+	
+	/**
+	 * Gets whether the content was added, rather than already stored
+	 * 
+	 * @return  Whether the content was added
+	 */
+	public boolean isAdded()
+	{   return this.added;
+	}
+    }
+    
+    
+    
+    /**
+     * Constructor, opens the store, and creates it if missing
+     * 
+     * @param  pictureDirectory  The picture directory
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public PictureStore(final String pictureDirectory) throws IOException
+    {
+	this.directory = Paths.get(pictureDirectory, DIRECTORY);
+	this.temporary = this.directory.resolve("tmp");
+	Files.createDirectories(this.temporary);
+	
+	final Path file = this.directory.resolve("index");
+	this.index = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	if (this.load() == false)
+	    this.rebuild();
+    }
+    
+    
+    
+    /**
+     * The store directory
+     */
+    private final Path directory;
+    
+    /**
+     * The directory where files are copied before they are hashed
+     */
+    private final Path temporary;
+    
+    /**
+     * The index file
+     */
+    private final FileChannel index;
+    
+    /**
+     * The hashes of the stored contents
+     */
+    private final HashSet<String> hashes = new HashSet<String>();
+    
+    
+    
+    /**
+     * Loads the index
+     * 
+     * @return  Whether the index was valid
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private boolean load() throws IOException
+    {
+	final long size = this.index.size();
+	if (size < HEADER_SIZE)
+	    return false;
+	
+	final ByteBuffer buffer = this.index.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION))
+	    return false;
+	final byte[] hash = new byte[HASH_SIZE];
+	while (buffer.remaining() >= HASH_SIZE)
+	{   buffer.get(hash);
+	    this.hashes.add(Importer.toHex(hash));
+	}
+	/* Drop a torn record */
+	this.index.truncate(size - buffer.remaining());
+	this.index.position(this.index.size());
+	return true;
+    }
+    
+    
+    /**
+     * Rebuilds the index from the stored contents
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private void rebuild() throws IOException
+    {
+	this.hashes.clear();
+	this.index.truncate(0);
+	final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	header.putInt(MAGIC).putInt(VERSION).flip();
+	this.index.write(header, 0);
+	this.index.position(HEADER_SIZE);
+	
+	try (final DirectoryStream<Path> fanouts = Files.newDirectoryStream(this.directory))
+	{   for (final Path fanout : fanouts)
+		if ((fanout.getFileName().toString().length() == 2) && Files.isDirectory(fanout))
+		    try (final DirectoryStream<Path> objects = Files.newDirectoryStream(fanout))
+		    {   for (final Path object : objects)
+			{   final String hash = fanout.getFileName().toString() + object.getFileName().toString();
+			    if (hash.length() == 2 * HASH_SIZE)
+				this.append(hash);
+	}   }   }
+	this.index.force(false);
+    }
+    
+    
+    /**
+     * Adds a hash to the index
+     * 
+     * @param  hash  The hash, in hexadecimal
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private void append(final String hash) throws IOException
+    {
+	final ByteBuffer record = ByteBuffer.allocate(HASH_SIZE);
+	for (int i = 0; i < HASH_SIZE; i++)
+	    record.put((byte)(Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16)));
+	record.flip();
+	IoScheduler.begin(HASH_SIZE);
+	try
+	{   while (record.hasRemaining())
+		this.index.write(record);
+	}
+	finally
+	{   IoScheduler.end();
+	}
+	this.hashes.add(hash);
+    }
+    
+    
+    /**
+     * Gets whether a content is stored
+     * 
+     * @param   hash  The SHA-256 hash of the content, in hexadecimal
+     * @return        Whether the content is stored
+     */
+    public synchronized boolean contains(final String hash)
+    {
+	return this.hashes.contains(hash);
+    }
+    
+    
+    /**
+     * Gets the path of a content in the store
+     * 
+     * @param   hash  The SHA-256 hash of the content, in hexadecimal
+     * @return        The path of the content, it may not exist
+     */
+    public Path getPath(final String hash)
+    {
+	return this.directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+    
+    
+    /**
+     * Checks whether a stored content has been given a name, it has not if the
+     * import that stored it was interrupted before it was given one
+     * 
+     * @param   hash  The SHA-256 hash of the content, in hexadecimal
+     * @return        Whether the content has a name, {@code true} if it cannot be told,
+     *                as names are symbolic links when hard links are not supported
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public boolean isNamed(final String hash) throws IOException
+    {
+	try
+	{   return ((Integer)(Files.getAttribute(this.getPath(hash), "unix:nlink"))).intValue() > 1;
+	}
+	catch (final UnsupportedOperationException | IllegalArgumentException err)
+	{   return true;
+	}
+    }
+    
+    
+    /**
+     * Stores the content of a file, hashing it while it is copied
+     * 
+     * @param   source  The file
+     * @return          The result
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public Stored store(final Path source) throws IOException
+    {
+	final MessageDigest digest;
+	try
+	{   digest = MessageDigest.getInstance("SHA-256");
+	}
+	catch (final NoSuchAlgorithmException err)
+	{   throw new Error(err);
+	}
+	
+	/* Not createTempFile, it would make the picture private */
+	final Path partial = this.temporary.resolve(UUID.randomUUID() + ".part");
+	try
+	{   try (final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		 final FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))
+	    {   final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+		for (;;)
+		{   IoScheduler.begin(buffer.capacity());
+		    try
+		    {   if (in.read(buffer) < 0)
+			    break;
+			buffer.flip();
+			digest.update(buffer.duplicate());
+			while (buffer.hasRemaining())
+			    out.write(buffer);
+			buffer.clear();
+		    }
+		    finally
+		    {   IoScheduler.end();
+	    }   }   }
+	    
+	    final String hash = Importer.toHex(digest.digest());
+	    final Path path = this.getPath(hash);
+	    boolean added = false;
+	    synchronized (this)
+	    {   if (this.hashes.contains(hash) == false)
+		{   Files.createDirectories(path.getParent());
+		    /* Published exclusively, a rename would replace content stored before a crash
+		     * that lost the index record, and orphan the names of the stored content */
+		    try
+		    {   Files.createLink(path, partial);
+			/* Before the hash is visible, so that the link count only counts names */
+			Files.delete(partial);
+			added = true;
+		    }
+		    catch (final FileAlreadyExistsException err)
+		    {   /* Stored before a crash that lost the index record */
+		    }
+		    catch (final UnsupportedOperationException | FileSystemException err)
+		    {   if (Files.exists(path, LinkOption.NOFOLLOW_LINKS) == false)
+			{   Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+			    added = true;
+		    }   }
+		    this.append(hash);
+	    }   }
+	    return new Stored(hash, path, added);
+	}
+	finally
+	{   Files.deleteIfExists(partial);
+	}
+    }
+    
+    
+    /**
+     * Creates a name for a stored content, as a hard link if possible, otherwise as a symbolic link
+     * 
+     * @param  hash  The SHA-256 hash of the content, in hexadecimal
+     * @param  name  The name
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public void link(final String hash, final Path name) throws IOException
+    {
+	final Path path = this.getPath(hash);
+	try
+	{   Files.createLink(name, path);
+	}
+	catch (final UnsupportedOperationException | FileSystemException err)
+	{   if (err instanceof FileAlreadyExistsException)
+		throw (FileAlreadyExistsException)err;
+	    Files.createSymbolicLink(name, name.toAbsolutePath().getParent().relativize(path.toAbsolutePath()));
+	}
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+	if (this.index.isOpen())
+	{   this.index.force(false);
+	    this.index.close();
+	}
+    }
+    
+}
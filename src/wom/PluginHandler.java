@@ -69,6 +69,17 @@ public class PluginHandler
      */
     private static HashMap<String, Long> pluginMDates = new HashMap<String, Long>();
     
+    /**
+     * The candidate plugin list files, in order of precedence
+     */
+    private static String[] pluginCandidates;
+    
+    /**
+     * The plug-in list from the settings snapshot, used instead of reading
+     * the plugin list file at the first start, {@code null} otherwise
+     */
+    private static String[] snapshotListing = null;
+    
     
     
     /**
@@ -95,30 +106,41 @@ public class PluginHandler
 	if (HOME             != null)  filenames.add("~/.%2.plugins"              .replace("~",                HOME));
 	filenames.add("/etc/%2.plugins");
 	
-	boolean have = false;
-	File file_;
-	for (String filename : filenames)
-	    if ((file_ = new File(filename)).exists() && (file_.isDirectory() == false))
-	    {	have = true;
-		break;
-	    }
-	try
-	{   if (have == false)
-	    {   if ((file_ = new File("/etc/skel/.config/wall-of-memories/plugins")).exists() && (file_.isDirectory() == false))
-		    FileUtil.copy("/etc/skel/.config/wall-of-memories/plugins", HOME + "/.config/wall-of-memories/plugins");
-		else if ((file_ = new File("/etc/skel/.wom.plugins")).exists() && (file_.isDirectory() == false))
-		    FileUtil.copy("/etc/skel/.wom.plugins", HOME + "/.wom.plugins");
-	}   }
-	catch (final Throwable err)
-	{   err.printStackTrace(System.err);
-	}
+	pluginCandidates = new String[filenames.size()];
+	for (int i = 0; i < pluginCandidates.length; i++)
+	    pluginCandidates[i] = filenames.get(i).replace("%1", "wall-of-memories").replace("%2", "wom");
 	
-	for (String filename : filenames)
-	{   final File file = new File(filename = filename.replace("%1", "wall-of-memories").replace("%2", "wom"));
-	    if (file.exists() && (file.isDirectory() == false))
-	    {   pluginFile = filename;
-		break;
-	}   }
+	final SettingsSnapshot.Section snapshot = SettingsSnapshot.read("plugins", pluginCandidates, "");
+	if (snapshot != null)
+	{   pluginFile = snapshot.getActive().getPath();
+	    snapshotListing = snapshot.getPayload();
+	}
+	else
+	{
+	    boolean have = false;
+	    File file_;
+	    for (final String filename : pluginCandidates)
+		if ((file_ = new File(filename)).exists() && (file_.isDirectory() == false))
+		{   have = true;
+		    break;
+		}
+	    try
+	    {   if (have == false)
+		{   if ((file_ = new File("/etc/skel/.config/wall-of-memories/plugins")).exists() && (file_.isDirectory() == false))
+			FileUtil.copy("/etc/skel/.config/wall-of-memories/plugins", HOME + "/.config/wall-of-memories/plugins");
+		    else if ((file_ = new File("/etc/skel/.wom.plugins")).exists() && (file_.isDirectory() == false))
+			FileUtil.copy("/etc/skel/.wom.plugins", HOME + "/.wom.plugins");
+	    }   }
+	    catch (final Throwable err)
+	    {   err.printStackTrace(System.err);
+	    }
+	    
+	    for (final String filename : pluginCandidates)
+	    {   final File file = new File(filename);
+		if (file.exists() && (file.isDirectory() == false))
+		{   pluginFile = filename;
+		    break;
+	}   }   }
     }
     
     
@@ -237,6 +259,33 @@ public class PluginHandler
     }
     
     
+    /**
+     * Reads the plugin list file and updates the settings snapshot
+     * 
+     * @return  The listed plug-in files
+     * 
+     * @throws  IOException  On file reading error
+     */
+    private static String[] readListing() throws IOException
+    {
+	final File file = new File(pluginFile);
+	final long modified = file.lastModified();
+	final long length = file.length();
+	
+	final Vector<String> lines = new Vector<String>();
+	try (final TextReader reader = new TextReader(pluginFile))
+	{   for (String text; (text = reader.readLine()) != null;)
+		for (final String line : text.replace('\t', ' ').split("\f"))
+		    if ((line.length() != 0) && (line.replace(" ", "").startsWith("#") == false) && (line.replace(" ", "").startsWith(";") == false))
+			lines.add(line);
+	}
+	
+	final String[] listing = lines.toArray(new String[lines.size()]);
+	SettingsSnapshot.write("plugins", pluginCandidates, "", file, modified, length, listing);
+	return listing;
+    }
+    
+    
     /**
      * Stops all unlisted plugins, starts all newly listed plugins and restarts all updated plugins
      */
@@ -248,10 +297,16 @@ public class PluginHandler
 		final Vector<String> newFiles = new Vector<String>();
 		final HashSet<String> gotHash = new HashSet<String>();
 		
-		for (final String line : FileUtil.readFile(pluginFile).replace('\f', '\n').replace('\t', ' ').split("\n"))
-		{   if ((line.length() == 0) || line.replace(" ", "").startsWith("#") || line.replace(" ", "").startsWith(";"))
-			continue;
-		    if (pluginHash.contains(line) == false)
+		final String[] listing;
+		if (snapshotListing != null)
+		{   listing = snapshotListing;
+		    snapshotListing = null;
+		}
+		else
+		    listing = readListing();
+		
+		for (final String line : listing)
+		{   if (pluginHash.contains(line) == false)
 			newFiles.add(line);
 		    gotHash.add(line);
 		}
@@ -33,6 +33,7 @@ public class Program
      */
     public static void main(final String... args)
     {
+	Settings.watch();
 	PluginHandler.restartPlugins();
 	
 	final ManeFrame frame = new ManeFrame();
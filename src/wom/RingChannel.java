@@ -0,0 +1,408 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * High-rate message channel of a {@link Blackboard}, backed by a preallocated ring
+ * of reusable messages. A producer claims a sequence number, fills in the message
+ * in the slot for that sequence, and publishes the sequence; each consumer follows
+ * the ring in a thread of its own. Neither side allocates or locks per message.<br/>
+ * Messages in the ring are reused, consumers must not keep references to them
+ * after {@link Blackboard.BlackboardObserver#messageBroadcasted(Blackboard.BlackboardMessage)}
+ * returns. Producers wait while the slowest consumer is a full ring behind.
+ * Consumers that have been idle for a while block until the next publication.
+ * 
+ * @param  <T>  The message type of the channel
+ */
+public class RingChannel<T extends Blackboard.BlackboardMessage>
+{
+    /**
+     * Creates the reusable messages of a ring
+     * 
+     * @param  <T>  The message type of the channel
+     */
+    public static interface SlotFactory<T extends Blackboard.BlackboardMessage>
+    {
+	/**
+	 * Creates a message to be reused in a slot of the ring
+	 * 
+	 * @return  The new message
+	 */
+	public T createSlot();
+    }
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  size     The number of slots, must be a power of two
+     * @param  factory  Creates the reusable messages
+     */
+    RingChannel(final int size, final SlotFactory<T> factory)
+    {
+	if ((size <= 0) || ((size & (size - 1)) != 0))
+	    throw new IllegalArgumentException("Ring size must be a power of two");
+	
+	this.mask = size - 1;
+	this.shift = Integer.numberOfTrailingZeros(size);
+	this.slots = new Blackboard.BlackboardMessage[size];
+	this.published = new AtomicIntegerArray(size);
+	for (int i = 0; i < size; i++)
+	{
+	    this.slots[i] = factory.createSlot();
+	    this.published.set(i, -1);
+	}
+    }
+    
+    
+    
+    /**
+     * The messages in the ring
+     */
+    private final Blackboard.BlackboardMessage[] slots;
+    
+    /**
+     * The lap of the last published sequence for each slot
+     */
+    private final AtomicIntegerArray published;
+    
+    /**
+     * Mask for getting the slot of a sequence
+     */
+    private final int mask;
+    
+    /**
+     * Shift for getting the lap of a sequence
+     */
+    private final int shift;
+    
+    /**
+     * The last claimed sequence
+     */
+    private final AtomicLong claimed = new AtomicLong(-1);
+    
+    /**
+     * The number of consumers that are blocked or about to block
+     */
+    private final AtomicInteger blocked = new AtomicInteger();
+    
+    /**
+     * Cached lowest sequence processed by all consumers, may be stale but never too high
+     */
+    private volatile long gatingCache = -1;
+    
+    /**
+     * The consumers of the channel
+     */
+    private volatile Consumer[] consumers = new Consumer[0];
+    
+    
+    
+    /**
+     * Gets the number of slots in the ring
+     * 
+     * @return  The number of slots in the ring
+     */
+    public int getSize()
+    {
+	return this.slots.length;
+    }
+    
+    
+    /**
+     * Claims the next sequence, waiting while the ring is full
+     * 
+     * @return  The claimed sequence, fill in {@link #get(long)} and then call {@link #publish(long)}
+     */
+    public long claim()
+    {
+	final long sequence = this.claimed.incrementAndGet();
+	final long wrap = sequence - this.slots.length;
+	if (wrap > this.gatingCache)
+	    for (int idle = 0;;)
+	    {
+		final long gating = this.getGatingSequence(sequence - 1);
+		this.gatingCache = gating;
+		if (wrap <= gating)
+		    break;
+		idle = idle(idle);
+	    }
+	return sequence;
+    }
+    
+    
+    /**
+     * Claims the next sequence, unless the ring is full
+     * 
+     * @return  The claimed sequence, -1 if the ring is full
+     */
+    public long tryClaim()
+    {
+	for (;;)
+	{
+	    final long current = this.claimed.get();
+	    final long sequence = current + 1;
+	    if (sequence - this.slots.length > this.gatingCache)
+	    {
+		final long gating = this.getGatingSequence(current);
+		this.gatingCache = gating;
+		if (sequence - this.slots.length > gating)
+		    return -1;
+	    }
+	    if (this.claimed.compareAndSet(current, sequence))
+		return sequence;
+	}
+    }
+    
+    
+    /**
+     * Gets the message in the slot of a sequence
+     * 
+     * @param   sequence  The sequence
+     * @return            The message in the slot
+     */
+    @SuppressWarnings("unchecked")
+    public T get(final long sequence)
+    {
+	return (T)(this.slots[(int)sequence & this.mask]);
+    }
+    
+    
+    /**
+     * Publishes a claimed sequence, making it available to consumers
+     * 
+     * @param  sequence  The sequence
+     */
+    public void publish(final long sequence)
+    {
+	this.published.set((int)sequence & this.mask, (int)(sequence >>> this.shift));
+	if (this.blocked.get() > 0)
+	    for (final Consumer consumer : this.consumers)
+		if (consumer.blocking)
+		    LockSupport.unpark(consumer.thread);
+    }
+    
+    
+    /**
+     * Gets whether a sequence has been published
+     * 
+     * @param   sequence  The sequence
+     * @return            Whether the sequence has been published
+     */
+    private boolean isPublished(final long sequence)
+    {
+	return this.published.get((int)sequence & this.mask) == (int)(sequence >>> this.shift);
+    }
+    
+    
+    /**
+     * Gets the lowest sequence processed by all consumers
+     * 
+     * @param   fallback  The value to return if there are no consumers
+     * @return            The lowest processed sequence
+     */
+    private long getGatingSequence(final long fallback)
+    {
+	long gating = fallback;
+	for (final Consumer consumer : this.consumers)
+	    gating = Math.min(gating, consumer.sequence.get());
+	return gating;
+    }
+    
+    
+    /**
+     * The number of waits after which the wait is long enough for a consumer to block
+     */
+    private static final int BLOCK = 300;
+    
+    
+    /**
+     * Waits a little, first by spinning, then yielding, then sleeping
+     * 
+     * @param   idle  The number of times the caller has waited in a row
+     * @return        The number of times the caller has waited in a row, including this time, at most {@link #BLOCK}
+     */
+    private static int idle(final int idle)
+    {
+	if (idle < 100)
+	    Thread.onSpinWait();
+	else if (idle < 200)
+	    Thread.yield();
+	else
+	    LockSupport.parkNanos(50_000L);
+	return idle < BLOCK ? idle + 1 : BLOCK;
+    }
+    
+    
+    /**
+     * Adds a consumer to the channel, it will receive messages published after this call
+     * 
+     * @param  observer  The observer that consumes messages
+     * @param  policy    Creates the consumer's thread, {@code null} for {@link Blackboard#DAEMON_THREADING}
+     */
+    public void subscribe(final Blackboard.BlackboardObserver observer, final Blackboard.ThreadingPolicy policy)
+    {
+	final Consumer consumer;
+	synchronized (this)
+	{
+	    for (final Consumer existing : this.consumers)
+		if (existing.observer == observer)
+		    return;
+	    consumer = new Consumer(this, observer, this.claimed.get());
+	    final Consumer[] consumers = new Consumer[this.consumers.length + 1];
+	    System.arraycopy(this.consumers, 0, consumers, 0, this.consumers.length);
+	    consumers[this.consumers.length] = consumer;
+	    this.consumers = consumers;
+	}
+	(policy == null ? Blackboard.DAEMON_THREADING : policy).createThread(consumer).start();
+    }
+    
+    
+    /**
+     * Removes a consumer from the channel
+     * 
+     * @param  observer  The observer that consumes messages
+     */
+    public void unsubscribe(final Blackboard.BlackboardObserver observer)
+    {
+	synchronized (this)
+	{
+	    final Consumer[] consumers = this.consumers;
+	    for (int i = 0, n = consumers.length; i < n; i++)
+		if (consumers[i].observer == observer)
+		{
+		    consumers[i].running = false;
+		    LockSupport.unpark(consumers[i].thread);
+		    final Consumer[] rc = new Consumer[n - 1];
+		    System.arraycopy(consumers, 0, rc, 0, i);
+		    System.arraycopy(consumers, i + 1, rc, i, n - i - 1);
+		    this.consumers = rc;
+		    return;
+		}
+	}
+    }
+    
+    
+    
+    /**
+     * Consumer of the channel
+     */
+    private static final class Consumer implements Runnable
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  channel   The channel
+	 * @param  observer  The observer that consumes messages
+	 * @param  sequence  The last sequence before the first the consumer should process
+	 */
+	Consumer(final RingChannel<?> channel, final Blackboard.BlackboardObserver observer, final long sequence)
+	{
+	    this.channel = channel;
+	    this.observer = observer;
+	    this.sequence.set(sequence);
+	}
+	
+	
+	
+	/**
+	 * The channel
+	 */
+	private final RingChannel<?> channel;
+	
+	/**
+	 * The observer that consumes messages
+	 */
+	final Blackboard.BlackboardObserver observer;
+	
+	/**
+	 * The last processed sequence
+	 */
+	final AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * Whether the consumer is subscribed
+	 */
+	volatile boolean running = true;
+	
+	/**
+	 * The consumer's thread, {@code null} until it has started
+	 */
+	volatile Thread thread = null;
+	
+	/**
+	 * Whether the consumer is blocked or about to block
+	 */
+	volatile boolean blocking = false;
+	
+	
+	
+	/**
+	 * Follows the ring until unsubscribed
+	 */
+	@Override
+	public void run()
+	{
+	    this.thread = Thread.currentThread();
+	    long next = this.sequence.get() + 1;
+	    int idle = 0;
+	    while (this.running)
+	    {
+		if (this.channel.isPublished(next) == false)
+		{
+		    if (idle < BLOCK)
+			idle = idle(idle);
+		    else
+		    {
+			/* Announce the block before checking again, so that a producer
+			 * either sees the announcement or is seen by the check. */
+			this.blocking = true;
+			this.channel.blocked.incrementAndGet();
+			if (this.running && (this.channel.isPublished(next) == false))
+			    LockSupport.park(this);
+			this.channel.blocked.decrementAndGet();
+			this.blocking = false;
+		    }
+		    continue;
+		}
+		idle = 0;
+		
+		long last = next;
+		while (this.channel.isPublished(last + 1) && (last + 1 - next < this.channel.slots.length))
+		    last++;
+		
+		for (; next <= last; next++)
+		    try
+		    {   this.observer.messageBroadcasted(this.channel.get(next));
+		    }
+		    catch (final Throwable err)
+		    {   err.printStackTrace(System.err);
+		    }
+		
+		this.sequence.lazySet(last);
+	    }
+	}
+    }
+    
+}
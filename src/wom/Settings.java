@@ -19,7 +19,9 @@
 package wom;
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -47,6 +49,13 @@ public class Settings
      */
     public static final String PICTURE_GROUP = "picture.grp";
     
+    /**
+     * The key for how pictures are stored in the picture directory, {@code files}
+     * for one file per imported picture, {@code content} for deduplicated storage
+     * of the picture contents with the pictures as links to them
+     */
+    public static final String PICTURE_STORAGE = "pictures.storage";
+    
     
     
     /**
@@ -54,6 +63,51 @@ public class Settings
      */
     public static final HashMap<String, String> configurations = new HashMap<String, String>();
     
+    /**
+     * The type, {@link Integer} or {@link Double}, of numerical configurations with default values
+     */
+    private static final HashMap<String, Class<?>> types = new HashMap<String, Class<?>>();
+    
+    /**
+     * The built in values of configurations
+     */
+    private static final HashMap<String, String> defaults = new HashMap<String, String>();
+    
+    /**
+     * The lowest valid values of integer value configurations that have one
+     */
+    private static final HashMap<String, Integer> minimums = new HashMap<String, Integer>();
+    
+    /**
+     * Handles for integer value configurations
+     */
+    private static final HashMap<String, IntSetting> intSettings = new HashMap<String, IntSetting>();
+    
+    /**
+     * Handles for double precision float value configurations
+     */
+    private static final HashMap<String, DoubleSetting> doubleSettings = new HashMap<String, DoubleSetting>();
+    
+    /**
+     * Candidate configuration files, in order of precedence
+     */
+    private static final String[] files = new String[6];
+    
+    /**
+     * The user's home directory, used for {@code ~} expansion
+     */
+    private static String home;
+    
+    /**
+     * The configuration file in use, {@code null} if none
+     */
+    private static volatile File active = null;
+    
+    /**
+     * The thread watching the configuration files, {@code null} if not started
+     */
+    private static Thread watcher = null;
+    
     
     
     /**
@@ -61,7 +115,6 @@ public class Settings
      */
     static
     {
-	final String[] files = new String[6];
 	final String $XDG_CONFIG_HOME = System.getenv("XDG_CONFIG_HOME");
 	final String $HOME = System.getenv("HOME");
 	String HOME = System.getProperty("user.home");
@@ -81,129 +134,617 @@ public class Settings
 	    HOME = $HOME;
 	if ((HOME == null) && HOME.length() == 0)
 	    HOME = "/root";
+	home = HOME;
+	
+	putDefault(PICTURE_DIRECTORY, HOME + "/Pictures/wall-of-memories", null);
+	putDefault(THUMBNAIL_DIRECTORY, SettingsSnapshot.CACHE_DIRECTORY + "/thumbnails", null);
+	putDefault(TRANSFER_METHOD, FileUtil.TransferMethod.AUTO.getName(), null);
+	putDefault(PICTURE_GROUP, "", null);
+	putDefault(PICTURE_STORAGE, "files", null);
+	putDefault("ui.activity.hue.normal.idle", "85", Integer.class);
+	putDefault("ui.activity.hue.normal.hover", "135", Integer.class);
+	putDefault("ui.activity.hue.selected.idle", "285", Integer.class);
+	putDefault("ui.activity.hue.selected.hover", "235", Integer.class);
+	putDefault("ui.activity.cache.levels", "1024", 1);
+	putDefault("ui.activity.lum.m", "0.75", Double.class);
+	putDefault("ui.activity.lum.k", "-0.20", Double.class);
+	putDefault("ui.activity.sat.m", "0.025", Double.class);
+	putDefault("ui.activity.sat.k", "0.475", Double.class);
+	
+	final SettingsSnapshot.Section snapshot = SettingsSnapshot.read("womrc", files, home);
+	if (snapshot != null)
+	{   final HashMap<String, String> parsed = new HashMap<String, String>();
+	    final String[] payload = snapshot.getPayload();
+	    for (int i = 0; i < payload.length; i += 2)
+		parsed.put(payload[i], payload[i + 1]);
+	    active = snapshot.getActive();
+	    configurations.putAll(resolve(parsed));
+	}
+	else
+	{
+	    boolean have = false;
+	    File file_;
+	    for (final String file : files)
+		if ((file != null) && (file_ = new File(file)).exists() && (file_.isDirectory() == false))
+		{   have = true;
+		    break;
+		}
+	    try
+	    {   if (have == false)
+		{   if ((file_ = new File("/etc/skel/.config/wall-of-memories/womrc")).exists() && (file_.isDirectory() == false))
+			FileUtil.copy("/etc/skel/.config/wall-of-memories/womrc", HOME + "/.config/wall-of-memories/womrc");
+		    else if ((file_ = new File("/etc/skel/.womrc")).exists() && (file_.isDirectory() == false))
+			    FileUtil.copy("/etc/skel/.womrc", HOME + "/.womrc");
+	    }   }
+	    catch (final Throwable err)
+	    {   err.printStackTrace(System.err);
+	    }
+	    
+	    configurations.putAll(load());
+	}
+    }
+    
+    
+    
+    /**
+     * Handle for an integer value configuration, the value is parsed once
+     * and reading it is a single volatile load
+     */
+    public static final class IntSetting
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  key    The key
+	 * @param  value  The value
+	 */
+	private IntSetting(final String key, final int value)
+	{
+	    this.key = key;
+	    this.value = value;
+	}
+	
+	
+	
+	/**
+	 * The key
+	 */
+	private final String key;
+	
+	/**
+	 * The value
+	 */
+	volatile int value;
+	
+	
+	
+	/**
+	 * Gets the key
+	 * 
+	 * @return  The key
+	 */
+	public String getKey()
+	{
+	    return this.key;
+	}
+	
+	/**
+	 * Gets the value
+	 * 
+	 * @return  The value
+	 */
+	public int get()
+	{
+	    return this.value;
+	}
+    }
+    
+    
+    /**
+     * Handle for a double precision float value configuration, the value
+     * is parsed once and reading it is a single volatile load
+     */
+    public static final class DoubleSetting
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  key    The key
+	 * @param  value  The value
+	 */
+	private DoubleSetting(final String key, final double value)
+	{
+	    this.key = key;
+	    this.value = value;
+	}
+	
+	
+	
+	/**
+	 * The key
+	 */
+	private final String key;
+	
+	/**
+	 * The value
+	 */
+	volatile double value;
+	
+	
 	
-	configurations.put(PICTURE_DIRECTORY, HOME + "/Pictures/wall-of-memories");
-	configurations.put(THUMBNAIL_DIRECTORY, HOME + "/.cache/wall-of-memories/thumbnails");
-	configurations.put(TRANSFER_METHOD, "copy");
-	configurations.put(PICTURE_GROUP, "");
-	configurations.put("ui.activity.hue.normal.idle", "85");
-	configurations.put("ui.activity.hue.normal.hover", "135");
-	configurations.put("ui.activity.hue.selected.idle", "285");
-	configurations.put("ui.activity.hue.selected.hover", "235");
-	configurations.put("ui.activity.cache.levels", "1024");
-	configurations.put("ui.activity.lum.m", "0.75");
-	configurations.put("ui.activity.lum.k", "-0.20");
-	configurations.put("ui.activity.sat.m", "0.025");
-	configurations.put("ui.activity.sat.k", "0.475");
-	
-	boolean have = false;
+	/**
+	 * Gets the key
+	 * 
+	 * @return  The key
+	 */
+	public String getKey()
+	{
+	    return this.key;
+	}
+	
+	/**
+	 * Gets the value
+	 * 
+	 * @return  The value
+	 */
+	public double get()
+	{
+	    return this.value;
+	}
+    }
+    
+    
+    
+    /**
+     * Message broadcasted on the default blackboard when configurations change
+     * after the configuration file has been reloaded
+     */
+    public static class SettingsChangedMessage implements Blackboard.BlackboardMessage
+    {
+	static
+	{
+	    BlackboardRecorder.registerCodec(SettingsChangedMessage.class, new BlackboardRecorder.Codec<SettingsChangedMessage>()
+		    {   /**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void encode(final SettingsChangedMessage message, final DataOutput output) throws IOException
+			{
+			    output.writeInt(message.keys.size());
+			    for (final String key : message.keys)
+				output.writeUTF(key);
+			}
+			
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public SettingsChangedMessage decode(final DataInput input) throws IOException
+			{
+			    final int n = input.readInt();
+			    if (n < 0)
+				throw new StreamCorruptedException("Invalid number of keys");
+			    final Set<String> keys = new HashSet<>();
+			    for (int i = 0; i < n; i++)
+				keys.add(input.readUTF());
+			    return new SettingsChangedMessage(keys);
+			}
+		    });
+	}
+	
+	
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param  keys  The keys of the changed configurations
+	 */
+	public SettingsChangedMessage(final Set<String> keys)
+	{
+	    this.keys = Collections.unmodifiableSet(keys);
+	}
+	
+	
+	
+	/**
+	 * The keys of the changed configurations
+	 */
+	private final Set<String> keys;
+	
+	
+	
+	/**
+	 * Gets the keys of the changed configurations
+	 * 
+	 * @return  The keys of the changed configurations
+	 */
+	public Set<String> getKeys()
+	{   return this.keys;
+	}
+	
+	/**
+	 * Gets whether any configuration with a key starting with a prefix has changed
+	 * 
+	 * @param   prefix  The prefix of the keys, may be a complete key
+	 * @return          Whether any configuration with the prefix has changed
+	 */
+	public boolean affects(final String prefix)
+	{
+	    for (final String key : this.keys)
+		if (key.startsWith(prefix))
+		    return true;
+	    return false;
+	}
+    }
+    
+    
+    
+    /**
+     * Sets the built in value of a configuration
+     * 
+     * @param  key    The key
+     * @param  value  The built in value
+     * @param  type   {@link Integer} or {@link Double} for numerical configurations, otherwise {@code null}
+     */
+    private static void putDefault(final String key, final String value, final Class<?> type)
+    {
+	configurations.put(key, value);
+	defaults.put(key, value);
+	if (type != null)
+	    types.put(key, type);
+    }
+    
+    
+    /**
+     * Sets the built in value of an integer value configuration that has a lowest valid value
+     * 
+     * @param  key      The key
+     * @param  value    The built in value
+     * @param  minimum  The lowest valid value
+     */
+    private static void putDefault(final String key, final String value, final int minimum)
+    {
+	putDefault(key, value, Integer.class);
+	minimums.put(key, Integer.valueOf(minimum));
+    }
+    
+    
+    /**
+     * Reads the configurations from the first existing configuration file
+     * on top of the built in values, and updates the settings snapshot
+     * 
+     * @return  The validated configuration table
+     */
+    private static HashMap<String, String> load()
+    {
+	final HashMap<String, String> parsed = new HashMap<String, String>();
+	long modified = 0, length = 0;
 	File file_;
+	active = null;
 	for (final String file : files)
 	    if ((file != null) && (file_ = new File(file)).exists() && (file_.isDirectory() == false))
-	    {	have = true;
+	    {   modified = file_.lastModified();
+		length = file_.length();
+		parse(active = file_, parsed);
 		break;
 	    }
+	
+	final String[] payload = new String[parsed.size() * 2];
+	int i = 0;
+	for (final Map.Entry<String, String> entry : parsed.entrySet())
+	{   payload[i++] = entry.getKey();
+	    payload[i++] = entry.getValue();
+	}
+	SettingsSnapshot.write("womrc", files, home, active, modified, length, payload);
+	
+	return resolve(parsed);
+    }
+    
+    
+    /**
+     * Puts configurations read from a configuration file on top of the built in values
+     * 
+     * @param   parsed  The configurations read from the configuration file
+     * @return          The validated configuration table
+     */
+    private static HashMap<String, String> resolve(final Map<String, String> parsed)
+    {
+	final HashMap<String, String> table = new HashMap<String, String>(defaults);
+	table.putAll(parsed);
+	validate(table);
+	return table;
+    }
+    
+    
+    /**
+     * Parses a configuration file
+     * 
+     * @param  file   The configuration file
+     * @param  table  The table to which the configurations shall be added
+     */
+    private static void parse(final File file, final Map<String, String> table)
+    {
+	InputStream is = null;
 	try
-	{   if (have == false)
-	    {   if ((file_ = new File("/etc/skel/.config/wall-of-memories/womrc")).exists() && (file_.isDirectory() == false))
-		    FileUtil.copy("/etc/skel/.config/wall-of-memories/womrc", HOME + "/.config/wall-of-memories/womrc");
-		else if ((file_ = new File("/etc/skel/.womrc")).exists() && (file_.isDirectory() == false))
-			FileUtil.copy("/etc/skel/.womrc", HOME + "/.womrc");
-	}   }
+	{   is = new FileInputStream(file);
+	    byte[] data = new byte[8192];
+	    int ptr = 0;
+	    IoScheduler.begin(file.length());
+	    try
+	    {   for (;;)
+		{   if (ptr == data.length)
+			System.arraycopy(data, 0, data = new byte[data.length << 1], 0, ptr);
+		    final int n = is.read(data, ptr, data.length - ptr);
+		    if (n <= 0)
+			break;
+		    ptr += n;
+		}
+	    }
+	    finally
+	    {   IoScheduler.end();
+	    }
+	    char[] chars = (new String(data, 0, ptr, "UTF-8").replace('\f', '\n') + "\n").toCharArray();
+	    boolean comment = false;
+	    boolean escape = false;
+	    char quote = 0;
+	    char[] buf = new char[ptr];
+	    String key = null;
+	    int ptr_ = ptr = 0;
+	    for (final char c : chars)
+		if (escape)
+		{   buf[(ptr_ = ++ptr) - 1] = c;
+		    escape = false;
+		}
+		else if (c == quote)
+		    quote = 0;
+		else if (quote == '\'')
+		    if (c == '\'')
+			buf[(ptr_ = ++ptr) - 1] = quote = 0;
+		    else
+			buf[(ptr_ = ++ptr) - 1] = c;
+		else if (c == '\n')
+		    if (key == null)
+		    {   table.put((new String(buf, 0, ptr_)).replace("\0", ""), "yes");
+			ptr_ = ptr = 0;
+		    }
+		    else
+		    {   table.put(key, (new String(buf, 0, ptr_)).replace("\0", ""));
+			ptr_ = ptr = 0;
+			key = null;
+		    }
+		else if (comment == false)
+		    if (c == '\\')
+			escape = true;
+		    else if (quote == '\"')
+			buf[(ptr_ = ++ptr) - 1] = c;
+		    else if ((c == '\'') || (c == '\"'))
+			quote = c;
+		    else if ((c == '#') || (c == ';'))
+			comment = true;
+		    else if ((c == '~') && (ptr == 0))
+		    {
+			if (buf.length < home.length())
+			    buf = new char[home.length()];
+			for (final char c_ : home.toCharArray())
+			    buf[(ptr_ = ++ptr) - 1] = c_;
+			System.arraycopy(buf, 0, buf = new char[ptr + buf.length], 0, ptr);
+		    }
+		    else if ((c == ' ') || (c == '\t'))
+		    {
+			if ((ptr != 0) && (buf[ptr - 1] != ' '))
+			{   ptr_ = ptr;
+			    buf[ptr++] = ' ';
+			}
+		    }
+		    else if ((key == null) && (c == '='))
+		    {
+			key = (new String(buf, 0, ptr_)).replace("\0", "");
+			ptr_ = ptr = 0;
+		    }
+		    else
+			buf[(ptr_ = ++ptr) - 1] = c;
+	}
 	catch (final Throwable err)
 	{   err.printStackTrace(System.err);
 	}
+	finally
+	{   if (is != null)
+		try
+		{   is.close();
+		}
+		catch (final Throwable ignore)
+		{   /* ignore */
+	}       }
+    }
+    
+    
+    /**
+     * Reloads the configuration file, updates setting handles and broadcasts a
+     * {@link SettingsChangedMessage} on the default blackboard if anything changed
+     * 
+     * @return  The keys of the changed configurations
+     */
+    public static synchronized Set<String> reload()
+    {
+	final HashMap<String, String> table = load();
+	final HashSet<String> changed = new HashSet<String>();
+	synchronized (configurations)
+	{   for (final Map.Entry<String, String> entry : table.entrySet())
+		if (entry.getValue().equals(configurations.get(entry.getKey())) == false)
+		    changed.add(entry.getKey());
+	    for (final String key : configurations.keySet())
+		if (table.containsKey(key) == false)
+		    changed.add(key);
+	    configurations.keySet().retainAll(table.keySet());
+	    configurations.putAll(table);
+	}
 	
+	for (final String key : changed)
+	{   final String value = table.get(key);
+	    try
+	    {   synchronized (intSettings)
+		{   final IntSetting setting = intSettings.get(key);
+		    if (setting != null)
+			setting.value = Integer.parseInt(value);
+		}
+		synchronized (doubleSettings)
+		{   final DoubleSetting setting = doubleSettings.get(key);
+		    if (setting != null)
+			setting.value = Double.parseDouble(value);
+	    }   }
+	    catch (final NumberFormatException err)
+	    {   System.err.println("Invalid value for " + key + " in womrc: " + value + ", keeping previous value");
+	}   }
 	
-	for (final String file : files)
-	    if ((file != null) && (file_ = new File(file)).exists() && (file_.isDirectory() == false))
-	    {	InputStream is = null;
-		try
-		{   is = new FileInputStream(new File(file));
-		    byte[] data = new byte[8192];
-		    int ptr = 0;
-		    for (;;)
-		    {	if (ptr == data.length)
-			    System.arraycopy(data, 0, data = new byte[data.length << 1], 0, ptr);
-			final int n = is.read(data, ptr, data.length - ptr);
-			if (n <= 0)
-			    break;
-			ptr += n;
-		    }
-		    char[] chars = (new String(data, 0, ptr, "UTF-8").replace('\f', '\n') + "\n").toCharArray();
-		    boolean comment = false;
-		    boolean escape = false;
-		    char quote = 0;
-		    char[] buf = new char[ptr];
-		    String key = null;
-		    int ptr_ = ptr = 0;
-		    for (final char c : chars)
-			if (escape)
-			{   buf[ptr_ = ptr++] = c;
-			    escape = false;
-			}
-			else if (c == quote)
-			    quote = 0;
-			else if (quote == '\'')
-			    if (c == '\'')
-				buf[ptr_ = ptr++] = quote = 0;
-			    else
-				buf[ptr_ = ptr++] = c;
-			else if (c == '\n')
-			    if (key == null)
-			    {	configurations.put((new String(buf, 0, ptr_)).replace("\0", ""), "yes");
-				ptr_ = ptr = 0;
-			    }
-			    else
-			    {	configurations.put(key, (new String(buf, 0, ptr_)).replace("\0", ""));
-				ptr_ = ptr = 0;
-				key = null;
-			    }
-			else if (comment == false)
-			    if (c == '\\')
-				escape = true;
-			    else if (quote == '\"')
-				buf[ptr_ = ptr++] = c;
-			    else if ((c == '\'') || (c == '\"'))
-				quote = c;
-			    else if ((c == '#') || (c == ';'))
-				comment = true;
-			    else if ((c == '~') && (ptr == 0))
-			    {
-				if (buf.length < HOME.length())
-				    buf = new char[HOME.length()];
-				for (final char c_ : HOME.toCharArray())
-				    buf[ptr_ = ptr++] = c_;
-				System.arraycopy(buf, 0, buf = new char[ptr + buf.length], 0, ptr);
-			    }
-			    else if ((c == ' ') || (c == '\t'))
-			    {
-				if ((ptr != 0) && (buf[ptr - 1] != ' '))
-				{   ptr_ = ptr;
-				    buf[ptr++] = ' ';
+	if (changed.isEmpty() == false)
+	    Blackboard.getInstance(null).broadcastMessage(new SettingsChangedMessage(changed));
+	return changed;
+    }
+    
+    
+    /**
+     * Starts watching the candidate configuration files, reloading
+     * them when the one in use is modified or another one appears,
+     * only files in existing directories can be watched
+     */
+    public static synchronized void watch()
+    {
+	if (watcher != null)
+	    return;
+	
+	final WatchService service;
+	final HashSet<Path> candidates = new HashSet<Path>();
+	try
+	{   service = FileSystems.getDefault().newWatchService();
+	    final HashSet<Path> directories = new HashSet<Path>();
+	    for (final String file : files)
+		if (file != null)
+		{   final Path path = Paths.get(file).toAbsolutePath();
+		    final Path directory = path.getParent();
+		    candidates.add(path);
+		    if ((directory != null) && Files.isDirectory(directory) && directories.add(directory))
+			directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						    StandardWatchEventKinds.ENTRY_MODIFY,
+						    StandardWatchEventKinds.ENTRY_DELETE);
+	}       }
+	catch (final IOException err)
+	{   err.printStackTrace(System.err);
+	    return;
+	}
+	
+	watcher = new Thread("womrc watcher")
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public void run()
+		    {
+			try
+			{   for (;;)
+				try
+				{   WatchKey key = service.take();
+				    boolean relevant = false;
+				    /* Editors tend to touch the file several times per save */
+				    do
+				    {   final Path directory = (Path)(key.watchable());
+					for (final WatchEvent<?> event : key.pollEvents())
+					    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						relevant = true;
+					    else if (candidates.contains(directory.resolve((Path)(event.context()))))
+						relevant = true;
+					key.reset();
+				    }
+				    while ((key = service.poll(50, TimeUnit.MILLISECONDS)) != null);
+				    
+				    if (relevant)
+					reload();
 				}
+				catch (final InterruptedException | ClosedWatchServiceException err)
+				{   /* stop watching */
+				    return;
+				}
+				catch (final Throwable err)
+				{   /* keep watching, the next save may fix it */
+				    err.printStackTrace(System.err);
+			}       }
+			finally
+			{   try
+			    {   service.close();
 			    }
-			    else if ((key == null) && (c == '='))
-			    {
-				key = (new String(buf, 0, ptr_)).replace("\0", "");
-				ptr_ = ptr = 0;
-			    }
-			    else
-				buf[ptr_ = ptr++] = c;
-		}
-		catch (final Throwable err)
-		{   err.printStackTrace(System.err);
+			    catch (final IOException ignore)
+			    {   /* ignore */
+		    }   }   }
+		};
+	watcher.setDaemon(true);
+	watcher.start();
+    }
+    
+    
+    /**
+     * Replaces invalid or out of range values of numerical configurations with their default values
+     * 
+     * @param  table  The configuration table
+     */
+    private static void validate(final Map<String, String> table)
+    {
+	for (final Map.Entry<String, Class<?>> entry : types.entrySet())
+	{
+	    final String key = entry.getKey();
+	    final String value = table.get(key);
+	    try
+	    {   if (value == null)
+		    throw new NumberFormatException("missing value");
+		else if (entry.getValue() == Integer.class)
+		{   final Integer minimum = minimums.get(key);
+		    if ((Integer.parseInt(value) < (minimum == null ? Integer.MIN_VALUE : minimum.intValue())))
+			throw new NumberFormatException("value below " + minimum);
 		}
-		finally
-		{   if (is != null)
-			try
-			{   is.close();
-			}
-			catch (final Throwable ignore)
-			{   /* ignore */
-		}	}
-		break;
+		else
+		    Double.parseDouble(value);
 	    }
+	    catch (final NumberFormatException err)
+	    {   System.err.println("Invalid value for " + key + " in womrc: " + value + ", using " + defaults.get(key));
+		table.put(key, defaults.get(key));
+	}   }
+    }
+    
+    
+    /**
+     * Gets the handle for an integer value configuration
+     * 
+     * @param   key  The key
+     * @return       The handle
+     * 
+     * @throws  NumberFormatException  If the key has no valid integer value
+     */
+    public static IntSetting intSetting(final String key)
+    {
+	synchronized (intSettings)
+	{   IntSetting setting = intSettings.get(key);
+	    if (setting == null)
+		intSettings.put(key, setting = new IntSetting(key, Integer.parseInt(configurations.get(key))));
+	    return setting;
+	}
+    }
+    
+    
+    /**
+     * Gets the handle for a double precision float value configuration
+     * 
+     * @param   key  The key
+     * @return       The handle
+     * 
+     * @throws  NumberFormatException  If the key has no valid number value
+     */
+    public static DoubleSetting doubleSetting(final String key)
+    {
+	synchronized (doubleSettings)
+	{   DoubleSetting setting = doubleSettings.get(key);
+	    if (setting == null)
+		doubleSettings.put(key, setting = new DoubleSetting(key, Double.parseDouble(configurations.get(key))));
+	    return setting;
+	}
     }
     
     
@@ -215,7 +756,9 @@ public class Settings
      */
     public static String getString(final String key)
     {
-	return configurations.get(key);
+	synchronized (configurations)
+	{   return configurations.get(key);
+	}
     }
     
     /**
@@ -226,7 +769,7 @@ public class Settings
      */
     public static int getInt(final String key)
     {
-	return Integer.parseInt(configurations.get(key));
+	return intSetting(key).get();
     }
     
     /**
@@ -237,7 +780,7 @@ public class Settings
      */
     public static double getDouble(final String key)
     {
-	return Double.parseDouble(configurations.get(key));
+	return doubleSetting(key).get();
     }
     
 }
@@ -0,0 +1,373 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Binary snapshot of resolved configurations, stored in the cache directory
+ * next to the thumbnail cache, so that a cold start does not have to parse
+ * configuration files or probe for them all.<br/>
+ * The snapshot consists of named sections, each recording the candidate files
+ * it was resolved from, the index of the candidate that was in use, and its
+ * modification time and size. A section is valid as long as no candidate with
+ * higher precedence has appeared and the one in use is unmodified, checking
+ * this requires one {@code stat} per candidate up to and including the one in
+ * use. The file starts with the magic {@code WOMS} and a version number.
+ */
+public class SettingsSnapshot
+{
+    /**
+     * Non-instansiable class
+     */
+    private SettingsSnapshot()
+    {
+	/* do nothing */
+    }
+    
+    
+    
+    /**
+     * The magic number at the start of a snapshot
+     */
+    private static final int MAGIC = ('W' << 24) | ('O' << 16) | ('M' << 8) | 'S';
+    
+    /**
+     * The version of the snapshot format
+     */
+    private static final int VERSION = 1;
+    
+    
+    
+    /**
+     * A section of the snapshot
+     */
+    public static final class Section
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  candidates  The candidate files, in order of precedence, {@code null} elements are ignored
+	 * @param  context     Any other data the payload depends on
+	 * @param  active      The index of the candidate in use
+	 * @param  modified    The modification time of the candidate in use
+	 * @param  length      The size of the candidate in use
+	 * @param  payload     The resolved data
+	 */
+	private Section(final String[] candidates, final String context, final int active,
+			final long modified, final long length, final String[] payload)
+	{
+	    this.candidates = candidates;
+	    this.context = context;
+	    this.active = active;
+	    this.modified = modified;
+	    this.length = length;
+	    this.payload = payload;
+	}
+	
+	
+	
+	/**
+	 * The candidate files, in order of precedence, {@code null} elements are ignored
+	 */
+	private final String[] candidates;
+	
+	/**
+	 * Any other data the payload depends on
+	 */
+	private final String context;
+	
+	/**
+	 * The index of the candidate in use
+	 */
+	private final int active;
+	
+	/**
+	 * The modification time of the candidate in use
+	 */
+	private final long modified;
+	
+	/**
+	 * The size of the candidate in use
+	 */
+	private final long length;
+	
+	/**
+	 * The resolved data
+	 */
+	private final String[] payload;
+	
+	
+	
+	/**
+	 * Gets the candidate file that was in use
+	 * 
+	 * @return  The candidate file that was in use
+	 */
+	public File getActive()
+	{   return new File(this.candidates[this.active]);
+	}
+	
+	/**
+	 * Gets the resolved data
+	 * 
+	 * @return  The resolved data
+	 */
+	public String[] getPayload()
+	{   return this.payload;
+	}
+	
+	/**
+	 * Checks whether the section is still valid
+	 * 
+	 * @param   candidates  The current candidate files
+	 * @param   context     The current context
+	 * @return              Whether the section is valid
+	 */
+	boolean isValid(final String[] candidates, final String context)
+	{
+	    if ((Arrays.equals(candidates, this.candidates) && context.equals(this.context)) == false)
+		return false;
+	    /* A missing file has a modification time of zero */
+	    for (int i = 0; i < this.active; i++)
+		if ((candidates[i] != null) && ((new File(candidates[i])).lastModified() != 0))
+		    return false;
+	    final File file = new File(candidates[this.active]);
+	    return (file.lastModified() == this.modified) && (file.length() == this.length);
+	}
+    }
+    
+    
+    
+    /**
+     * The cache directory of the program, {@code $XDG_CACHE_HOME/wall-of-memories},
+     * or {@code ~/.cache/wall-of-memories} if {@code $XDG_CACHE_HOME} is not set
+     */
+    public static final String CACHE_DIRECTORY;
+    
+    /**
+     * The snapshot file
+     */
+    private static final File file;
+    
+    /**
+     * The sections of the snapshot, {@code null} until read
+     */
+    private static HashMap<String, Section> sections = null;
+    
+    
+    
+    /**
+     * Locate the cache directory and the snapshot file
+     */
+    static
+    {
+	final String $XDG_CACHE_HOME = System.getenv("XDG_CACHE_HOME");
+	final String $HOME = System.getenv("HOME");
+	String dir;
+	if (($XDG_CACHE_HOME != null) && ($XDG_CACHE_HOME.length() > 0))
+	    dir = $XDG_CACHE_HOME;
+	else if (($HOME != null) && ($HOME.length() > 0))
+	    dir = $HOME + "/.cache";
+	else
+	    dir = System.getProperty("user.home") + "/.cache";
+	CACHE_DIRECTORY = dir + "/wall-of-memories";
+	file = new File(CACHE_DIRECTORY + "/settings.snapshot");
+    }
+    
+    
+    
+    /**
+     * Gets a section of the snapshot if it is still valid
+     * 
+     * @param   name        The name of the section
+     * @param   candidates  The candidate files, in order of precedence, {@code null} elements are ignored
+     * @param   context     Any other data the payload depends on
+     * @return              The section, {@code null} if missing or stale
+     */
+    public static synchronized Section read(final String name, final String[] candidates, final String context)
+    {
+	if (sections == null)
+	    sections = load();
+	final Section section = sections.get(name);
+	return ((section != null) && section.isValid(candidates, context)) ? section : null;
+    }
+    
+    
+    /**
+     * Stores a section of the snapshot
+     * 
+     * @param  name        The name of the section
+     * @param  candidates  The candidate files, in order of precedence, {@code null} elements are ignored
+     * @param  context     Any other data the payload depends on
+     * @param  active      The candidate file in use, {@code null} if none, in which case the section is removed
+     * @param  modified    The modification time of the candidate file in use, as it was before it was read
+     * @param  length      The size of the candidate file in use, as it was before it was read
+     * @param  payload     The resolved data
+     */
+    public static synchronized void write(final String name, final String[] candidates, final String context,
+					  final File active, final long modified, final long length, final String[] payload)
+    {
+	if (sections == null)
+	    sections = load();
+	
+	int index = -1;
+	if (active != null)
+	    for (int i = 0; i < candidates.length; i++)
+		if ((candidates[i] != null) && active.equals(new File(candidates[i])))
+		{   index = i;
+		    break;
+		}
+	
+	if (index < 0)
+	{   if (sections.remove(name) == null)
+		return;
+	}
+	else
+	    sections.put(name, new Section(candidates.clone(), context, index, modified, length, payload.clone()));
+	
+	try
+	{   save();
+	}
+	catch (final IOException err)
+	{   System.err.println("Cannot write settings snapshot: " + err.toString());
+	}
+    }
+    
+    
+    /**
+     * Reads the snapshot file, as one operation in the {@link IoScheduler}
+     * 
+     * @return  The sections in the snapshot file, empty if it is missing, corrupt,
+     *          of another version, or if the thread is interrupted
+     */
+    private static HashMap<String, Section> load()
+    {
+	final HashMap<String, Section> rc = new HashMap<String, Section>();
+	if (file.exists() == false)
+	    return rc;
+	
+	final byte[] data;
+	try
+	{   IoScheduler.begin(file.length());
+	    try
+	    {   data = Files.readAllBytes(file.toPath());
+	    }
+	    finally
+	    {   IoScheduler.end();
+	    }
+	}
+	catch (final InterruptedIOException err)
+	{   Thread.currentThread().interrupt();
+	    return rc;
+	}
+	catch (final IOException err)
+	{   return rc;
+	}
+	
+	try (final DataInputStream is = new DataInputStream(new ByteArrayInputStream(data)))
+	{
+	    if ((is.readInt() != MAGIC) || (is.readInt() != VERSION))
+		return rc;
+	    for (int n = is.readInt(); n > 0; n--)
+	    {
+		final String name = is.readUTF();
+		final String[] candidates = new String[is.readInt()];
+		for (int i = 0; i < candidates.length; i++)
+		    if (is.readBoolean())
+			candidates[i] = is.readUTF();
+		final String context = is.readUTF();
+		final int active = is.readInt();
+		final long modified = is.readLong();
+		final long length = is.readLong();
+		final String[] payload = new String[is.readInt()];
+		for (int i = 0; i < payload.length; i++)
+		    payload[i] = is.readUTF();
+		if ((active < 0) || (active >= candidates.length) || (candidates[active] == null))
+		    throw new IOException("invalid section: " + name);
+		rc.put(name, new Section(candidates, context, active, modified, length, payload));
+	    }
+	}
+	catch (final IOException err)
+	{   /* Corrupt or truncated, it will be rewritten */
+	    rc.clear();
+	}
+	return rc;
+    }
+    
+    
+    /**
+     * Writes the snapshot file, atomically replacing the old one, as one operation in the {@link IoScheduler}
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private static void save() throws IOException
+    {
+	final File directory = file.getParentFile();
+	if ((directory.isDirectory() == false) && (directory.mkdirs() == false))
+	    throw new IOException("cannot create " + directory);
+	
+	final ByteArrayOutputStream data = new ByteArrayOutputStream();
+	try (final DataOutputStream os = new DataOutputStream(data))
+	{
+	    os.writeInt(MAGIC);
+	    os.writeInt(VERSION);
+	    os.writeInt(sections.size());
+	    for (final Map.Entry<String, Section> entry : sections.entrySet())
+	    {
+		final Section section = entry.getValue();
+		os.writeUTF(entry.getKey());
+		os.writeInt(section.candidates.length);
+		for (final String candidate : section.candidates)
+		{   os.writeBoolean(candidate != null);
+		    if (candidate != null)
+			os.writeUTF(candidate);
+		}
+		os.writeUTF(section.context);
+		os.writeInt(section.active);
+		os.writeLong(section.modified);
+		os.writeLong(section.length);
+		os.writeInt(section.payload.length);
+		for (final String datum : section.payload)
+		    os.writeUTF(datum);
+	    }
+	}
+	
+	final File temp = new File(file.getPath() + ".tmp");
+	IoScheduler.begin(data.size());
+	try
+	{   try (final OutputStream os = new FileOutputStream(temp))
+	    {   data.writeTo(os);
+	    }
+	    try
+	    {   Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    }
+	    catch (final AtomicMoveNotSupportedException err)
+	    {   Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	    }
+	}
+	finally
+	{   IoScheduler.end();
+	}
+    }
+    
+}
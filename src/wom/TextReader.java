@@ -0,0 +1,380 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Streaming UTF-8 text reader for files of any size.<br/>
+ * The text is decoded incrementally from a small direct buffer, or, for large
+ * files on local filesystems, from memory-mapped windows of the file, so the
+ * file is never materialised in memory as a whole. Malformed input is replaced
+ * with U+FFFD. Lines can be read with {@link #readLine()} without the overhead
+ * of a {@link BufferedReader}.
+ */
+public class TextReader extends Reader
+{
+    /**
+     * Files at least this large are memory-mapped by default
+     */
+    public static final long MAP_THRESHOLD = 1L << 20;
+    
+    /**
+     * The size of the memory-mapped windows, a window is read and
+     * decoded in {@link IoScheduler#CHUNK_SIZE} steps
+     */
+    private static final long MAP_WINDOW = 1L << 26;
+    
+    /**
+     * The size of the byte buffer used when the file is not memory-mapped
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Filesystem types that are not mapped, their pages can disappear under the mapping
+     */
+    private static final HashSet<String> REMOTE_FILESYSTEMS = new HashSet<String>(Arrays.asList(
+		"nfs", "nfs4", "cifs", "smbfs", "smb3", "9p", "fuse.sshfs", "afs", "ceph", "glusterfs"));
+    
+    
+    
+    /**
+     * Constructor, memory-maps the file if it is large and on a local filesystem
+     * 
+     * @param  file  The file to read
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public TextReader(final String file) throws IOException
+    {
+	this(file, null);
+    }
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  file  The file to read
+     * @param  map   Whether to memory-map the file, {@code null} to decide by its size and filesystem
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public TextReader(final String file, final Boolean map) throws IOException
+    {
+	final Path path = Paths.get(file);
+	final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+	boolean mapped = false;
+	try
+	{   if (map == null)
+		mapped = Files.isRegularFile(path) && (channel.size() >= MAP_THRESHOLD)
+			 && (REMOTE_FILESYSTEMS.contains(Files.getFileStore(path).type()) == false);
+	    else
+		mapped = map.booleanValue() && Files.isRegularFile(path);
+	}
+	catch (final IOException err)
+	{   /* stream it */
+	}
+	
+	this.channel = channel;
+	this.file = mapped ? channel : null;
+	this.size = mapped ? channel.size() : -1;
+	if (mapped)
+	    this.bytes = this.map(0);
+	else
+	{   this.bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	    this.bytes.flip();
+	}
+    }
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  input  The stream to read, will be closed by {@link #close()}
+     */
+    public TextReader(final InputStream input)
+    {
+	this.channel = Channels.newChannel(input);
+	this.file = null;
+	this.size = -1;
+	this.bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	this.bytes.flip();
+    }
+    
+    
+    
+    /**
+     * The channel the text is read from
+     */
+    private final ReadableByteChannel channel;
+    
+    /**
+     * The file channel if the file is memory-mapped, otherwise {@code null}
+     */
+    private final FileChannel file;
+    
+    /**
+     * The size of the file if it is memory-mapped
+     */
+    private final long size;
+    
+    /**
+     * The file position of the current memory-mapped window
+     */
+    private long window = 0;
+    
+    /**
+     * Undecoded bytes, in read mode
+     */
+    private ByteBuffer bytes;
+    
+    /**
+     * Decoded characters, in read mode
+     */
+    private final CharBuffer chars = CharBuffer.wrap(new char[8192], 0, 0);
+    
+    /**
+     * The UTF-8 decoder
+     */
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+					     .onMalformedInput(CodingErrorAction.REPLACE)
+					     .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    
+    /**
+     * Whether all input has been read
+     */
+    private boolean eof = false;
+    
+    /**
+     * Whether the decoder has been flushed
+     */
+    private boolean flushed = false;
+    
+    
+    
+    /**
+     * Maps a window of the file, and reads its first chunk
+     * 
+     * @param   position  The file position of the window
+     * @return            The window, limited to the read part
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private ByteBuffer map(final long position) throws IOException
+    {
+	this.window = position;
+	final long length = Math.min(MAP_WINDOW, this.size - position);
+	final MappedByteBuffer window;
+	IoScheduler.begin(0);
+	try
+	{   window = this.file.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+	finally
+	{   IoScheduler.end();
+	}
+	window.limit(0);
+	expose(window);
+	return window;
+    }
+    
+    
+    /**
+     * Reads the next chunk of a memory-mapped window and extends its limit over the chunk
+     * 
+     * @param   window  The window
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private static void expose(final MappedByteBuffer window) throws IOException
+    {
+	final int start = window.limit();
+	final int length = Math.min(IoScheduler.CHUNK_SIZE, window.capacity() - start);
+	/* The pages are otherwise read when the decoder first touches them, outside the admission */
+	window.limit(start + length);
+	IoScheduler.begin(length);
+	try
+	{   window.slice(start, length).load();
+	}
+	finally
+	{   IoScheduler.end();
+	}
+    }
+    
+    
+    /**
+     * Fetches more bytes, keeping the undecoded ones
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private void fetch() throws IOException
+    {
+	if (this.file != null)
+	{   if (this.bytes.limit() < this.bytes.capacity())
+	    {   expose((MappedByteBuffer)(this.bytes));
+		return;
+	    }
+	    /* Remap from the first undecoded byte so that no sequence is split between windows */
+	    final long position = this.window + this.bytes.position();
+	    if ((position == this.size) || (this.window + this.bytes.limit() == this.size))
+		this.eof = true;
+	    else
+		this.bytes = this.map(position);
+	    return;
+	}
+	
+	this.bytes.compact();
+	IoScheduler.begin(this.bytes.remaining());
+	try
+	{   if (this.channel.read(this.bytes) < 0)
+		this.eof = true;
+	}
+	finally
+	{   IoScheduler.end();
+	    this.bytes.flip();
+	}
+    }
+    
+    
+    /**
+     * Decodes more characters
+     * 
+     * @return  {@code false} at the end of the text
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    private boolean decode() throws IOException
+    {
+	this.chars.compact();
+	try
+	{   while (this.chars.position() == 0)
+	    {
+		if (this.flushed)
+		    return false;
+		final CoderResult result = this.decoder.decode(this.bytes, this.chars, this.eof);
+		if (result.isError())
+		    result.throwException();
+		if (result.isOverflow())
+		    break;
+		if (this.eof)
+		{   this.decoder.flush(this.chars);
+		    this.flushed = true;
+		}
+		else
+		    this.fetch();
+	    }
+	    return true;
+	}
+	finally
+	{   this.chars.flip();
+	}
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final char[] buffer, final int offset, final int length) throws IOException
+    {
+	if (length == 0)
+	    return 0;
+	if ((this.chars.hasRemaining() == false) && (this.decode() == false))
+	    return -1;
+	final int n = Math.min(length, this.chars.remaining());
+	this.chars.get(buffer, offset, n);
+	return n;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+	if ((this.chars.hasRemaining() == false) && (this.decode() == false))
+	    return -1;
+	return this.chars.get();
+    }
+    
+    
+    /**
+     * Reads a line, lines are terminated by LF, a trailing CR is removed
+     * 
+     * @return  The line, without its terminator, {@code null} at the end of the text
+     * 
+     * @throws  IOException  On file I/O error
+     */
+    public String readLine() throws IOException
+    {
+	StringBuilder line = null;
+	for (;;)
+	{
+	    if ((this.chars.hasRemaining() == false) && (this.decode() == false))
+		return line == null ? null : strip(line.toString());
+	    
+	    final char[] array = this.chars.array();
+	    final int start = this.chars.position(), end = this.chars.limit();
+	    for (int i = start; i < end; i++)
+		if (array[i] == '\n')
+		{   this.chars.position(i + 1);
+		    if (line == null)
+			return strip(new String(array, start, i - start));
+		    line.append(array, start, i - start);
+		    return strip(line.toString());
+		}
+	    
+	    if (line == null)
+		line = new StringBuilder(Math.max(80, (end - start) * 2));
+	    line.append(array, start, end - start);
+	    this.chars.position(end);
+	}
+    }
+    
+    
+    /**
+     * Removes a trailing CR from a line
+     * 
+     * @param   line  The line
+     * @return        The line without a trailing CR
+     */
+    private static String strip(final String line)
+    {
+	final int n = line.length();
+	return ((n > 0) && (line.charAt(n - 1) == '\r')) ? line.substring(0, n - 1) : line;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+	this.bytes = null;
+	this.channel.close();
+    }
+    
+}
@@ -0,0 +1,380 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.util.*;
+
+
+/**
+ * Bitmap indices of the pictures in a {@link Catalog} by when they were taken:
+ * by year, month, day of the month, week, weekday and hour, in the local
+ * time zone.<br/>
+ * The selections of the time filters are grids of cells, a cell for each
+ * combination of a row, such as a year, and a column, such as a month. Each
+ * grid is compiled by grouping the rows by which columns are selected in them,
+ * and for each group intersecting the union of the rows with the union of the
+ * columns, so a selection takes a few unions and intersections of bitmaps
+ * rather than a scan of the pictures. The year and week filters only show a
+ * range of years or weeks, the rows outside the range are selected as in the
+ * filter's row for all years or weeks.<br/>
+ * Weekdays are numbered from Monday, as zero, months and days from zero, and
+ * weeks, which start on Mondays, from zero for the week of 1970-01-01.
+ */
+public class TimeIndex
+{
+    /**
+     * The number of milliseconds in a day
+     */
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  catalog  The catalog to index, the pictures in it are indexed
+     */
+    public TimeIndex(final Catalog catalog)
+    {
+	this.catalog = catalog;
+	this.update();
+    }
+    
+    
+    
+    /**
+     * The indexed catalog
+     */
+    private final Catalog catalog;
+    
+    /**
+     * Calendar used to split timestamps
+     */
+    private final GregorianCalendar calendar = new GregorianCalendar();
+    
+    /**
+     * The number of indexed pictures
+     */
+    private int indexed = 0;
+    
+    /**
+     * The pictures of each year
+     */
+    private final TreeMap<Integer, Bitmap> years = new TreeMap<Integer, Bitmap>();
+    
+    /**
+     * The pictures of each month
+     */
+    private final Bitmap[] months = create(12);
+    
+    /**
+     * The pictures of each day of the month
+     */
+    private final Bitmap[] days = create(31);
+    
+    /**
+     * The pictures of each week
+     */
+    private final TreeMap<Integer, Bitmap> weeks = new TreeMap<Integer, Bitmap>();
+    
+    /**
+     * The pictures of each weekday
+     */
+    private final Bitmap[] weekdays = create(7);
+    
+    /**
+     * The pictures of each hour
+     */
+    private final Bitmap[] hours = create(24);
+    
+    /**
+     * All indexed pictures
+     */
+    private final Bitmap all = new Bitmap();
+    
+    
+    
+    /**
+     * Creates an array of empty bitmaps
+     * 
+     * @param   n  The number of bitmaps
+     * @return     The bitmaps
+     */
+    private static Bitmap[] create(final int n)
+    {
+	final Bitmap[] bitmaps = new Bitmap[n];
+	for (int i = 0; i < n; i++)
+	    bitmaps[i] = new Bitmap();
+	return bitmaps;
+    }
+    
+    
+    /**
+     * Indexes the pictures added to the catalog since the last update
+     */
+    public synchronized void update()
+    {
+	final int size = this.catalog.size();
+	for (; this.indexed < size; this.indexed++)
+	{
+	    final int entry = this.indexed;
+	    final long timestamp = this.catalog.getTimestamp(entry);
+	    this.calendar.setTimeInMillis(timestamp);
+	    add(this.years, this.calendar.get(Calendar.YEAR), entry);
+	    add(this.weeks, getWeek(timestamp), entry);
+	    this.months[this.calendar.get(Calendar.MONTH)].add(entry);
+	    this.days[this.calendar.get(Calendar.DAY_OF_MONTH) - 1].add(entry);
+	    this.weekdays[(this.calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7].add(entry);
+	    this.hours[this.calendar.get(Calendar.HOUR_OF_DAY)].add(entry);
+	    this.all.add(entry);
+	}
+    }
+    
+    
+    /**
+     * Adds a picture to the bitmap of a year or week
+     * 
+     * @param  bitmaps  The bitmaps of the years or weeks
+     * @param  key      The year or week
+     * @param  entry    The index of the picture
+     */
+    private static void add(final TreeMap<Integer, Bitmap> bitmaps, final int key, final int entry)
+    {
+	Bitmap bitmap = bitmaps.get(Integer.valueOf(key));
+	if (bitmap == null)
+	    bitmaps.put(Integer.valueOf(key), bitmap = new Bitmap());
+	bitmap.add(entry);
+    }
+    
+    
+    /**
+     * Gets the week of a point in time, in the local time zone
+     * 
+     * @param   time  The point in time, in milliseconds since the epoch
+     * @return        The week, the number of Mondays from 1970-01-01, exclusively, up to the point in time
+     */
+    public static int getWeek(final long time)
+    {
+	final long day = Math.floorDiv(time + TimeZone.getDefault().getOffset(time), DAY);
+	/* 1970-01-01 was a Thursday */
+	return (int)Math.floorDiv(day + 3, 7);
+    }
+    
+    /**
+     * Gets the start of a week, in the local time zone
+     * 
+     * @param   week  The week, as returned by {@link #getWeek(long)}
+     * @return        The Monday of the week, at midnight
+     */
+    public static Calendar getWeekStart(final int week)
+    {
+	final Calendar calendar = new GregorianCalendar();
+	calendar.clear();
+	calendar.set(1970, Calendar.JANUARY, 5);
+	calendar.add(Calendar.DAY_OF_MONTH, 7 * (week - 1));
+	return calendar;
+    }
+    
+    
+    /**
+     * Gets the first year with pictures
+     * 
+     * @return  The first year with pictures, -1 if there are no pictures
+     */
+    public synchronized int getFirstYear()
+    {
+	return this.years.isEmpty() ? -1 : this.years.firstKey().intValue();
+    }
+    
+    /**
+     * Gets the last year with pictures
+     * 
+     * @return  The last year with pictures, -1 if there are no pictures
+     */
+    public synchronized int getLastYear()
+    {
+	return this.years.isEmpty() ? -1 : this.years.lastKey().intValue();
+    }
+    
+    /**
+     * Gets the last week with pictures
+     * 
+     * @return  The last week with pictures, as returned by {@link #getWeek(long)},
+     *          the current week if there are no pictures
+     */
+    public synchronized int getLastWeek()
+    {
+	return this.weeks.isEmpty() ? getWeek(System.currentTimeMillis()) : this.weeks.lastKey().intValue();
+    }
+    
+    
+    /**
+     * Gets all indexed pictures
+     * 
+     * @return  All indexed pictures
+     */
+    public synchronized Bitmap getAll()
+    {
+	return new Bitmap(this.all);
+    }
+    
+    
+    /**
+     * Compiles a grid selection whose rows are years or weeks
+     * 
+     * @param   rows       The bitmaps of the years or weeks
+     * @param   first      The year or week of the first element in {@code selection}
+     * @param   selection  For each year or week from {@code first}, the mask of selected columns
+     * @param   others     The mask of selected columns for the years or weeks outside {@code selection}
+     * @param   columns    The bitmaps of the columns
+     * @return             The pictures in the selected cells
+     */
+    private static Bitmap grid(final TreeMap<Integer, Bitmap> rows, final int first, final int[] selection,
+			       final int others, final Bitmap[] columns)
+    {
+	final Bitmap[] bitmaps = new Bitmap[rows.size()];
+	final int[] masks = new int[rows.size()];
+	int i = 0;
+	for (final Map.Entry<Integer, Bitmap> row : rows.entrySet())
+	{   final int index = row.getKey().intValue() - first;
+	    bitmaps[i] = row.getValue();
+	    masks[i++] = (0 <= index) && (index < selection.length) ? selection[index] : others;
+	}
+	return grid(bitmaps, masks, columns);
+    }
+    
+    
+    /**
+     * Compiles a grid selection
+     * 
+     * @param   rows     The bitmaps of the rows
+     * @param   masks    For each row, the mask of selected columns
+     * @param   columns  The bitmaps of the columns
+     * @return           The pictures in the selected cells
+     */
+    private static Bitmap grid(final Bitmap[] rows, final int[] masks, final Bitmap[] columns)
+    {
+	final int full = (1 << columns.length) - 1;
+	final ArrayList<Bitmap> cells = new ArrayList<Bitmap>();
+	final boolean[] done = new boolean[rows.length];
+	for (int i = 0; i < rows.length; i++)
+	{
+	    final int mask = masks[i] & full;
+	    if (done[i] || (mask == 0))
+		continue;
+	    
+	    final ArrayList<Bitmap> group = new ArrayList<Bitmap>();
+	    for (int j = i; j < rows.length; j++)
+		if ((done[j] == false) && ((masks[j] & full) == mask))
+		{   group.add(rows[j]);
+		    done[j] = true;
+		}
+	    final Bitmap union = group.size() == 1 ? group.get(0) : Bitmap.or(group);
+	    if (mask == full)
+	    {   cells.add(union);
+		continue;
+	    }
+	    
+	    final ArrayList<Bitmap> selected = new ArrayList<Bitmap>();
+	    for (int column = 0; column < columns.length; column++)
+		if ((mask & (1 << column)) != 0)
+		    selected.add(columns[column]);
+	    cells.add(union.and(Bitmap.or(selected)));
+	}
+	return Bitmap.or(cells);
+    }
+    
+    
+    /**
+     * Compiles the selection of a {@link YearFilter}, of year × month cells
+     * 
+     * @param   firstYear  The year of the first row
+     * @param   selection  For each year, the mask of selected months
+     * @param   others     The mask of selected months for the years outside the selection
+     * @return             The pictures in the selected cells
+     */
+    public synchronized Bitmap selectMonths(final int firstYear, final short[] selection, final short others)
+    {
+	final int[] masks = new int[selection.length];
+	for (int i = 0; i < selection.length; i++)
+	    masks[i] = selection[i];
+	return grid(this.years, firstYear, masks, others, this.months);
+    }
+    
+    /**
+     * Compiles the selection of a {@link MonthFilter}, of year × day × month cells
+     * 
+     * @param   firstYear  The year of the first year
+     * @param   selection  For each year, for each day of the month, the mask of selected months
+     * @param   others     For each day of the month, the mask of selected months for the years outside the selection
+     * @return             The pictures in the selected cells
+     */
+    public synchronized Bitmap selectDays(final int firstYear, final short[][] selection, final short[] others)
+    {
+	final ArrayList<Bitmap> years = new ArrayList<Bitmap>();
+	/* Years are usually selected alike, so their day × month grids are compiled once */
+	final HashMap<String, Bitmap> grids = new HashMap<String, Bitmap>();
+	for (final Map.Entry<Integer, Bitmap> entry : this.years.entrySet())
+	{
+	    final Bitmap year = entry.getValue();
+	    final int index = entry.getKey().intValue() - firstYear;
+	    final short[] selected = (0 <= index) && (index < selection.length) ? selection[index] : others;
+	    final int[] masks = new int[this.days.length];
+	    for (int day = 0; day < Math.min(masks.length, selected.length); day++)
+		masks[day] = selected[day];
+	    final String key = Arrays.toString(masks);
+	    Bitmap grid = grids.get(key);
+	    if (grid == null)
+		grids.put(key, grid = grid(this.days, masks, this.months));
+	    years.add(year.and(grid));
+	}
+	return Bitmap.or(years);
+    }
+    
+    /**
+     * Compiles the selection of a {@link DayFilter}, of week × weekday cells
+     * 
+     * @param   firstWeek  The week of the first column, as returned by {@link #getWeek(long)}
+     * @param   selection  For each week, the mask of selected weekdays
+     * @param   others     The mask of selected weekdays for the weeks outside the selection
+     * @return             The pictures in the selected cells
+     */
+    public synchronized Bitmap selectWeekdays(final int firstWeek, final byte[] selection, final byte others)
+    {
+	final int[] masks = new int[selection.length];
+	for (int week = 0; week < selection.length; week++)
+	    masks[week] = selection[week];
+	return grid(this.weeks, firstWeek, masks, others, this.weekdays);
+    }
+    
+    /**
+     * Compiles the selection of an {@link HourFilter}, of hour × weekday cells
+     * 
+     * @param   selection  For each hour, the mask of selected weekdays
+     * @return             The pictures in the selected cells
+     */
+    public synchronized Bitmap selectHours(final byte[] selection)
+    {
+	final int[] masks = new int[this.hours.length];
+	for (int hour = 0; hour < Math.min(masks.length, selection.length); hour++)
+	    masks[hour] = selection[hour];
+	return grid(this.hours, masks, this.weekdays);
+    }
+    
+}
@@ -0,0 +1,668 @@
+/**
+ * wall-of-memories — A photo management program
+ * 
+ * Copyright © 2013  Mattias Andrée (maandree@member.fsf.org)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wom;
+
+import java.util.*;
+import java.util.regex.*;
+
+
+/**
+ * Trigram index of the titles of the pictures in a {@link Catalog}, used to
+ * find the candidate matches of a regular expression without matching it
+ * against every title.<br/>
+ * Each title is split into its overlapping sequences of three characters,
+ * lower-cased, and each sequence has a bitmap of the titles containing it.
+ * A regular expression is analysed for the literal strings any match must
+ * contain, the analysis gives a conjunction, or disjunction for alternations,
+ * of the trigrams of those strings, and intersecting and uniting their bitmaps
+ * gives the titles that can match, which are then matched against the regular
+ * expression. Constructs the analysis does not understand only make it find
+ * fewer literals, or none, in which case every title is a candidate.<br/>
+ * Compiled regular expressions, and their analyses, are cached by source.
+ */
+public class TrigramIndex
+{
+    /**
+     * The number of regular expressions to keep compiled
+     */
+    private static final int PATTERN_CACHE_SIZE = 64;
+    
+    /**
+     * The longest exact repetition of a literal character that is expanded
+     */
+    private static final int MAX_REPETITION = 16;
+    
+    /**
+     * Compiled regular expressions, by source, least recently used first
+     */
+    private static final LinkedHashMap<String, Compiled> patterns = new LinkedHashMap<String, Compiled>(16, 0.75f, true);
+    
+    
+    
+    /**
+     * A compiled regular expression
+     */
+    private static final class Compiled
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  pattern  The regular expression
+	 * @param  query    The trigram query of the regular expression, {@code null} if every title is a candidate
+	 */
+	Compiled(final Pattern pattern, final Node query)
+	{
+	    this.pattern = pattern;
+	    this.query = query;
+	}
+	
+	
+	
+	/**
+	 * The regular expression
+	 */
+	final Pattern pattern;
+	
+	/**
+	 * The trigram query of the regular expression, {@code null} if every title is a candidate
+	 */
+	final Node query;
+	
+    }
+    
+    
+    /**
+     * A trigram query: a trigram, or a conjunction or disjunction of queries
+     */
+    private static final class Node
+    {
+	/**
+	 * Constructor, for a trigram
+	 * 
+	 * @param  trigram  The trigram
+	 */
+	Node(final long trigram)
+	{
+	    this.trigram = trigram;
+	    this.conjunction = false;
+	    this.operands = null;
+	}
+	
+	/**
+	 * Constructor, for a conjunction or disjunction
+	 * 
+	 * @param  conjunction  Whether the node is a conjunction, rather than a disjunction
+	 * @param  operands     The operands, for a conjunction, none means that everything matches
+	 */
+	Node(final boolean conjunction, final List<Node> operands)
+	{
+	    this.trigram = 0;
+	    this.conjunction = conjunction;
+	    this.operands = operands;
+	}
+	
+	
+	
+	/**
+	 * The trigram, if the node is a trigram
+	 */
+	final long trigram;
+	
+	/**
+	 * Whether the node is a conjunction, rather than a disjunction
+	 */
+	final boolean conjunction;
+	
+	/**
+	 * The operands, {@code null} if the node is a trigram
+	 */
+	final List<Node> operands;
+	
+	
+	
+	/**
+	 * Checks whether the node matches everything
+	 * 
+	 * @return  Whether the node is an empty conjunction
+	 */
+	boolean isTrue()
+	{
+	    return this.conjunction && this.operands.isEmpty();
+	}
+	
+    }
+    
+    
+    /**
+     * Thrown when a regular expression uses a construct the analysis must not guess about
+     */
+    @SuppressWarnings("serial")
+    private static final class UnindexableException extends Exception
+    {
+	// Marker
+    }
+    
+    
+    /**
+     * Analyses a regular expression for the trigrams its matches must contain
+     */
+    private static final class Analyser
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  regex  The regular expression
+	 */
+	Analyser(final String regex)
+	{
+	    this.regex = regex;
+	}
+	
+	
+	
+	/**
+	 * The regular expression
+	 */
+	private final String regex;
+	
+	/**
+	 * The parse position
+	 */
+	private int position = 0;
+	
+	
+	
+	/**
+	 * Analyses the regular expression
+	 * 
+	 * @return  The trigram query, {@code null} if every title is a candidate
+	 */
+	Node analyse()
+	{
+	    try
+	    {   final Node node = this.alternation();
+		return (this.position < this.regex.length()) || node.isTrue() ? null : node;
+	    }
+	    catch (final UnindexableException err)
+	    {   return null;
+	    }
+	}
+	
+	/**
+	 * Analyses alternatives, up to the end of the expression or group
+	 * 
+	 * @return  The trigram query
+	 * 
+	 * @throws  UnindexableException  If the expression uses a construct that is not understood
+	 */
+	private Node alternation() throws UnindexableException
+	{
+	    final ArrayList<Node> alternatives = new ArrayList<Node>();
+	    boolean any = false;
+	    for (;;)
+	    {   final Node alternative = this.sequence();
+		any |= alternative.isTrue();
+		alternatives.add(alternative);
+		if ((this.position == this.regex.length()) || (this.regex.charAt(this.position) != '|'))
+		    break;
+		this.position++;
+	    }
+	    if (any)
+		return new Node(true, new ArrayList<Node>());
+	    return alternatives.size() == 1 ? alternatives.get(0) : new Node(false, alternatives);
+	}
+	
+	/**
+	 * Analyses a sequence, up to the end of the expression, group or alternative
+	 * 
+	 * @return  The trigram query
+	 * 
+	 * @throws  UnindexableException  If the expression uses a construct that is not understood
+	 */
+	private Node sequence() throws UnindexableException
+	{
+	    final ArrayList<Node> required = new ArrayList<Node>();
+	    final StringBuilder run = new StringBuilder();
+	    final String regex = this.regex;
+	    
+	    while (this.position < regex.length())
+	    {
+		final char c = regex.charAt(this.position);
+		if ((c == '|') || (c == ')'))
+		    break;
+		this.position++;
+		
+		switch (c)
+		{
+		    case '(':
+			flush(run, required);
+			if (regex.startsWith("?", this.position))
+			    if (regex.startsWith("?i)", this.position))
+			    {   /* Case-insensitivity is covered by the lower-casing */
+				this.position += 3;
+				continue;
+			    }
+			    else if (regex.startsWith("?:", this.position))
+				this.position += 2;
+			    else if (regex.startsWith("?i:", this.position))
+				this.position += 3;
+			    else
+				throw new UnindexableException();
+			final Node group = this.alternation();
+			if ((this.position == regex.length()) || (regex.charAt(this.position) != ')'))
+			    throw new UnindexableException();
+			this.position++;
+			if ((this.quantifier()[0] > 0) && (group.isTrue() == false))
+			    required.add(group);
+			break;
+			
+		    case '[':
+			flush(run, required);
+			this.skipClass();
+			this.quantifier();
+			break;
+			
+		    case '.':
+			flush(run, required);
+			this.quantifier();
+			break;
+			
+		    case '^':
+		    case '$':
+			flush(run, required);
+			break;
+			
+		    case '*':
+		    case '+':
+		    case '?':
+		    case '{':
+			throw new UnindexableException();
+			
+		    case '\\':
+			this.escape(run, required);
+			break;
+			
+		    default:
+			this.literal(this.codePoint(c), run, required);
+			break;
+		}
+	    }
+	    flush(run, required);
+	    return required.size() == 1 ? required.get(0) : new Node(true, required);
+	}
+	
+	/**
+	 * Analyses an escape sequence, after the backslash
+	 * 
+	 * @param  run       The current run of literal characters
+	 * @param  required  The required queries of the sequence
+	 * 
+	 * @throws  UnindexableException  If the escape sequence is not understood
+	 */
+	private void escape(final StringBuilder run, final List<Node> required) throws UnindexableException
+	{
+	    if (this.position == this.regex.length())
+		throw new UnindexableException();
+	    final char c = this.regex.charAt(this.position++);
+	    if (Character.isLetterOrDigit(c) == false)
+	    {   this.literal(this.codePoint(c), run, required);
+		return;
+	    }
+	    switch (c)
+	    {
+		case 't':  this.literal('\t', run, required);    return;
+		case 'n':  this.literal('\n', run, required);    return;
+		case 'r':  this.literal('\r', run, required);    return;
+		case 'f':  this.literal('\f', run, required);    return;
+		case 'a':  this.literal('\u0007', run, required);  return;
+		case 'e':  this.literal('\u001B', run, required);  return;
+		
+		case 'd': case 'D': case 'w': case 'W': case 's': case 'S':
+		case 'h': case 'H': case 'v': case 'V': case 'R': case 'X':
+		    flush(run, required);
+		    this.quantifier();
+		    return;
+		    
+		case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+		    flush(run, required);
+		    return;
+		    
+		case 'Q':
+		    final int end = this.regex.indexOf("\\E", this.position);
+		    run.append(this.regex, this.position, end < 0 ? this.regex.length() : end);
+		    this.position = end < 0 ? this.regex.length() : end + 2;
+		    if ((this.position < this.regex.length()) && ("*+?{".indexOf(this.regex.charAt(this.position)) >= 0))
+			throw new UnindexableException();
+		    return;
+		    
+		default:
+		    throw new UnindexableException();
+	    }
+	}
+	
+	/**
+	 * Gets the code point starting with a character that has just been parsed,
+	 * and parses the rest of it
+	 * 
+	 * @param   c  The character
+	 * @return     The code point
+	 */
+	private int codePoint(final char c)
+	{
+	    /* A quantifier after a surrogate pair applies to the whole pair */
+	    if (Character.isHighSurrogate(c) && (this.position < this.regex.length())
+		&& Character.isLowSurrogate(this.regex.charAt(this.position)))
+		return Character.toCodePoint(c, this.regex.charAt(this.position++));
+	    return c;
+	}
+	
+	/**
+	 * Analyses a literal character, and its quantifier
+	 * 
+	 * @param  c         The character, as a code point
+	 * @param  run       The current run of literal characters
+	 * @param  required  The required queries of the sequence
+	 */
+	private void literal(final int c, final StringBuilder run, final List<Node> required)
+	{
+	    final int[] quantifier = this.quantifier();
+	    final int min = quantifier[0], max = quantifier[1];
+	    if (min == 0)
+		/* Optional, so the characters around it need not be adjacent */
+		flush(run, required);
+	    else if ((min == max) && (min <= MAX_REPETITION))
+		for (int i = 0; i < min; i++)
+		    run.appendCodePoint(c);
+	    else
+	    {   /* Repeated, the run ends with the character and the next begins with it */
+		for (int i = 0; i < Math.min(min, MAX_REPETITION); i++)
+		    run.appendCodePoint(c);
+		flush(run, required);
+		run.appendCodePoint(c);
+	    }
+	}
+	
+	/**
+	 * Parses an optional quantifier
+	 * 
+	 * @return  The minimum and maximum repetitions, the maximum is -1 if unbounded
+	 */
+	private int[] quantifier()
+	{
+	    final String regex = this.regex;
+	    if (this.position == regex.length())
+		return new int[] { 1, 1 };
+	    final int[] quantifier;
+	    switch (regex.charAt(this.position))
+	    {
+		case '?':  quantifier = new int[] { 0,  1 };  break;
+		case '*':  quantifier = new int[] { 0, -1 };  break;
+		case '+':  quantifier = new int[] { 1, -1 };  break;
+		case '{':
+		    final Matcher matcher = Pattern.compile("\\{(\\d+)(,(\\d*))?\\}").matcher(regex);
+		    if (matcher.find(this.position) == false || (matcher.start() != this.position))
+			return new int[] { 1, 1 };
+		    final int min = parseCount(matcher.group(1));
+		    final int max = matcher.group(2) == null ? min : matcher.group(3).isEmpty() ? -1 : parseCount(matcher.group(3));
+		    this.position = matcher.end() - 1;
+		    quantifier = new int[] { min, max };
+		    break;
+		default:
+		    return new int[] { 1, 1 };
+	    }
+	    this.position++;
+	    /* Reluctant and possessive quantifiers match the same strings */
+	    if ((this.position < regex.length()) && ((regex.charAt(this.position) == '?') || (regex.charAt(this.position) == '+')))
+		this.position++;
+	    return quantifier;
+	}
+	
+	/**
+	 * Skips a character class, after the opening bracket
+	 * 
+	 * @throws  UnindexableException  If the class is not terminated
+	 */
+	private void skipClass() throws UnindexableException
+	{
+	    final String regex = this.regex;
+	    int depth = 1;
+	    /* A bracket first in a class is a literal */
+	    if (regex.startsWith("^]", this.position))
+		this.position += 2;
+	    else if (regex.startsWith("]", this.position))
+		this.position++;
+	    while (depth > 0)
+	    {   if (this.position >= regex.length())
+		    throw new UnindexableException();
+		final char c = regex.charAt(this.position++);
+		if (c == '\\')
+		    this.position++;
+		else if (c == '[')
+		    depth++;
+		else if (c == ']')
+		    depth--;
+	    }
+	}
+	
+    }
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  catalog  The catalog to index, the pictures in it are indexed
+     */
+    public TrigramIndex(final Catalog catalog)
+    {
+	this.catalog = catalog;
+	this.update();
+    }
+    
+    
+    
+    /**
+     * The indexed catalog
+     */
+    private final Catalog catalog;
+    
+    /**
+     * The number of indexed pictures
+     */
+    private int indexed = 0;
+    
+    /**
+     * The pictures whose titles contain each trigram
+     */
+    private final HashMap<Long, Bitmap> postings = new HashMap<Long, Bitmap>();
+    
+    
+    
+    /**
+     * Indexes the pictures added to the catalog since the last update
+     */
+    public synchronized void update()
+    {
+	final int size = this.catalog.size();
+	for (; this.indexed < size; this.indexed++)
+	{
+	    /* Repeated trigrams are added again, the bitmaps are sets */
+	    final String title = this.catalog.getTitle(this.indexed);
+	    for (int i = 0; i + 3 <= title.length(); i++)
+	    {   final Long trigram = Long.valueOf(trigram(title, i));
+		Bitmap bitmap = this.postings.get(trigram);
+		if (bitmap == null)
+		    this.postings.put(trigram, bitmap = new Bitmap());
+		bitmap.add(this.indexed);
+	    }
+	}
+    }
+    
+    
+    /**
+     * Gets the lower-cased trigram at a position in a string
+     * 
+     * @param   string    The string
+     * @param   position  The position of the first character of the trigram
+     * @return            The trigram
+     */
+    private static long trigram(final String string, final int position)
+    {
+	/* Character by character, so that no character changes length when lower-cased */
+	return ((long)(Character.toLowerCase(string.charAt(position))) << 32)
+	     | ((long)(Character.toLowerCase(string.charAt(position + 1))) << 16)
+	     | (long)(Character.toLowerCase(string.charAt(position + 2)));
+    }
+    
+    /**
+     * Adds the trigrams of a run of literal characters to the required queries, and empties the run
+     * 
+     * @param  run       The run of literal characters
+     * @param  required  The required queries
+     */
+    private static void flush(final StringBuilder run, final List<Node> required)
+    {
+	final LinkedHashSet<Long> trigrams = new LinkedHashSet<Long>();
+	for (int i = 0; i + 3 <= run.length(); i++)
+	    trigrams.add(Long.valueOf(trigram(run.toString(), i)));
+	for (final Long trigram : trigrams)
+	    required.add(new Node(trigram.longValue()));
+	run.setLength(0);
+    }
+    
+    /**
+     * Parses the repetition count of a quantifier
+     * 
+     * @param   count  The count
+     * @return         The count, {@link Integer#MAX_VALUE} if it overflows
+     */
+    private static int parseCount(final String count)
+    {
+	try
+	{   return Integer.parseInt(count);
+	}
+	catch (final NumberFormatException err)
+	{   return Integer.MAX_VALUE;
+	}
+    }
+    
+    
+    /**
+     * Gets a compiled regular expression, compiling and analysing it unless it is cached
+     * 
+     * @param   regex  The regular expression
+     * @return         The compiled regular expression
+     * 
+     * @throws  PatternSyntaxException  If the regular expression is malformed
+     */
+    private static Compiled getCompiled(final String regex)
+    {
+	synchronized (patterns)
+	{   Compiled compiled = patterns.get(regex);
+	    if (compiled == null)
+	    {   compiled = new Compiled(Pattern.compile(regex), new Analyser(regex).analyse());
+		patterns.put(regex, compiled);
+		if (patterns.size() > PATTERN_CACHE_SIZE)
+		{   final Iterator<String> eldest = patterns.keySet().iterator();
+		    eldest.next();
+		    eldest.remove();
+	    }   }
+	    return compiled;
+	}
+    }
+    
+    
+    /**
+     * Compiles a regular expression, or gets it from the cache
+     * 
+     * @param   regex  The regular expression
+     * @return         The compiled regular expression
+     * 
+     * @throws  PatternSyntaxException  If the regular expression is malformed
+     */
+    public static Pattern compile(final String regex)
+    {
+	return getCompiled(regex).pattern;
+    }
+    
+    
+    /**
+     * Gets the pictures whose titles can match a regular expression
+     * 
+     * @param   regex  The regular expression
+     * @return         The candidate pictures, a superset of the matching pictures,
+     *                 {@code null} if every picture is a candidate
+     * 
+     * @throws  PatternSyntaxException  If the regular expression is malformed
+     */
+    public synchronized Bitmap candidates(final String regex)
+    {
+	final Node query = getCompiled(regex).query;
+	return query == null ? null : this.evaluate(query);
+    }
+    
+    
+    /**
+     * Evaluates a trigram query
+     * 
+     * @param   node  The query
+     * @return        The pictures whose titles satisfy the query
+     */
+    private Bitmap evaluate(final Node node)
+    {
+	if (node.operands == null)
+	{   final Bitmap bitmap = this.postings.get(Long.valueOf(node.trigram));
+	    return bitmap == null ? new Bitmap() : bitmap;
+	}
+	
+	final ArrayList<Bitmap> bitmaps = new ArrayList<Bitmap>();
+	for (final Node operand : node.operands)
+	{   final Bitmap bitmap = this.evaluate(operand);
+	    if (node.conjunction && bitmap.isEmpty())
+		return bitmap;
+	    bitmaps.add(bitmap);
+	}
+	if (node.conjunction == false)
+	    return Bitmap.or(bitmaps);
+	
+	/* Smallest first, so that the intermediate results stay small */
+	final int[] cardinalities = new int[bitmaps.size()];
+	final Integer[] order = new Integer[bitmaps.size()];
+	for (int i = 0; i < order.length; i++)
+	{   cardinalities[i] = bitmaps.get(i).getCardinality();
+	    order[i] = Integer.valueOf(i);
+	}
+	Arrays.sort(order, new Comparator<Integer>()
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public int compare(final Integer a, final Integer b)
+		    {
+			return Integer.compare(cardinalities[a.intValue()], cardinalities[b.intValue()]);
+		    }
+		});
+	Bitmap result = bitmaps.get(order[0].intValue());
+	for (int i = 1; (i < order.length) && (result.isEmpty() == false); i++)
+	    result = result.and(bitmaps.get(order[i].intValue()));
+	return result;
+    }
+    
+}
@@ -22,10 +22,14 @@ import javax.swing.*;
 import javax.swing.event.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
 
 
 /**
- * Year filter component
+ * Year filter component, with a column for each year, from the first to the
+ * last year with pictures, or the last ten years until those are known, and a
+ * row for each month; months selected in the row for all years are also
+ * selected in the years that are not shown
  */
 @SuppressWarnings("serial")
 public class YearFilter extends JComponent implements MouseInputListener
@@ -66,11 +70,9 @@ public class YearFilter extends JComponent implements MouseInputListener
 	
 	this.addMouseListener(this);
 	this.addMouseMotionListener(this);
+	ToolTipManager.sharedInstance().registerComponent(this);
 	
-	final int x_ = Math.max(this.selected.length, 1);
-	final int x = MARGIN * 2 + BOX_WIDTH  + BIG_GAP + x_ * (BOX_WIDTH  + BOX_GAP) - BOX_GAP;
-	final int y = MARGIN * 2 + BOX_HEIGHT + BIG_GAP + 12 * (BOX_HEIGHT + BOX_GAP) - BOX_GAP;
-	this.setPreferredSize(new Dimension(x, y));
+	this.updateSize();
     }
     
     
@@ -85,6 +87,11 @@ public class YearFilter extends JComponent implements MouseInputListener
      */
     private short m_selected = 0;
     
+    /**
+     * The year of the first column
+     */
+    private int first_year = Calendar.getInstance().get(Calendar.YEAR) - this.selected.length + 1;
+    
     /**
      * The index of the hovered element, -1 if none
      */
@@ -92,6 +99,86 @@ public class YearFilter extends JComponent implements MouseInputListener
     
     
     
+    /**
+     * Updates the preferred size from the number of years
+     */
+    private void updateSize()
+    {
+	final int x_ = Math.max(this.selected.length, 1);
+	final int x = MARGIN * 2 + BOX_WIDTH  + BIG_GAP + x_ * (BOX_WIDTH  + BOX_GAP) - BOX_GAP;
+	final int y = MARGIN * 2 + BOX_HEIGHT + BIG_GAP + 12 * (BOX_HEIGHT + BOX_GAP) - BOX_GAP;
+	this.setPreferredSize(new Dimension(x, y));
+    }
+    
+    /**
+     * Sets the years to show, the selection of the years that remain is kept,
+     * and the months selected for all years are selected in the added years
+     * 
+     * @param  firstYear  The first year with pictures
+     * @param  lastYear   The last year with pictures
+     */
+    public void setYears(final int firstYear, final int lastYear)
+    {
+	if ((firstYear == this.first_year) && (lastYear - firstYear + 1 == this.selected.length))
+	    return;
+	final short[] selected = new short[Math.max(lastYear - firstYear + 1, 1)];
+	for (int i = 0; i < selected.length; i++)
+	{   final int old = firstYear + i - this.first_year;
+	    selected[i] = (0 <= old) && (old < this.selected.length) ? this.selected[old] : this.m_selected;
+	}
+	this.selected = selected;
+	this.first_year = firstYear;
+	this.hover = -1;
+	this.updateSize();
+	this.revalidate();
+	this.repaint();
+    }
+    
+    /**
+     * Gets the year of the first column
+     * 
+     * @return  The year of the first column
+     */
+    public int getFirstYear()
+    {
+	return this.first_year;
+    }
+    
+    /**
+     * Gets the selection
+     * 
+     * @return  For each year, the mask of selected months
+     */
+    public short[] getSelection()
+    {
+	return this.selected.clone();
+    }
+    
+    /**
+     * Gets the selection of the row for all years, which applies to the years that are not shown
+     * 
+     * @return  The mask of months selected for all years
+     */
+    public short getAllYearsSelection()
+    {
+	return this.m_selected;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getToolTipText(final MouseEvent e)
+    {
+	final int hover = calculateHover(e.getPoint());
+	final int x = (hover / 13) - 1;
+	if ((hover < 0) || (x >= this.selected.length))
+	    return null;
+	return x < 0 ? "All years" : "Year " + (this.first_year + x);
+    }
+    
+    
     /**
      * {@inheritDoc}
      */